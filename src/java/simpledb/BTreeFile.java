@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import org.omg.CORBA.INTERNAL;
 import simpledb.Predicate.Op;
@@ -12,6 +15,25 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions lock only the leaf pages of the tree they read or write. The root
+ * pointer and the internal pages are protected by short-duration latches instead,
+ * which only splits and merges take: a search or an insert descends without
+ * latching anything, checking each internal page it read against the page's latch
+ * afterwards and reading it again if a split or merge changed it meanwhile, and
+ * locks the leaf it arrives at. A split leaves the page it splits with a high key
+ * and a pointer to its new right sibling (a B-link tree), so that a search which
+ * arrives at the page afterwards follows the pointer to the keys that moved instead
+ * of starting over. High keys are kept in memory only; where one is not known, the
+ * search checks that the parent it came from has not changed instead. Merges and
+ * redistributions move keys to the left, and make the searches under way start over.
+ * <p>
+ * An insert into a full leaf, or a delete that leaves a leaf less than half full,
+ * latches the path to the leaf exclusively, keeping only the latches below the
+ * lowest page the split or merge cannot reach past, and locks every page it is
+ * about to change before it changes any of them. Those locks are held until the
+ * transaction ends, since an abort restores the pages. A thread never waits for a
+ * lock while it holds a latch: it releases its latches, waits, and starts over.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -26,6 +48,14 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	/** Latches on the pages of this tree, created as the pages are first latched. */
+	private final ConcurrentHashMap<BTreePageId, StampedLock> latches =
+			new ConcurrentHashMap<BTreePageId, StampedLock>();
+	/** The latches of the split or merge the current thread is making, if any. */
+	private final ThreadLocal<Latches> modifying = new ThreadLocal<Latches>();
+	/** The number of merges and redistributions, which searches under way start over after. */
+	private final AtomicLong shrinks = new AtomicLong();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -160,7 +190,31 @@ public class BTreeFile implements DbFile {
 			rf.close();
 		}
 	}
-	
+
+	/**
+	 * Write a batch of pages to disk, opening the file only once. The pages
+	 * arrive sorted by page number, so the writes move forward through the file.
+	 *
+	 * @param pages - the pages to write, sorted by page number
+	 */
+	public void writePages(List<Page> pages) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			for (Page page : pages) {
+				BTreePageId id = (BTreePageId) page.getId();
+				if(id.pgcateg() == BTreePageId.ROOT_PTR) {
+					rf.seek(0);
+				}
+				else {
+					rf.seek(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize());
+				}
+				rf.write(page.getPageData());
+			}
+		} finally {
+			rf.close();
+		}
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -177,68 +231,220 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, and locks it with permission perm. The
+	 * internal pages along the path from the root pointer are neither latched nor
+	 * locked: each is read optimistically and validated against its latch.
+	 * 
+	 * If a page was split after the search read the pointer to it, the search follows
+	 * right sibling pointers as long as f is greater than the high key of the page.
+	 * The search starts over if it cannot tell whether it is on the right page, or if
+	 * a merge or redistribution happened while it was under way.
+	 * 
+	 * A snapshot transaction reads versions of the pages that no one changes, so it
+	 * simply descends from the root pointer.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		if (pid.pgcateg()==BTreePageId.LEAF){
-			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
-		}
-		BTreePageId bTreePageId=null;
-		BTreeInternalPage internalPage=(BTreeInternalPage) getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-		if (f==null) {
-			BTreePageId pageId = internalPage.getChildId(0);
-			return findLeafPage(tid, dirtypages, pageId, perm, f);
+		BufferPool bp = Database.getBufferPool();
+		if (bp.isSnapshot(tid)) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+			BTreePageId pid = rootPtr.getRootId();
+			while (pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = childFor((BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY), f);
+			}
+			return (BTreeLeafPage) bp.getPage(tid, pid, perm);
 		}
-		else {
-			Iterator entriesIterator=internalPage.iterator();
-			BTreeEntry bTreeEntry=null;
-			boolean hasFound=false;
-			while (entriesIterator.hasNext()){
-				bTreeEntry=(BTreeEntry) entriesIterator.next();
-				if (bTreeEntry.getKey().compare(Op.GREATER_THAN_OR_EQ,f)){
-					bTreePageId=bTreeEntry.getLeftChild();
-					hasFound=true;
-					break;
+		search:
+		while (true) {
+			long shrunk = shrinks.get();
+
+			// the page the current page was found from through a child pointer, if it
+			// was, and the stamp the read of it was validated with
+			BTreePageId parentId = BTreeRootPtrPage.getId(tableid);
+			Page parent;
+			long parentStamp;
+			BTreePageId pid;
+			do {
+				parentStamp = optimisticStamp(latchFor(parentId));
+				parent = bp.getLatchedPage(parentId);
+				pid = ((BTreeRootPtrPage) parent).getRootId();
+			} while (!latchFor(parentId).validate(parentStamp));
+
+			while (pid.pgcateg() == BTreePageId.INTERNAL) {
+				StampedLock latch = latchFor(pid);
+				long stamp = optimisticStamp(latch);
+				BTreeInternalPage page = null;
+				Boolean right;
+				BTreePageId next;
+				try {
+					page = (BTreeInternalPage) bp.getLatchedPage(pid);
+					right = movesRight(page, f);
+					if (right == null) {
+						next = isUnchanged(parentId, parent, parentStamp) ? childFor(page, f) : null;
+					}
+					else {
+						next = right ? page.getRightSiblingId() : childFor(page, f);
+					}
+				} catch (RuntimeException e) {
+					// read while it was changed, or no longer a page of the tree
+					right = null;
+					next = null;
 				}
+				if (!latch.validate(stamp) || (page != null && bp.getLatchedPage(pid) != page)) {
+					continue;
+				}
+				if (next == null) {
+					continue search;
+				}
+				if (Boolean.TRUE.equals(right)) {
+					parentId = null;
+				}
+				else {
+					parentId = pid;
+					parent = page;
+					parentStamp = stamp;
+				}
+				pid = next;
+			}
+
+			// no latch is held, so the lock on the leaf can be waited for
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			Boolean right = movesRight(leaf, f);
+			while (Boolean.TRUE.equals(right)) {
+				parentId = null;
+				leaf = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), perm);
+				right = movesRight(leaf, f);
 			}
-			if (!hasFound)
-			bTreePageId=bTreeEntry.getRightChild();
+			if (right == null && !isUnchanged(parentId, parent, parentStamp)) {
+				continue;
+			}
+			if (shrinks.get() != shrunk) {
+				continue;
+			}
+			return leaf;
 		}
-        return findLeafPage(tid,dirtypages,bTreePageId,perm,f);
+	}
+
+	/**
+	 * Returns whether a search for the key field f has to follow the right sibling
+	 * pointer of a page it arrived at: because f is greater than the high key of the
+	 * page, which a split after the search read the pointer to the page has lowered.
+	 * 
+	 * @return true or false, or null if it cannot be told: the high key of the page is
+	 * not known and f is greater than every key on it
+	 */
+	private Boolean movesRight(BTreePage page, Field f) {
+		if (f == null) {
+			return false;
+		}
+		if (page.isHighKeyKnown()) {
+			if (page.getHighKey() == null || f.compare(Op.LESS_THAN_OR_EQ, page.getHighKey())) {
+				return false;
+			}
+			return page.getRightSiblingId() == null ? null : Boolean.TRUE;
+		}
+		Field last = lastKey(page);
+		if (last != null && f.compare(Op.LESS_THAN_OR_EQ, last)) {
+			return false;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the greatest key on a page, or null if the page is empty.
+	 */
+	private Field lastKey(BTreePage page) {
+		if (page instanceof BTreeLeafPage) {
+			Iterator<Tuple> it = ((BTreeLeafPage) page).reverseIterator();
+			return it.hasNext() ? it.next().getField(keyField) : null;
+		}
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) page).reverseIterator();
+		return it.hasNext() ? it.next().getKey() : null;
+	}
+
+	/**
+	 * Returns whether a page read optimistically is still the page in the buffer pool,
+	 * and has not changed since. Pages a transaction changed are replaced with their
+	 * before images in the buffer pool if it aborts.
+	 */
+	private boolean isUnchanged(BTreePageId pid, Page page, long stamp) throws DbException {
+		return pid != null && latchFor(pid).validate(stamp)
+				&& Database.getBufferPool().getLatchedPage(pid) == page;
+	}
+
+	/**
+	 * Returns a stamp to validate an optimistic read of a page with, waiting for a split
+	 * or merge that is changing the page to be done with it first.
+	 */
+	private long optimisticStamp(StampedLock latch) {
+		long stamp = latch.tryOptimisticRead();
+		while (stamp == 0) {
+			latch.unlockRead(latch.readLock());
+			stamp = latch.tryOptimisticRead();
+		}
+		return stamp;
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
+	}
+
+	/**
+	 * Returns the child of an internal page to descend to when searching for the key
+	 * field f: the left child of the first entry whose key is at least f, or the
+	 * left-most child if f is null.
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return e.getLeftChild();
+			}
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Returns the child pointers of an internal page, from left to right.
+	 */
+	private List<BTreePageId> children(BTreeInternalPage page) {
+		List<BTreePageId> children = new ArrayList<BTreePageId>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (children.isEmpty()) {
+				children.add(e.getLeftChild());
+			}
+			children.add(e.getRightChild());
+		}
+		return children;
 	}
 
 	/**
@@ -294,6 +500,10 @@ public class BTreeFile implements DbFile {
 			originalRightPage.setLeftSiblingId(newLeafPage.getId());
 		}
         dirtypages.put(page.getId(),page);
+        if (page.isHighKeyKnown()) {
+        	newLeafPage.setHighKey(page.getHighKey());
+        }
+        page.setHighKey(newEntry.getKey());
         if (field.compare(Op.LESS_THAN_OR_EQ,newEntry.getKey())){
         	return page;
 		}
@@ -351,6 +561,12 @@ public class BTreeFile implements DbFile {
 		page.setParentId(newParentPage.getId());
 		newRightPage.setParentId(newParentPage.getId());
 		updateParentPointers(tid,dirtypages,newRightPage);
+		if (page.isHighKeyKnown()) {
+			newRightPage.setHighKey(page.getHighKey());
+			newRightPage.setRightSiblingId(page.getRightSiblingId());
+		}
+		page.setHighKey(pushedEntry.getKey());
+		page.setRightSiblingId(newRightPage.getId());
 		if (field.compare(Op.LESS_THAN_OR_EQ,pushedEntry.getKey())){
 			return page;
 		}
@@ -383,6 +599,7 @@ public class BTreeFile implements DbFile {
 		// this will be the new root of the tree
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+			parent.setHighKey(null);
 
 			// update the root pointer
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
@@ -468,6 +685,10 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * While the current thread makes a split or merge under latches, pages requested with
+	 * read-only permission are not locked: they are either latched, or only read to check
+	 * parent pointers, which cannot change while the parent is latched.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -480,16 +701,222 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
-		synchronized (this) {
-			if (dirtypages.containsKey(pid)) {
-				return dirtypages.get(pid);
-			} else {
-				Page p = Database.getBufferPool().getPage(tid, pid, perm);
-				if (perm == Permissions.READ_WRITE) {
-					dirtypages.put(pid, p);
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		if (perm == Permissions.READ_ONLY && modifying.get() != null) {
+			return Database.getBufferPool().getLatchedPage(pid);
+		}
+		Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		if (perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Like getPage, but returns null instead of waiting if the lock on the page cannot be
+	 * granted right away.
+	 * @see #getPage(TransactionId, HashMap, BTreePageId, Permissions)
+	 */
+	private Page tryGetPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException {
+		if (dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if (p != null && perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
+	/**
+	 * Lock the given pages with read-write permission, as far as that does not require
+	 * waiting.
+	 * 
+	 * @return null if all the pages are locked, otherwise the first page whose lock
+	 * cannot be granted right away
+	 */
+	private BTreePageId tryLockPages(TransactionId tid, HashMap<PageId, Page> dirtypages, List<BTreePageId> pids)
+			throws DbException {
+		for (BTreePageId pid : pids) {
+			if (tryGetPage(tid, dirtypages, pid, Permissions.READ_WRITE) == null) {
+				return pid;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark the pages in dirtypages dirty before the latches of a split or merge are
+	 * released, so that no other thread can read an evicted, older version of them.
+	 */
+	private void markDirty(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		for (Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+	}
+
+	private StampedLock latchFor(BTreePageId pid) {
+		StampedLock latch = latches.get(pid);
+		if (latch == null) {
+			StampedLock created = new StampedLock();
+			latch = latches.putIfAbsent(pid, created);
+			if (latch == null) {
+				latch = created;
+			}
+		}
+		return latch;
+	}
+
+	/**
+	 * The exclusive latches a split or merge holds, from the top of the tree down. While
+	 * they are held the thread is registered as modifying the tree: getPage reads pages
+	 * without locking them, getEmptyPage latches the pages it creates, and setEmptyPage
+	 * leaves the pages it is given to be freed once the latches are released.
+	 */
+	private class Latches {
+		private final LinkedHashMap<BTreePageId, Long> held = new LinkedHashMap<BTreePageId, Long>();
+		private final List<Integer> freed = new ArrayList<Integer>();
+
+		Latches() {
+			modifying.set(this);
+		}
+
+		void latch(BTreePageId pid) {
+			if (!held.containsKey(pid)) {
+				held.put(pid, latchFor(pid).writeLock());
+			}
+		}
+
+		/** Release every latch but the one taken last. */
+		void releaseAncestors() {
+			Iterator<Map.Entry<BTreePageId, Long>> it = held.entrySet().iterator();
+			for (int n = held.size(); n > 1; n--) {
+				Map.Entry<BTreePageId, Long> e = it.next();
+				latchFor(e.getKey()).unlockWrite(e.getValue());
+				it.remove();
+			}
+		}
+
+		void release() {
+			for (Map.Entry<BTreePageId, Long> e : held.entrySet()) {
+				latchFor(e.getKey()).unlockWrite(e.getValue());
+			}
+			held.clear();
+			modifying.remove();
+		}
+	}
+
+	/**
+	 * Latch the path from the root pointer down to the parent of a leaf page exclusively,
+	 * top-down, releasing the latches above every page that is safe: one that does not
+	 * split when an entry is added to it (insert), or does not fall below minimum
+	 * occupancy when an entry is removed from it (delete). A split or merge starting at
+	 * the leaf then only changes latched pages and their children.
+	 * 
+	 * The path is found through the parent pointers, and checked against the child
+	 * pointers as it is latched. If a concurrent split or merge has changed it, the
+	 * latches are released and the path is looked up again.
+	 * 
+	 * @param leaf - the leaf page, locked with read-write permission
+	 * @param insert - whether the path is latched for an insert or for a delete
+	 * @return the latches held
+	 */
+	private Latches latchPath(BTreeLeafPage leaf, boolean insert) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		while (true) {
+			LinkedList<BTreePageId> path = new LinkedList<BTreePageId>();
+			path.add(leaf.getId());
+			BTreePageId pid = leaf.getParentId();
+			while (pid.pgcateg() != BTreePageId.ROOT_PTR) {
+				path.addFirst(pid);
+				pid = ((BTreePage) bp.getLatchedPage(pid)).getParentId();
+			}
+
+			Latches latches = new Latches();
+			latches.latch(pid);
+			boolean valid = path.getFirst().equals(((BTreeRootPtrPage) bp.getLatchedPage(pid)).getRootId());
+			for (int i = 0; valid && i < path.size() - 1; i++) {
+				latches.latch(path.get(i));
+				BTreeInternalPage page = (BTreeInternalPage) bp.getLatchedPage(path.get(i));
+				if (isSafe(page, insert)) {
+					latches.releaseAncestors();
 				}
-				return p;
+				valid = children(page).contains(path.get(i + 1));
 			}
+			if (valid) {
+				return latches;
+			}
+			latches.release();
+		}
+	}
+
+	/**
+	 * Returns whether adding an entry to the internal page (insert) or removing one from
+	 * it (delete) leaves the pages above it alone.
+	 */
+	private boolean isSafe(BTreeInternalPage page, boolean insert) {
+		if (insert) {
+			return page.getNumEmptySlots() > 0;
+		}
+		if (page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			// the root is only replaced once its last entry is removed
+			return page.getNumEntries() > 1;
+		}
+		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
+		return page.getNumEmptySlots() < maxEmptySlots;
+	}
+
+	/**
+	 * Split a full leaf page like splitLeafPage, for a concurrent insert. The path to the
+	 * leaf is latched, and the pages the split will change are locked before any of them
+	 * is changed: the leaf and its right sibling, the latched pages, each of which is
+	 * split or receives the new entry, and the children that a split of an internal page
+	 * moves to the new page. If one of the locks cannot be granted right away, the
+	 * latches are released, the lock is waited for, and the split starts over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page to split, locked with read-write permission
+	 * @param field - the key field of the tuple to be inserted after the split is complete
+	 * @return the leaf page into which the new tuple should be inserted
+	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
+	 */
+	private BTreeLeafPage splitLeafPageLatched(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage page, Field field) throws DbException, IOException, TransactionAbortedException {
+		while (true) {
+			Latches latches = latchPath(page, true);
+			BTreePageId unavailable;
+			try {
+				List<BTreePageId> pids = new ArrayList<BTreePageId>();
+				pids.add(page.getId());
+				if (page.getRightSiblingId() != null) {
+					pids.add(page.getRightSiblingId());
+				}
+				for (BTreePageId pid : latches.held.keySet()) {
+					pids.add(pid);
+					if (pid.pgcateg() == BTreePageId.INTERNAL) {
+						BTreeInternalPage internal = (BTreeInternalPage) Database.getBufferPool().getLatchedPage(pid);
+						if (internal.getNumEmptySlots() == 0) {
+							// as in splitInternalPage
+							int entriesToMove = (int) Math.ceil((float) internal.getNumEntries()/2) - 1;
+							List<BTreePageId> children = children(internal);
+							pids.addAll(children.subList(children.size() - entriesToMove - 1, children.size()));
+						}
+					}
+				}
+				unavailable = tryLockPages(tid, dirtypages, pids);
+				if (unavailable == null) {
+					BTreeLeafPage leafPage = splitLeafPage(tid, dirtypages, page, field);
+					markDirty(tid, dirtypages);
+					return leafPage;
+				}
+			} finally {
+				latches.release();
+			}
+			getPage(tid, dirtypages, unavailable, Permissions.READ_WRITE);
 		}
 	}
 
@@ -507,21 +934,29 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// use the root pointer page to locate the root page
+		createIfEmpty();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(((BTreeRootPtrPage) Database.getBufferPool().getLatchedPage(rootPtrId)).getRootId() == null) {
+			// the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			StampedLock latch = latchFor(rootPtrId);
+			long stamp = latch.writeLock();
+			try {
+				if(rootPtr.getRootId() == null) {
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+					rootPtr.markDirty(true, tid);
+				}
+			} finally {
+				latch.unlockWrite(stamp);
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			leafPage = splitLeafPageLatched(tid, dirtypages, leafPage, t.getField(keyField));
 		}
 
 		// insert the tuple into the leaf page
@@ -947,6 +1382,160 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Handle a leaf page that is less than half full like handleMinOccupancyPage, for a
+	 * concurrent delete. The path to the leaf is latched, and the pages the merge or
+	 * redistribution will change are locked before any of them is changed. If one of
+	 * the locks cannot be granted right away, the latches are released, the lock is
+	 * waited for, and the operation starts over. Pages that become empty are marked
+	 * free once the latches are released.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page which is less than half full, locked with read-write permission
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 */
+	private void handleMinOccupancyPageLatched(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreeLeafPage page) throws DbException, IOException, TransactionAbortedException {
+		while (true) {
+			Latches latches = latchPath(page, false);
+			BTreePageId unavailable;
+			try {
+				unavailable = lockMinOccupancyPages(tid, dirtypages, page, false, latches);
+				if (unavailable == null) {
+					shrinks.incrementAndGet();
+					handleMinOccupancyPage(tid, dirtypages, page);
+					// the key ranges of the locked leaves and latched pages may have changed
+					for (Page p : dirtypages.values()) {
+						if (p instanceof BTreeLeafPage
+								|| (p instanceof BTreeInternalPage && latches.held.containsKey(p.getId()))) {
+							((BTreePage) p).forgetHighKey();
+						}
+					}
+					markDirty(tid, dirtypages);
+				}
+			} finally {
+				latches.release();
+			}
+			if (unavailable == null) {
+				for (int emptyPageNo : latches.freed) {
+					setEmptyPage(tid, dirtypages, emptyPageNo);
+				}
+				return;
+			}
+			getPage(tid, dirtypages, unavailable, Permissions.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Lock the pages that handleMinOccupancyPage will change for a page below minimum
+	 * occupancy, under the latches of latchPath: the parent, the sibling it steals from
+	 * or merges with (latched as well if it is an internal page), the children whose
+	 * parent changes, the sibling pointer that a merge of leaf pages changes, and
+	 * whatever the removal of an entry from the parent in turn changes. The siblings
+	 * are looked at once they are locked, so the choice between stealing and merging is
+	 * the one handleMinOccupancyPage makes.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page which is less than half full
+	 * @param entryRemoved - whether page is an internal page whose entry for a merged child
+	 * is still to be removed
+	 * @param latches - the latches held
+	 * @return null if all the pages are locked, otherwise the first page whose lock
+	 * cannot be granted right away
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 */
+	private BTreePageId lockMinOccupancyPages(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			BTreePage page, boolean entryRemoved, Latches latches) throws DbException {
+		BTreePageId parentId = page.getParentId();
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			return null;
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) tryGetPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		if(parent == null) {
+			return parentId;
+		}
+		BTreeEntry leftEntry = null;
+		BTreeEntry rightEntry = null;
+		Iterator<BTreeEntry> ite = parent.iterator();
+		while(ite.hasNext()) {
+			BTreeEntry e = ite.next();
+			if(e.getLeftChild().equals(page.getId())) {
+				rightEntry = e;
+				break;
+			}
+			else if(e.getRightChild().equals(page.getId())) {
+				leftEntry = e;
+			}
+		}
+		if(leftEntry == null && rightEntry == null) {
+			return null;
+		}
+		boolean left = leftEntry != null;
+		BTreePageId siblingId = left ? leftEntry.getLeftChild() : rightEntry.getRightChild();
+		if(siblingId.pgcateg() == BTreePageId.INTERNAL) {
+			latches.latch(siblingId);
+		}
+		BTreePage sibling = (BTreePage) tryGetPage(tid, dirtypages, siblingId, Permissions.READ_WRITE);
+		if(sibling == null) {
+			return siblingId;
+		}
+
+		List<BTreePageId> pids = new ArrayList<BTreePageId>();
+		boolean merge;
+		if(page.getId().pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leafPage = (BTreeLeafPage) page;
+			BTreeLeafPage leafSibling = (BTreeLeafPage) sibling;
+			int maxEmptySlots = leafPage.getMaxTuples() - leafPage.getMaxTuples()/2; // ceiling
+			merge = leafSibling.getNumEmptySlots() >= maxEmptySlots;
+			// the leaf to the right of the merged pages gets a new left sibling
+			BTreePageId next = left ? leafPage.getRightSiblingId() : leafSibling.getRightSiblingId();
+			if(merge && next != null) {
+				pids.add(next);
+			}
+		}
+		else {
+			BTreeInternalPage internalPage = (BTreeInternalPage) page;
+			BTreeInternalPage internalSibling = (BTreeInternalPage) sibling;
+			int maxEmptySlots = internalPage.getMaxEntries() - internalPage.getMaxEntries()/2; // ceiling
+			merge = internalSibling.getNumEmptySlots() >= maxEmptySlots;
+			if(merge) {
+				// all children of the right-hand page move to the left-hand page
+				pids.addAll(children(left ? internalPage : internalSibling));
+			}
+			else {
+				// as in stealFromLeftInternalPage and stealFromRightInternalPage
+				int numEntries = internalPage.getNumEntries() - (entryRemoved ? 1 : 0);
+				int entriesToMove = (internalSibling.getNumEntries() + numEntries)/2 - numEntries;
+				List<BTreePageId> children = children(internalSibling);
+				if(left) {
+					pids.addAll(children.subList(children.size() - entriesToMove, children.size()));
+				}
+				else {
+					pids.addAll(children.subList(0, entriesToMove));
+				}
+			}
+		}
+		BTreePageId unavailable = tryLockPages(tid, dirtypages, pids);
+		if(unavailable != null || !merge) {
+			return unavailable;
+		}
+
+		// the merge removes an entry from the parent, as in deleteParentEntry
+		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
+		int emptySlots = parent.getNumEmptySlots() + 1;
+		if(emptySlots == parent.getMaxEntries()) {
+			// the merged page replaces the parent as the root
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			return tryGetPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE) == null ? rootPtrId : null;
+		}
+		else if(emptySlots > maxEmptySlots) {
+			return lockMinOccupancyPages(tid, dirtypages, parent, true, latches);
+		}
+		return null;
+	}
+
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
@@ -971,7 +1560,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			handleMinOccupancyPageLatched(tid, dirtypages, page);
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -991,23 +1580,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true));
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			bw.write(emptyRootPtrData);
+			bw.write(emptyLeafData);
+			bw.close();
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1042,12 +1636,23 @@ public class BTreeFile implements DbFile {
 				}
 			}
 
-			// if headerPage is not null, it must have an empty slot
+			// if headerPage is not null, it must have an empty slot. A split does not
+			// wait for the header page under its latches; it extends the file instead
 			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				if(modifying.get() != null) {
+					headerPage = (BTreeHeaderPage) tryGetPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				}
+				else {
+					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				}
+				int emptySlot = headerPage == null ? -1 : headerPage.getEmptySlot();
+				if(emptySlot == -1) {
+					headerId = null;
+				}
+				else {
+					headerPage.markSlotUsed(emptySlot, true);
+					emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				}
 			}
 		}
 
@@ -1090,6 +1695,9 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
+		// a snapshot may still read the version of a page tid freed itself
+		Database.getBufferPool().retirePage(tid, newPageId);
+
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
@@ -1099,6 +1707,12 @@ public class BTreeFile implements DbFile {
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
+
+		// a split latches the pages it creates, since they can be reached before it is done
+		Latches splitting = modifying.get();
+		if(splitting != null) {
+			splitting.latch(newPageId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1119,6 +1733,14 @@ public class BTreeFile implements DbFile {
 	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException,IOException, TransactionAbortedException {
 
+		// a merge marks its empty pages once it has released its latches, since
+		// the header pages may have to be waited for
+		Latches merging = modifying.get();
+		if(merging != null) {
+			merging.freed.add(emptyPageNo);
+			return;
+		}
+
 		// if this is the last page in the file (and not the only page), just 
 		// truncate the file
 		// @TODO: Commented out because we should probably do this somewhere else in case the transaction aborts....
@@ -1222,11 +1844,19 @@ public class BTreeFile implements DbFile {
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
+	/** Leaf scans read ahead along the right sibling pointers. */
+	static final ReadAhead.Successor RIGHT_SIBLING = new ReadAhead.Successor() {
+		public PageId next(Page page) {
+			return ((BTreeLeafPage) page).getRightSiblingId();
+		}
+	};
+
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
 
 	TransactionId tid;
 	BTreeFile f;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1236,16 +1866,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
 		this.f = f;
 		this.tid = tid;
+		this.readAhead = new ReadAhead(RIGHT_SIBLING);
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		readAhead.pageRequested(curp);
 		it = curp.iterator();
 	}
 
@@ -1268,6 +1897,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.pageRequested(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1309,6 +1939,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1320,6 +1951,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		// only scans that run to the last leaf read ahead; the others stop
+		// at a leaf we cannot predict
+		if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			this.readAhead = new ReadAhead(BTreeFileIterator.RIGHT_SIBLING);
+		}
 	}
 
 	/**
@@ -1327,16 +1963,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException{
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
+		if(readAhead != null)
+			readAhead.pageRequested(curp);
 		it = curp.iterator();
 	}
 
@@ -1377,6 +2012,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if(readAhead != null)
+					readAhead.pageRequested(curp);
 				it = curp.iterator();
 			}
 		}
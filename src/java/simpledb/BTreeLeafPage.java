@@ -6,6 +6,10 @@ import java.io.*;
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Like a HeapPage, a leaf keeps the bytes it was built from and decodes the
+ * tuple in a slot when the slot is first accessed. The before image of a
+ * clean leaf shares these bytes.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -15,6 +19,8 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
+	/** The bytes this page was built from, or its last before image. */
+	private byte[] data;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -60,6 +66,9 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param id - the id of this page
 	 * @param data - the raw data of this page
 	 * @param key - the field which the index is keyed on
+	 * <p>
+	 * The page keeps a reference to data, which must not be modified
+	 * afterwards.
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
@@ -93,17 +102,15 @@ public class BTreeLeafPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		// the records are read when they are accessed
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
-		}
 		dis.close();
+		this.data = data;
 
-		setBeforeImage();
+		synchronized(oldDataLock)
+		{
+			oldData = data;
+		}
 	}
 
 	/** 
@@ -147,29 +154,45 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	public void setBeforeImage() {
+		byte[] image = getPageData();
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = image;
+		}
+		synchronized (this) {
+			data = image;
 		}
 	}
 
 	/**
-	 * Read tuples from the source file.
+	 * @return the offset of the given slot in the page data
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
+	private int slotOffset(int slotId) {
+		return 3 * INDEX_SIZE + header.length + slotId * td.getSize();
+	}
+
+	/**
+	 * Return the tuple in a used slot, decoding it from the page data if
+	 * this is the first access to it.
+	 */
+	private Tuple decodeTuple(int slotId) {
+		Tuple t = tuples[slotId];
+		if (t != null)
+			return t;
+		synchronized (this) {
+			if (tuples[slotId] == null) {
+				DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+						data, slotOffset(slotId), td.getSize()));
+				tuples[slotId] = readNextTuple(dis, slotId);
 			}
-			return null;
+			return tuples[slotId];
 		}
+	}
 
+	/**
+	 * Read a tuple from the page data.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
 		// read fields in the tuple
 		Tuple t = new Tuple(td);
 		RecordId rid = new RecordId(pid, slotId);
@@ -249,6 +272,18 @@ public class BTreeLeafPage extends BTreePage {
 				continue;
 			}
 
+			// non-empty slot that was never decoded: its bytes are unchanged
+			if (tuples[i] == null) {
+				synchronized (this) {
+					try {
+						dos.write(data, slotOffset(i), td.getSize());
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				continue;
+			}
+
 			// non-empty slot
 			for (int j=0; j<td.numFields(); j++) {
 				Field f = tuples[i].getField(j);
@@ -327,7 +362,7 @@ public class BTreeLeafPage extends BTreePage {
 		Field key = t.getField(keyField);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(decodeTuple(i).getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
@@ -366,7 +401,7 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
+			tuples[to] = decodeTuple(from);
 			tuples[to].setRecordId(rid);
 			markSlotUsed(from, false);
 		}
@@ -509,7 +544,7 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			return decodeTuple(i);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
@@ -24,6 +24,10 @@ public abstract class BTreePage implements Page {
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
+	// the high key is kept in memory only, see isHighKeyKnown()
+	private Field highKey;
+	private boolean highKeyKnown = false;
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -109,6 +113,48 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Returns whether the high key of this page is known. Every key on the page, and on
+	 * the pages below it, is at most the high key, and a search for a greater key has
+	 * to follow the right sibling pointer of the page (a B-link tree). The high key is
+	 * not stored on disk: it is known for pages that were split or created since they
+	 * were read, and forgotten when a merge or redistribution changes it.
+	 */
+	public boolean isHighKeyKnown() {
+		return highKeyKnown;
+	}
+
+	/**
+	 * Get the high key of this page, if it is known
+	 * @return the high key, or null if the keys on this page have no upper bound
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the high key, or null if the keys on this page have no upper bound
+	 */
+	public void setHighKey(Field key) {
+		highKey = key;
+		highKeyKnown = true;
+	}
+
+	/**
+	 * Forget the high key of this page
+	 */
+	public void forgetHighKey() {
+		highKey = null;
+		highKeyKnown = false;
+	}
+
+	/**
+	 * Get the id of the right sibling of this page
+	 * @return the id of the right sibling, or null if there is none
+	 */
+	public abstract BTreePageId getRightSiblingId();
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
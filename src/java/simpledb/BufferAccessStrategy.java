@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * BufferAccessStrategy confines the pages brought into the BufferPool by one
+ * bulk operation, such as a sequential scan of a large table, to a small
+ * ring of frames. Every page the operation reads replaces the page read
+ * ringPages reads earlier, instead of a victim chosen by the shared
+ * replacement policy, so the operation reuses the same few frames and
+ * leaves the rest of the pool, and the working set of other transactions,
+ * alone.
+ * <p>
+ * A ring slot is only recycled while its page can be evicted; if another
+ * transaction has dirtied or pinned the page, the pool falls back to its
+ * replacement policy for that read. Pages that are already resident are
+ * simply used, and do not enter the ring.
+ * <p>
+ * Operations get a strategy from BufferPool.getStrategy, which returns null
+ * for tables small enough to be cached as a whole.
+ *
+ * @see BufferPool#getStrategy
+ * @Threadsafe
+ */
+public class BufferAccessStrategy {
+
+    /** The bulk operations that may use a strategy. */
+    public enum Kind {
+        /** Sequential scans, including the scan collecting TableStats. */
+        BULK_READ,
+        /** Inserts of many tuples, whose search for free space reads the table. */
+        BULK_WRITE
+    }
+
+    /** Number of frames in a ring, unless the pool is too small for it. */
+    public static final int DEFAULT_RING_PAGES = 32;
+
+    private static boolean enabled = true;
+
+    private final Kind kind;
+    private final int ringPages;
+    private final int numPartitions;
+    /** One ring per partition, since a page can only replace a page of its own partition. */
+    private final Map<BufferPartition, PageId[]> rings = new IdentityHashMap<BufferPartition, PageId[]>();
+    private final Map<BufferPartition, Integer> hands = new IdentityHashMap<BufferPartition, Integer>();
+
+    /**
+     * Create a strategy for a pool with the given number of partitions.
+     *
+     * @param kind the operation the strategy is used for
+     * @param ringPages the total number of frames in the ring
+     * @param numPartitions the number of partitions of the pool
+     */
+    public BufferAccessStrategy(Kind kind, int ringPages, int numPartitions) {
+        this.kind = kind;
+        this.ringPages = ringPages;
+        this.numPartitions = numPartitions;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setEnabled(boolean enabled) {
+        BufferAccessStrategy.enabled = enabled;
+    }
+
+    /** @return false if strategies have been turned off for testing */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return the operation this strategy is used for */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** @return the total number of frames in the ring */
+    public int getRingPages() {
+        return ringPages;
+    }
+
+    private PageId[] ring(BufferPartition partition) {
+        PageId[] ring = rings.get(partition);
+        if (ring == null) {
+            ring = new PageId[Math.max(1, (ringPages + numPartitions - 1) / numPartitions)];
+            rings.put(partition, ring);
+            hands.put(partition, 0);
+        }
+        return ring;
+    }
+
+    /**
+     * @return the page whose frame the next read into the partition should
+     *         reuse, or null while the ring of the partition is not full
+     */
+    public synchronized PageId nextVictim(BufferPartition partition) {
+        return ring(partition)[hands.get(partition)];
+    }
+
+    /** Record that the page was read into the partition through this strategy. */
+    public synchronized void pageAdmitted(BufferPartition partition, PageId pid) {
+        PageId[] ring = ring(partition);
+        int hand = hands.get(partition);
+        ring[hand] = pid;
+        hands.put(partition, (hand + 1) % ring.length);
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+/**
+ * BufferFrame is the descriptor of one slot of the BufferPool. The pool's
+ * page table maps each resident PageId to the frame holding that page.
+ * <p>
+ * Besides the page itself, a frame records the pin count, which keeps the
+ * frame from being evicted while an operation on it is in progress. The
+ * dirty bit is kept by the page, since access methods mark pages dirty
+ * directly; the frame exposes it so that the pool can make eviction and
+ * flush decisions from the descriptor alone. Recency and frequency
+ * information used for eviction is kept by the pool's ReplacementPolicy.
+ * <p>
+ * When the pool runs a PageCleaner, a committed page may stay in memory
+ * before it is written back. Such a frame needs a write: the page's before
+ * image holds the committed version that the disk does not have yet. A
+ * frame is also marked while the cleaner is writing it, so that nobody
+ * evicts it or writes it concurrently.
+ * <p>
+ * A frame also counts how often its page was found in the pool, which
+ * WarmStart uses to tell hot pages from cold ones.
+ *
+ * @see BufferPool
+ */
+public class BufferFrame {
+    private Page page;
+    private int pinCount;
+    private boolean needsWrite;
+    private boolean writing;
+    private int accesses;
+
+    /**
+     * Create a frame holding the given page.
+     *
+     * @param page the page to place in this frame
+     */
+    public BufferFrame(Page page) {
+        this.page = page;
+        this.pinCount = 0;
+        this.needsWrite = false;
+        this.writing = false;
+    }
+
+    /** @return the page held by this frame */
+    public Page getPage() {
+        return page;
+    }
+
+    /**
+     * Replace the page held by this frame, e.g. with a newer version of the
+     * same page or with its before image on abort.
+     */
+    public void setPage(Page page) {
+        this.page = page;
+    }
+
+    /** @return the id of the transaction that dirtied the page, or null if it is clean */
+    public TransactionId isDirty() {
+        return page.isDirty();
+    }
+
+    /** Pin this frame so that it cannot be evicted. */
+    public void pin() {
+        pinCount++;
+    }
+
+    /** Release one pin on this frame. */
+    public void unpin() {
+        if (pinCount == 0)
+            throw new IllegalStateException("frame for " + page.getId() + " is not pinned");
+        pinCount--;
+    }
+
+    /** @return true if the frame is pinned and must not be evicted */
+    public boolean isPinned() {
+        return pinCount > 0;
+    }
+
+    /** @return true if the committed version of the page is not on disk yet */
+    public boolean needsWrite() {
+        return needsWrite;
+    }
+
+    /** Record whether the committed version of the page is on disk. */
+    public void setNeedsWrite(boolean needsWrite) {
+        this.needsWrite = needsWrite;
+    }
+
+    /** @return true if the page cleaner is writing this frame right now */
+    public boolean isWriting() {
+        return writing;
+    }
+
+    public void setWriting(boolean writing) {
+        this.writing = writing;
+    }
+
+    /** Count one request that found the page in this frame. */
+    public void accessed() {
+        accesses++;
+    }
+
+    /** @return the number of requests that found the page in this frame */
+    public int getAccesses() {
+        return accesses;
+    }
+}
@@ -0,0 +1,589 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BufferPartition is one independently latched shard of the BufferPool. The
+ * pool assigns every PageId to exactly one partition by its hash code, and
+ * each partition owns the page table, replacement policy and capacity for
+ * the pages assigned to it. All methods synchronize on the partition only,
+ * so threads working on pages of different partitions never wait for each
+ * other, and eviction in one partition does not disturb the others.
+ * <p>
+ * Partitions know nothing about locking; the pool acquires page locks
+ * before calling into a partition, so no partition latch is ever held
+ * while a transaction waits for a lock.
+ * <p>
+ * Committed pages are normally written at commit. A commit may instead
+ * leave them to the pool's PageCleaner, in which case the frame needs a
+ * write until the cleaner, a flush or an eviction has written the page's
+ * before image, which is the committed version of the page.
+ * <p>
+ * Pages fetched by ReadAhead are read without holding the partition latch.
+ * While such a read is in flight, requests for the page wait for it rather
+ * than read the page a second time.
+ * <p>
+ * Reads on behalf of a BufferAccessStrategy take the frame of the oldest
+ * page in the strategy's ring when it can be evicted, rather than asking
+ * the replacement policy for a victim.
+ * <p>
+ * The capacity can change at runtime. After a shrink the partition may
+ * hold more pages than its capacity until the pages that could not be
+ * evicted right away become evictable.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public class BufferPartition {
+    private int capacity;
+    /** Page table: maps the id of every resident page to the frame holding it. */
+    private final Map<PageId, BufferFrame> pageTable;
+    private final ReplacementPolicy policy;
+    private final BufferPoolMetrics metrics;
+    /** Number of frames that need a write. */
+    private int unwritten;
+    /** Pages being read ahead, and those discarded while being read. */
+    private final Set<PageId> inFlight = new HashSet<PageId>();
+    private final Set<PageId> cancelled = new HashSet<PageId>();
+    /** Lets the policy pick only frames that can be evicted without a write. */
+    private final ReplacementPolicy.VictimFilter evictable = new ReplacementPolicy.VictimFilter() {
+        public boolean canEvict(PageId pid) {
+            BufferFrame frame = pageTable.get(pid);
+            return frame != null && frame.isDirty() == null && !frame.isPinned()
+                    && !frame.needsWrite() && !frame.isWriting();
+        }
+    };
+    /** Also accepts committed frames that still need a write. */
+    private final ReplacementPolicy.VictimFilter committed = new ReplacementPolicy.VictimFilter() {
+        public boolean canEvict(PageId pid) {
+            BufferFrame frame = pageTable.get(pid);
+            return frame != null && frame.isDirty() == null && !frame.isPinned()
+                    && !frame.isWriting();
+        }
+    };
+
+    /**
+     * Create an empty partition.
+     *
+     * @param capacity the maximum number of pages held by this partition
+     * @param policyFactory creates the replacement policy of this partition
+     * @param metrics counts what this partition does
+     */
+    public BufferPartition(int capacity, ReplacementPolicy.Factory policyFactory,
+            BufferPoolMetrics metrics) {
+        this.capacity = capacity;
+        this.pageTable = new HashMap<PageId, BufferFrame>(capacity * 4 / 3 + 1);
+        this.policy = policyFactory.create(capacity);
+        this.metrics = metrics;
+    }
+
+    /** @return the maximum number of pages held by this partition */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Change the number of pages held by this partition. When it shrinks,
+     * pages are evicted until it fits, except those that cannot go yet:
+     * pages with uncommitted changes, pinned pages and pages being written
+     * stay until a later eviction or the end of their transaction.
+     *
+     * @param capacity the new maximum number of pages, at least 1
+     */
+    public synchronized void setCapacity(int capacity) throws DbException {
+        this.capacity = capacity;
+        trim(capacity);
+        policy.setCapacity(capacity);
+    }
+
+    /**
+     * Return the resident version of the page, reading it from its file and
+     * evicting another page first if it is not resident.
+     *
+     * @param strategy the ring the page is read into, or null to evict
+     *            pages chosen by the replacement policy
+     */
+    public synchronized Page getPage(PageId pid, BufferAccessStrategy strategy)
+            throws DbException {
+        waitForRead(pid);
+        BufferFrame frame = pageTable.get(pid);
+        if (frame != null) {
+            frame.accessed();
+            policy.pageAccessed(pid);
+            metrics.hit();
+            return frame.getPage();
+        }
+        if (!recycle(strategy) && pageTable.size() >= capacity) {
+            evictPage();
+        }
+        long start = System.nanoTime();
+        frame = new BufferFrame(readPage(pid));
+        metrics.miss(System.nanoTime() - start);
+        pageTable.put(pid, frame);
+        policy.pageAdmitted(pid);
+        if (strategy != null)
+            strategy.pageAdmitted(this, pid);
+        return frame.getPage();
+    }
+
+    /**
+     * Return the version of the page a snapshot that reads as of the given
+     * commit sees: a version saved since, or else the committed version of
+     * the resident page, which is read in if it is not resident.
+     *
+     * @param strategy the ring the page is read into, or null
+     */
+    public synchronized Page getVersion(PageId pid, long start, VersionStore versions,
+            BufferAccessStrategy strategy) throws DbException {
+        Page page = versions.get(pid, start);
+        return page != null ? page : getPage(pid, strategy).getBeforeImage();
+    }
+
+    /** @return the committed version of the page, or null if it is not resident */
+    public synchronized Page getCommitted(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        return frame != null ? frame.getPage().getBeforeImage() : null;
+    }
+
+    /**
+     * Evict the page in the strategy's ring slot that the next read reuses,
+     * writing it back first if its committed version is not on disk yet.
+     *
+     * @return false if there is no strategy, the ring is not full yet or the
+     *         page cannot be evicted
+     */
+    private boolean recycle(BufferAccessStrategy strategy) throws DbException {
+        if (strategy == null)
+            return false;
+        PageId pid = strategy.nextVictim(this);
+        if (pid == null || !committed.canEvict(pid))
+            return false;
+        evict(pid);
+        return true;
+    }
+
+    /**
+     * Read the page into this partition on behalf of ReadAhead, unless it is
+     * resident or already being read. The read happens outside the latch,
+     * and the page is only admitted if a frame can be freed without a write.
+     *
+     * @param strategy the ring the page is read into, or null
+     * @return the page, or null if it is being read by someone else
+     */
+    public Page readAhead(PageId pid, BufferAccessStrategy strategy) {
+        synchronized (this) {
+            BufferFrame frame = pageTable.get(pid);
+            if (frame != null)
+                return frame.getPage();
+            if (inFlight.contains(pid))
+                return null;
+            inFlight.add(pid);
+        }
+        Page page = null;
+        try {
+            long start = System.nanoTime();
+            page = readPage(pid);
+            metrics.readAhead(System.nanoTime() - start);
+        } finally {
+            synchronized (this) {
+                inFlight.remove(pid);
+                if (!cancelled.remove(pid) && page != null && !pageTable.containsKey(pid)) {
+                    PageId victim = strategy == null ? null : strategy.nextVictim(this);
+                    if (victim != null && !evictable.canEvict(victim))
+                        victim = null;
+                    if (victim == null && pageTable.size() >= capacity)
+                        victim = policy.chooseVictim(evictable);
+                    if (victim != null) {
+                        pageTable.remove(victim);
+                        policy.pageRemoved(victim);
+                        metrics.evicted();
+                    }
+                    if (pageTable.size() < capacity) {
+                        pageTable.put(pid, new BufferFrame(page));
+                        policy.pageAdmitted(pid);
+                        if (strategy != null)
+                            strategy.pageAdmitted(this, pid);
+                    }
+                }
+                notifyAll();
+            }
+        }
+        return page;
+    }
+
+    private Page readPage(PageId pid) {
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
+    /** Wait until a read ahead of the page has finished. */
+    private void waitForRead(PageId pid) {
+        boolean interrupted = false;
+        while (inFlight.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Return the resident version of the page like getPage, with its frame
+     * pinned until unpin(pid) is called.
+     */
+    public synchronized Page getPinned(PageId pid, BufferAccessStrategy strategy)
+            throws DbException {
+        Page page = getPage(pid, strategy);
+        pageTable.get(pid).pin();
+        return page;
+    }
+
+    /** Release a pin taken by getPinned. */
+    public synchronized void unpin(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        if (frame != null)
+            frame.unpin();
+    }
+
+    /**
+     * Install a page version produced by an access method, replacing the
+     * version held by the frame if the page is resident.
+     */
+    public synchronized void cachePage(Page page) throws DbException {
+        waitForRead(page.getId());
+        BufferFrame frame = pageTable.get(page.getId());
+        if (frame != null) {
+            frame.setPage(page);
+            policy.pageAccessed(page.getId());
+            return;
+        }
+        if (pageTable.size() >= capacity) {
+            evictPage();
+        }
+        frame = new BufferFrame(page);
+        pageTable.put(page.getId(), frame);
+        policy.pageAdmitted(page.getId());
+    }
+
+    /** Remove the page from this partition without writing it. */
+    public synchronized void discardPage(PageId pid) {
+        if (inFlight.contains(pid))
+            cancelled.add(pid);
+        BufferFrame frame = pageTable.remove(pid);
+        if (frame != null) {
+            if (frame.needsWrite())
+                unwritten--;
+            policy.pageRemoved(pid);
+        }
+    }
+
+    /** Write the page to disk if it is resident and dirty or needs a write. */
+    public synchronized void flushPage(PageId pid) throws IOException {
+        BufferFrame frame = waitForWrite(pid);
+        if (frame == null) {
+            return;
+        }
+        Page page = frame.getPage();
+        if (page.isDirty() != null) {
+            frame.pin();
+            try {
+                page.markDirty(false, null);
+                writePage(page);
+                if (frame.needsWrite()) {
+                    // the disk is ahead of the before image now; keep the
+                    // cleaner from writing the older version over it
+                    page.setBeforeImage();
+                    frame.setNeedsWrite(false);
+                    unwritten--;
+                }
+            } finally {
+                frame.unpin();
+            }
+        } else if (frame.needsWrite()) {
+            writePage(page.getBeforeImage());
+            frame.setNeedsWrite(false);
+            unwritten--;
+        }
+    }
+
+    private void writePage(Page page) throws IOException {
+        long start = System.nanoTime();
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        metrics.written(1, System.nanoTime() - start);
+    }
+
+    /**
+     * Wait until the cleaner has finished writing the page, so that writes
+     * of one page never overlap, and return its frame.
+     */
+    private BufferFrame waitForWrite(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        boolean interrupted = false;
+        while (frame != null && frame.isWriting()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            frame = pageTable.get(pid);
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return frame;
+    }
+
+    /** Write every dirty page of this partition to disk. */
+    public synchronized void flushAllPages() throws IOException {
+        for (PageId pid : new ArrayList<PageId>(pageTable.keySet())) {
+            flushPage(pid);
+        }
+    }
+
+    /**
+     * Evict the pages a shrink left over the capacity of this partition, as
+     * far as they can be evicted now.
+     */
+    public synchronized void trimToCapacity() throws DbException {
+        trim(capacity);
+    }
+
+    /**
+     * Make the pages dirtied by tid the committed version on commit, or
+     * replace them with the committed version on abort. Committed pages are
+     * written to disk unless defer is set, in which case they need a write
+     * until the cleaner gets to them. Only the frames of the given pages,
+     * which must include every page tid dirtied, are looked at.
+     * <p>
+     * A HeapPage changed under record locks may hold the changes of other
+     * transactions too, so only tid's changes are installed in its before
+     * image, the committed version, or undone.
+     * <p>
+     * The committed versions a commit replaces are saved in versions first,
+     * for the snapshots older than the commit.
+     *
+     * @param committed the number versions gave the commit
+     */
+    public synchronized void transactionComplete(TransactionId tid, List<PageId> pids,
+            boolean commit, boolean defer, VersionStore versions, long committed)
+            throws IOException {
+        List<PageId> forced = new ArrayList<PageId>();
+        for (PageId written : pids) {
+            BufferFrame frame = pageTable.get(written);
+            if (frame == null)
+                continue;
+            if (frame.getPage() instanceof HeapPage
+                    && ((HeapPage) frame.getPage()).hasRecordChanges(tid)) {
+                HeapPage page = (HeapPage) frame.getPage();
+                if (commit) {
+                    versions.save(page, committed);
+                    page.commitRecords(tid);
+                    if (!frame.needsWrite()) {
+                        frame.setNeedsWrite(true);
+                        unwritten++;
+                    }
+                    if (!defer)
+                        forced.add(written);
+                } else {
+                    page.abortRecords(tid);
+                }
+            } else if (tid.equals(frame.isDirty())) {
+                Page page = frame.getPage();
+                PageId pid = page.getId();
+                if (commit) {
+                    versions.save(page, committed);
+                    page.markDirty(false, null);
+                    page.setBeforeImage();
+                    if (!frame.needsWrite()) {
+                        frame.setNeedsWrite(true);
+                        unwritten++;
+                    }
+                    if (!defer)
+                        forced.add(pid);
+                } else if (frame.needsWrite() || frame.isWriting()) {
+                    // the disk does not have the committed version yet
+                    frame.setPage(page.getBeforeImage());
+                } else {
+                    frame.setPage(readPage(pid));
+                }
+            }
+        }
+
+        if (!forced.isEmpty()) {
+            List<Page> images = new ArrayList<Page>();
+            List<BufferFrame> frames = new ArrayList<BufferFrame>();
+            for (PageId pid : forced) {
+                BufferFrame frame = waitForWrite(pid);
+                if (frame != null && frame.needsWrite()) {
+                    frames.add(frame);
+                    images.add(frame.getPage().getBeforeImage());
+                }
+            }
+            PageCleaner.writeBatch(images, metrics);
+            for (BufferFrame frame : frames) {
+                frame.setNeedsWrite(false);
+                unwritten--;
+            }
+        }
+    }
+
+    /** @return those of the given pages of this partition that tid dirtied */
+    public synchronized List<Page> dirtiedBy(TransactionId tid, List<PageId> pids) {
+        List<Page> pages = new ArrayList<Page>();
+        for (PageId pid : pids) {
+            BufferFrame frame = pageTable.get(pid);
+            if (frame != null && (tid.equals(frame.isDirty()) || frame.getPage() instanceof HeapPage
+                    && ((HeapPage) frame.getPage()).hasRecordChanges(tid)))
+                pages.add(frame.getPage());
+        }
+        return pages;
+    }
+
+    /** @return the number of frames whose committed version is not on disk */
+    public synchronized int unwrittenPages() {
+        return unwritten;
+    }
+
+    /**
+     * Hand the committed versions of all frames that need a write to the
+     * caller, which must write them and then call finishWrites. The frames
+     * are marked as being written until then.
+     */
+    public synchronized List<Page> takeUnwritten() {
+        List<Page> images = new ArrayList<Page>();
+        for (BufferFrame frame : pageTable.values()) {
+            if (frame.needsWrite() && !frame.isWriting()) {
+                frame.setWriting(true);
+                frame.setNeedsWrite(false);
+                unwritten--;
+                images.add(frame.getPage().getBeforeImage());
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Clear the marks set by takeUnwritten. If the write failed the frames
+     * need a write again.
+     */
+    public synchronized void finishWrites(List<Page> images, boolean written) {
+        for (Page image : images) {
+            BufferFrame frame = pageTable.get(image.getId());
+            if (frame == null || !frame.isWriting())
+                continue;
+            frame.setWriting(false);
+            if (!written && !frame.needsWrite()) {
+                frame.setNeedsWrite(true);
+                unwritten++;
+            }
+        }
+        notifyAll();
+    }
+
+    /** @return a snapshot of the ids of the pages resident in this partition */
+    public synchronized List<PageId> residentPages() {
+        return new ArrayList<PageId>(pageTable.keySet());
+    }
+
+    /** Add the access count of every resident page to counts. */
+    public synchronized void accessCounts(Map<PageId, Integer> counts) {
+        for (Map.Entry<PageId, BufferFrame> e : pageTable.entrySet())
+            counts.put(e.getKey(), e.getValue().getAccesses());
+    }
+
+    /**
+     * Read the page into a free frame, like readAhead, if this partition
+     * has one. Pages already resident are never evicted for it.
+     *
+     * @return the page, or null if it was not read
+     */
+    public Page preload(PageId pid) {
+        synchronized (this) {
+            if (pageTable.size() >= capacity)
+                return null;
+        }
+        return readAhead(pid, null);
+    }
+
+    /**
+     * Evict a page chosen by the replacement policy. Only unpinned frames
+     * without uncommitted changes are offered to the policy, since we are
+     * NO STEAL, and frames that need a write only if no other frame is left.
+     * Frames the cleaner is writing become evictable when it is done, so
+     * if only those are left we wait for it.
+     */
+    private void evictPage() throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                PageId pid = policy.chooseVictim(evictable);
+                if (pid == null) {
+                    pid = policy.chooseVictim(committed);
+                }
+                if (pid != null) {
+                    evict(pid);
+                    // after a shrink more than one page may have to go
+                    trim(capacity - 1);
+                    return;
+                }
+                if (!writing()) {
+                    throw new DbException("no clean pages in evictpage()");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Evict pages chosen by the replacement policy, as evictPage does, until
+     * at most target pages are resident or no more can be evicted without
+     * waiting.
+     */
+    private void trim(int target) throws DbException {
+        while (pageTable.size() > target) {
+            PageId pid = policy.chooseVictim(evictable);
+            if (pid == null) {
+                pid = policy.chooseVictim(committed);
+            }
+            if (pid == null) {
+                return;
+            }
+            evict(pid);
+        }
+    }
+
+    /** @return true if the cleaner is writing a page of this partition */
+    private boolean writing() {
+        for (BufferFrame frame : pageTable.values()) {
+            if (frame.isWriting())
+                return true;
+        }
+        return false;
+    }
+
+    /** Write back the page if it needs a write, and remove it. */
+    private void evict(PageId pid) throws DbException {
+        try {
+            flushPage(pid);
+        } catch (IOException e) {
+            throw new DbException("could not write back " + pid + ": " + e.getMessage());
+        }
+        pageTable.remove(pid);
+        policy.pageRemoved(pid);
+        metrics.evicted();
+    }
+}
@@ -1,14 +1,16 @@
 package simpledb;
 
-import org.omg.PortableServer.LIFESPAN_POLICY_ID;
-
 import java.io.*;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -18,8 +20,66 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages are found through a page table that maps each PageId to the
+ * BufferFrame holding it, so looking up a page costs O(1) regardless of the
+ * size of the pool. Which page to evict is decided by a pluggable
+ * ReplacementPolicy chosen when the pool is built.
+ * <p>
+ * The frames are split into BufferPartitions, each with its own latch, page
+ * table and replacement policy; a page always lives in the partition chosen
+ * by the hash code of its PageId. Page locks are acquired before any
+ * partition is entered, so a transaction waiting for a lock does not keep
+ * other transactions from reading pages. A transaction locks a page S or X
+ * after locking its table IS or IX, unless it holds S or X on the whole
+ * table (see lockTable()), which covers all of the table's pages. A
+ * request that conflicts with the holders of a lock waits in the
+ * LockTable's queue for that page or table and is woken when it is
+ * granted. When a request closes a cycle of waiting
+ * transactions, the LockTable aborts one transaction of the cycle; a
+ * transaction that waits longer than the lock timeout is aborted too.
+ * Pools can be built to prevent deadlocks by transaction age instead
+ * (wait-die or wound-wait, see LockTable.DeadlockPolicy).
+ * <p>
+ * With record locking turned on, HeapFiles lock single tuples instead of
+ * pages: they fetch pages through getRecordPage(), which locks the page IS
+ * or IX, and lock each tuple they read or write S or X with lockRecord(),
+ * so transactions that touch different tuples of a page do not wait for
+ * each other. The page itself is only latched while a tuple is read or
+ * changed (see HeapFile), and its frame is pinned meanwhile so that the
+ * change is made to the resident version. A HeapPage remembers which
+ * transaction made each uncommitted change, so commit installs and abort
+ * undoes the changes of one transaction while the others stay pending.
+ * <p>
+ * Pages are written back at commit by default (FORCE), in batches sorted by
+ * file and page number. Once a PageCleaner is started, transactions whose
+ * updates were logged through flushPages leave their pages to the cleaner
+ * instead, which keeps a target fraction of the frames clean in the
+ * background. Uncommitted changes never reach the disk (NO STEAL).
+ * <p>
+ * A read-only transaction can run as a snapshot instead (see
+ * beginSnapshot()). It takes no locks and reads every page as of its
+ * start: the committed version, or an older one that the commits since
+ * have saved in the pool's VersionStore. Snapshots neither wait for
+ * writers nor make them wait.
+ * <p>
+ * Bulk operations over tables that do not fit in the pool read through a
+ * BufferAccessStrategy, which keeps them to a small ring of frames so that
+ * they do not push the pages of other transactions out of the pool.
+ * Loads of many tuples into a heap file can bypass the pool altogether
+ * (see bulkLoad()).
+ * <p>
+ * What the pool does is counted in its BufferPoolMetrics, and the lock
+ * waits of its transactions by page and table in a ContentionProfiler. The resident
+ * pages, hottest first, can be saved and preloaded after a restart with
+ * WarmStart.
+ * <p>
+ * The pool can be resized while it is in use, in pages or in bytes. The
+ * number of partitions stays the same; their capacities change. A pool
+ * that shrinks evicts what it can right away and the rest as the pages
+ * become evictable.
  *
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -31,20 +91,412 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    private int numPage;
-    private List<Page> pages;
-    private LockTable lockTable;
-    private ReentrantReadWriteLock rtlock=new ReentrantReadWriteLock();
+
+    /** Minimum number of pages per partition when the count is chosen automatically. */
+    public static final int MIN_PARTITION_PAGES = 1024;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Default time a transaction waits for a page lock before it aborts (see
+     * LockTable). Deadlocks are detected, so this only bounds waits for
+     * transactions that take very long or never finish.
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Default number of page locks a transaction may hold in one table
+     * before they are escalated to a table lock.
+     */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * Default number of record locks a transaction may hold in one page
+     * before they are escalated to a page lock.
+     */
+    public static final int DEFAULT_RECORD_ESCALATION_THRESHOLD = 64;
+
+    /** Replacement policy used by pools built without an explicit one. */
+    private static ReplacementPolicy.Factory defaultPolicy = ReplacementPolicy.Kind.CLOCK;
+
+    private volatile int numPage;
+    private final BufferPartition[] partitions;
+    private final LockTable lockTable;
+    private volatile long lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
+    private volatile int lockEscalationThreshold = DEFAULT_LOCK_ESCALATION_THRESHOLD;
+    private volatile int recordEscalationThreshold = DEFAULT_RECORD_ESCALATION_THRESHOLD;
+    private volatile boolean recordLocking;
+    private final BufferPoolMetrics metrics;
+    private volatile PageCleaner cleaner;
+    /**
+     * The pages each transaction fetched READ_WRITE: the only ones it can
+     * have dirtied, and so the only ones its commit or abort looks at.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets =
+            new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    /** Transactions whose updates flushPages has written to the log. */
+    private final Set<TransactionId> loggedTransactions =
+            Collections.synchronizedSet(new HashSet<TransactionId>());
+    /** Old page versions kept for snapshot transactions. */
+    private final VersionStore versions = new VersionStore();
+    /** The bulk loads of each transaction, oldest first. */
+    private final ConcurrentHashMap<TransactionId, List<HeapFile.BulkLoad>> bulkLoads =
+            new ConcurrentHashMap<TransactionId, List<HeapFile.BulkLoad>>();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * default replacement policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, defaultPolicy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy that chooses which
+     *            pages to evict, e.g. one of the ReplacementPolicy.Kind values
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Factory policyFactory) {
+        this(numPages, policyFactory, defaultPartitions(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions independently latched partitions of (nearly) equal size.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy of each partition
+     * @param numPartitions the number of partitions, between 1 and numPages
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Factory policyFactory, int numPartitions) {
+        this(numPages, policyFactory, numPartitions, LockTable.DeadlockPolicy.DETECT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * default replacement policy and partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param deadlockPolicy how deadlocks among transactions are detected
+     *            or prevented
+     */
+    public BufferPool(int numPages, LockTable.DeadlockPolicy deadlockPolicy) {
+        this(numPages, defaultPolicy, defaultPartitions(numPages), deadlockPolicy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions independently latched partitions of (nearly) equal size.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy of each partition
+     * @param numPartitions the number of partitions, between 1 and numPages
+     * @param deadlockPolicy how deadlocks among transactions are detected
+     *            or prevented
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Factory policyFactory, int numPartitions,
+            LockTable.DeadlockPolicy deadlockPolicy) {
         // some code goes here
+        if (numPartitions < 1 || numPartitions > Math.max(numPages, 1))
+            throw new IllegalArgumentException("cannot split " + numPages
+                    + " pages into " + numPartitions + " partitions");
         this.numPage=numPages;
-        pages=new ArrayList<Page>();
-        lockTable=new LockTable();
+        metrics=new BufferPoolMetrics(this);
+        partitions=new BufferPartition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            partitions[i] = new BufferPartition(capacity, policyFactory, metrics);
+        }
+        lockTable=new LockTable(deadlockPolicy);
+    }
+
+    /**
+     * The number of partitions used when none is given: one per processor,
+     * but never so many that a partition holds fewer than
+     * MIN_PARTITION_PAGES pages, so that small pools stay a single
+     * partition and evict exactly like an unpartitioned pool.
+     */
+    public static int defaultPartitions(int numPages) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, numPages / MIN_PARTITION_PAGES));
+    }
+
+    /** @return the maximum number of pages in this pool */
+    public int getNumPages() {
+        return numPage;
+    }
+
+    /** @return the maximum number of bytes of page data in this pool */
+    public long getSizeBytes() {
+        return (long) numPage * getPageSize();
+    }
+
+    /** @return the number of whole pages that fit in the given number of bytes */
+    public static int pagesForBytes(long bytes) {
+        return (int) Math.min(bytes / getPageSize(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Change the maximum number of pages in this pool. Growing takes effect
+     * at once. Shrinking evicts pages until the pool fits, writing back
+     * those that need a write; pages that cannot be evicted yet (uncommitted
+     * changes, pins, pages being written) stay until they can.
+     *
+     * @param numPages the new maximum, at least the number of partitions
+     * @throws IllegalArgumentException if numPages is less than the number
+     *             of partitions
+     * @throws DbException if a page could not be written back
+     */
+    public void resize(int numPages) throws DbException {
+        if (numPages < partitions.length)
+            throw new IllegalArgumentException("cannot split " + numPages
+                    + " pages into " + partitions.length + " partitions");
+        synchronized (partitions) {
+            numPage = numPages;
+            for (int i = 0; i < partitions.length; i++) {
+                int capacity = numPages / partitions.length + (i < numPages % partitions.length ? 1 : 0);
+                partitions[i].setCapacity(capacity);
+            }
+        }
+    }
+
+    /**
+     * Change the size of this pool to as many pages as fit in the given
+     * number of bytes.
+     *
+     * @see #resize(int)
+     */
+    public void resizeBytes(long bytes) throws DbException {
+        resize(pagesForBytes(bytes));
+    }
+
+    /** @return the counters and latency histograms of this pool */
+    public BufferPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** @return a snapshot of the ids of the pages resident in this pool */
+    public List<PageId> residentPages() {
+        List<PageId> pids = new ArrayList<PageId>();
+        for (BufferPartition partition : partitions) {
+            pids.addAll(partition.residentPages());
+        }
+        return pids;
+    }
+
+    /**
+     * @return a snapshot of the ids of the pages resident in this pool, the
+     *         most often requested first
+     */
+    public List<PageId> hotPages() {
+        final Map<PageId, Integer> counts = new HashMap<PageId, Integer>();
+        for (BufferPartition partition : partitions) {
+            partition.accessCounts(counts);
+        }
+        List<PageId> pids = new ArrayList<PageId>(counts.keySet());
+        Collections.sort(pids, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                return Integer.compare(counts.get(b), counts.get(a));
+            }
+        });
+        return pids;
+    }
+
+    /** @return the shortest time a transaction waits for a page lock before it aborts, in milliseconds */
+    public long getLockTimeout() {
+        return lockTimeoutMillis;
+    }
+
+    /** Set the shortest time a transaction waits for a page lock before it aborts. */
+    public void setLockTimeout(long millis) {
+        this.lockTimeoutMillis = millis;
+    }
+
+    /** @return true if HeapFiles lock single tuples rather than pages */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Make HeapFiles lock the tuples they read and write rather than whole
+     * pages. Only change this while no transaction is running.
+     * <p>
+     * Record locking cannot be combined with a PageCleaner: flushPages logs
+     * whole pages as the after image of one transaction, and under record
+     * locking a page may also hold other transactions' uncommitted tuples.
+     *
+     * @throws IllegalStateException if a PageCleaner is running
+     */
+    public synchronized void setRecordLocking(boolean recordLocking) {
+        if (recordLocking && cleaner != null)
+            throw new IllegalStateException("record locking cannot be used with a page cleaner");
+        this.recordLocking = recordLocking;
+    }
+
+    /** @return the number of record locks in one page above which a transaction escalates them */
+    public int getRecordEscalationThreshold() {
+        return recordEscalationThreshold;
+    }
+
+    /**
+     * Set the number of record locks a transaction may hold in one page
+     * before they are escalated to a page lock; 0 turns escalation off.
+     */
+    public void setRecordEscalationThreshold(int records) {
+        this.recordEscalationThreshold = records;
+    }
+
+    /** @return the number of page locks in one table above which a transaction escalates them */
+    public int getLockEscalationThreshold() {
+        return lockEscalationThreshold;
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold in one table
+     * before they are escalated to a table lock; 0 turns escalation off.
+     */
+    public void setLockEscalationThreshold(int pages) {
+        this.lockEscalationThreshold = pages;
+    }
+
+    /** @return how this pool detects or prevents deadlocks */
+    public LockTable.DeadlockPolicy getDeadlockPolicy() {
+        return lockTable.getDeadlockPolicy();
+    }
+
+    /** Choose which transaction of a deadlock is aborted, when deadlocks are detected. */
+    public void setVictimPolicy(LockTable.VictimPolicy policy) {
+        lockTable.setVictimPolicy(policy);
+    }
+
+    /**
+     * @return the number of deadlocks found among the transactions of this
+     *         pool, or the number of lock requests failed to prevent them
+     */
+    public long getDeadlocks() {
+        return lockTable.getDeadlocks();
+    }
+
+    /** @return the profile of the lock waits of this pool's transactions, by page and table */
+    public ContentionProfiler getContention() {
+        return lockTable.getContention();
+    }
+
+    /** @return the number of partitions of this pool */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Return a strategy for a bulk operation over a table with the given
+     * number of pages, or null if the table fits in this pool and is better
+     * cached as a whole. The ring holds DEFAULT_RING_PAGES frames, or an
+     * eighth of the pool if that is less.
+     *
+     * @param kind the operation the strategy is used for
+     * @param tablePages the number of pages of the table
+     */
+    public BufferAccessStrategy getStrategy(BufferAccessStrategy.Kind kind, int tablePages) {
+        if (!BufferAccessStrategy.isEnabled() || tablePages <= numPage)
+            return null;
+        int ringPages = Math.max(1, Math.min(BufferAccessStrategy.DEFAULT_RING_PAGES, numPage / 8));
+        return new BufferAccessStrategy(kind, ringPages, partitions.length);
+    }
+
+    private BufferPartition partitionFor(PageId pid) {
+        return partitions[Math.floorMod(pid.hashCode(), partitions.length)];
+    }
+
+    /**
+     * Start a background PageCleaner for this pool. From then on, pages of
+     * transactions that commit through Transaction.commit are written back
+     * by the cleaner rather than at commit.
+     * <p>
+     * This trades FORCE for NO FORCE. A commit is then durable through the
+     * log alone: flushPages forces UPDATE records with the pages' after
+     * images before the COMMIT record, and the pages themselves may still
+     * be in the pool when the system crashes. After a crash the database
+     * must be restarted with LogFile.recover(), which redoes committed
+     * transactions from the log; one opened without recovery loses the
+     * commits the cleaner had not written yet.
+     *
+     * @param cleanTarget the fraction of frames the cleaner keeps free of
+     *            unwritten pages; see PageCleaner.DEFAULT_CLEAN_TARGET
+     * @param intervalMillis the longest time between two rounds of the
+     *            cleaner; see PageCleaner.DEFAULT_INTERVAL_MILLIS
+     * @throws IllegalStateException if a cleaner is already running, or
+     *             record locking is on; see setRecordLocking
+     */
+    public synchronized void startCleaner(double cleanTarget, long intervalMillis) {
+        if (cleaner != null)
+            throw new IllegalStateException("page cleaner already running");
+        if (recordLocking)
+            throw new IllegalStateException("a page cleaner cannot be used with record locking");
+        PageCleaner c = new PageCleaner(this, cleanTarget, intervalMillis);
+        c.start();
+        cleaner = c;
+    }
+
+    /**
+     * Stop the PageCleaner, if one runs, and write back every page it has
+     * not written yet.
+     */
+    public synchronized void stopCleaner() throws IOException {
+        if (cleaner == null)
+            return;
+        cleaner.shutdown();
+        cleaner = null;
+        writeUnwrittenPages();
+    }
+
+    /**
+     * Write back every committed page that has not been written yet, in one
+     * batch per file.
+     *
+     * @return the number of pages written
+     */
+    public int writeUnwrittenPages() throws IOException {
+        // the log records of these pages were forced before their commit
+        // returned; forcing again is cheap and guards the WAL rule
+        Database.getLogFile().force();
+        List<List<Page>> taken = new ArrayList<List<Page>>(partitions.length);
+        List<Page> images = new ArrayList<Page>();
+        for (BufferPartition partition : partitions) {
+            List<Page> part = partition.takeUnwritten();
+            taken.add(part);
+            images.addAll(part);
+        }
+        boolean written = false;
+        try {
+            PageCleaner.writeBatch(images, metrics);
+            written = true;
+        } finally {
+            for (int i = 0; i < partitions.length; i++) {
+                partitions[i].finishWrites(taken.get(i), written);
+            }
+        }
+        return images.size();
+    }
+
+    /** @return the number of committed pages that have not been written yet */
+    public int unwrittenPages() {
+        int n = 0;
+        for (BufferPartition partition : partitions) {
+            n += partition.unwrittenPages();
+        }
+        return n;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setDefaultReplacementPolicy(ReplacementPolicy.Factory policyFactory) {
+        BufferPool.defaultPolicy = policyFactory;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetDefaultReplacementPolicy() {
+        BufferPool.defaultPolicy = ReplacementPolicy.Kind.CLOCK;
     }
 
     public static int getPageSize() {
@@ -79,51 +531,416 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        synchronized (this) {
-            if (perm == Permissions.READ_WRITE) {
-                boolean result = lockTable.addXlock(pid, tid);
-                int roundtimes=0;
-                while (!result) {
-                    try {
-                        if (roundtimes==2){
-                            throw new TransactionAbortedException();
-                        }
-                        Thread.sleep(500);
-                        result = lockTable.addXlock(pid, tid);
-                        roundtimes++;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } else if (perm == Permissions.READ_ONLY) {
-                boolean result = lockTable.addSlock(pid, tid);
-                int roundtimes=0;
-                while (!result) {
-                    try {
-                        if (roundtimes==1){
-                            throw new TransactionAbortedException();
-                        }
-                        Thread.sleep(500);
-                        result = lockTable.addSlock(pid, tid);
-                        roundtimes++;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            for (int i = 0; i < pages.size(); i++) {
-                if (pages.get(i).getId().equals(pid)) {
-                    return pages.get(i);
-                }
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * getPage(tid, pid, perm), on behalf of a bulk operation. If the page is
+     * not resident it is read into the strategy's ring.
+     *
+     * @param strategy the strategy of the operation, or null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy) throws TransactionAbortedException, DbException {
+        long start = versions.startOf(tid);
+        if (start >= 0)
+            return getVersion(tid, pid, perm, start, strategy);
+        // wait for the lock before entering the partition, so that no latch
+        // is held while we sleep
+        acquireLock(tid, pid, perm);
+        if (perm == Permissions.READ_WRITE)
+            writeSetOf(tid).add(pid);
+        return partitionFor(pid).getPage(pid, strategy);
+    }
+
+    /**
+     * Retrieve the specified page like getPage(), but only if its lock can
+     * be granted without waiting, e.g. by a thread that holds latches.
+     *
+     * @return the page, or null if tid would have to wait for the lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws DbException {
+        return tryGetPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like tryGetPage(tid, pid, perm), on
+     * behalf of a bulk operation.
+     *
+     * @param strategy the strategy of the operation, or null
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy) throws DbException {
+        long start = versions.startOf(tid);
+        if (start >= 0)
+            return getVersion(tid, pid, perm, start, strategy);
+        if (!tryAcquireLock(tid, pid, perm))
+            return null;
+        if (perm == Permissions.READ_WRITE)
+            writeSetOf(tid).add(pid);
+        return partitionFor(pid).getPage(pid, strategy);
+    }
+
+    /**
+     * Start tid as a read-only snapshot transaction. Until it completes, tid
+     * takes no locks, and getPage() returns the version of each page that
+     * was committed when it started; those pages must not be changed. A
+     * snapshot starts once the commits in progress are done.
+     *
+     * @throws TransactionAbortedException if interrupted while waiting for
+     *             the commits in progress
+     */
+    public void beginSnapshot(TransactionId tid) throws TransactionAbortedException {
+        versions.begin(tid);
+    }
+
+    /** @return true if tid was started with beginSnapshot() and has not completed */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    /** @return the number of old page versions kept for snapshot transactions */
+    public int snapshotVersions() {
+        return versions.size();
+    }
+
+    private Page getVersion(TransactionId tid, PageId pid, Permissions perm, long start,
+            BufferAccessStrategy strategy) throws DbException {
+        if (perm == Permissions.READ_WRITE)
+            throw new DbException("snapshot transaction " + tid + " cannot write " + pid);
+        return partitionFor(pid).getVersion(pid, start, versions, strategy);
+    }
+
+    /**
+     * Keep the committed version of the page for the running snapshots,
+     * because tid is about to discard it and overwrite the page on disk, as
+     * BTreeFile does when it reuses a free page. Only a resident version
+     * needs keeping: a page freed by an earlier commit had its version
+     * saved by that commit, while one tid freed itself is still dirty.
+     */
+    public void retirePage(TransactionId tid, PageId pid) {
+        if (!versions.hasSnapshots())
+            return;
+        Page committed = partitionFor(pid).getCommitted(pid);
+        if (committed != null)
+            versions.retire(tid, committed);
+    }
+
+    /**
+     * Retrieve the specified page without locking it, for an access method
+     * that protects the page with a latch of its own while it reads it, as
+     * BTreeFile does for the internal pages of a tree.
+     */
+    public Page getLatchedPage(PageId pid) throws DbException {
+        return partitionFor(pid).getPage(pid, null);
+    }
+
+    /**
+     * Bring the specified page into the pool without locking it, because a
+     * scan is expected to ask for it soon. The page is admitted only if a
+     * frame can be freed without writing a page.
+     *
+     * @return the page, or null if another thread is already reading it
+     * @see ReadAhead
+     */
+    public Page readAhead(PageId pid) {
+        return readAhead(pid, null);
+    }
+
+    /**
+     * Bring the specified page into the strategy's ring without locking it,
+     * like readAhead(pid).
+     *
+     * @param strategy the strategy of the scan, or null
+     */
+    public Page readAhead(PageId pid, BufferAccessStrategy strategy) {
+        return partitionFor(pid).readAhead(pid, strategy);
+    }
+
+    /**
+     * Bring the specified page into the pool without locking it, like
+     * readAhead, but only into a free frame: no resident page is evicted.
+     *
+     * @return the page, or null if it was not read
+     * @see WarmStart
+     */
+    public Page preload(PageId pid) {
+        return partitionFor(pid).preload(pid);
+    }
+
+    /**
+     * Start a bulk load of tuples into the heap file tableId on behalf of
+     * tid, which locks the whole table X for it. The tuples go to new pages
+     * at the end of the file, which are written straight to disk as they
+     * fill up, without going through the pool or the log, and forced when
+     * the load finishes, at the latest by flushPages or the commit; free
+     * space in the table's existing pages is not reused. If tid aborts, the
+     * file is truncated back to where the load began. Until tid commits,
+     * other transactions, snapshots included, do not see the new pages.
+     * <p>
+     * Before the load writes anything, a record of where it begins is
+     * forced to the log (see LogFile#logBulkLoad), so that rollback and
+     * recovery can truncate the file if tid does not commit.
+     *
+     * @throws DbException if tid is a snapshot, the table is not a
+     *             writable heap file, or the log cannot be written
+     * @throws TransactionAbortedException if waiting for the table lock
+     *             aborts tid
+     */
+    public HeapFile.BulkLoad bulkLoad(TransactionId tid, int tableId)
+            throws DbException, TransactionAbortedException {
+        if (versions.isSnapshot(tid))
+            throw new DbException("snapshot transaction " + tid + " cannot write table " + tableId);
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof HeapFile))
+            throw new DbException("table " + tableId + " is not a heap file");
+        lockTable(tid, tableId, Permissions.READ_WRITE);
+        HeapFile.BulkLoad load = ((HeapFile) dbFile).bulkLoad(tid);
+        List<HeapFile.BulkLoad> loads = bulkLoads.get(tid);
+        if (loads == null) {
+            List<HeapFile.BulkLoad> created = Collections.synchronizedList(new ArrayList<HeapFile.BulkLoad>());
+            loads = bulkLoads.putIfAbsent(tid, created);
+            if (loads == null)
+                loads = created;
+        }
+        loads.add(load);
+        try {
+            Database.getLogFile().logBulkLoad(tid, tableId, load.getStartLength());
+        } catch (IOException e) {
+            throw new DbException("could not log bulk load into table " + tableId + ": " + e.getMessage());
+        }
+        return load;
+    }
+
+    /** Write what is left of the bulk loads of tid to disk and force it. */
+    private void finishBulkLoads(List<HeapFile.BulkLoad> loads) throws IOException {
+        synchronized (loads) {
+            for (HeapFile.BulkLoad load : loads)
+                load.finish();
+        }
+    }
+
+    /** Complete the bulk loads of tid, newest first. */
+    private void completeBulkLoads(List<HeapFile.BulkLoad> loads, boolean commit, long committed)
+            throws IOException {
+        for (int i = loads.size() - 1; i >= 0; i--)
+            loads.get(i).complete(commit, versions, committed);
+    }
+
+    private Set<PageId> writeSetOf(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        if (pids == null) {
+            Set<PageId> created = ConcurrentHashMap.newKeySet();
+            pids = writeSets.putIfAbsent(tid, created);
+            if (pids == null)
+                pids = created;
+        }
+        return pids;
+    }
+
+    /** @return the pages of tid's write set, grouped by partition */
+    private List<List<PageId>> writeSetByPartition(Set<PageId> writeSet) {
+        List<List<PageId>> byPartition = new ArrayList<List<PageId>>(partitions.length);
+        for (int i = 0; i < partitions.length; i++)
+            byPartition.add(new ArrayList<PageId>());
+        if (writeSet != null) {
+            for (PageId pid : writeSet)
+                byPartition.get(Math.floorMod(pid.hashCode(), partitions.length)).add(pid);
+        }
+        return byPartition;
+    }
+
+    /**
+     * Retrieve the specified page, like getPage(), for a transaction that
+     * goes on to lock single records of it with lockRecord(): the page is
+     * locked IS or IX rather than S or X. The page's frame is pinned, so
+     * that it stays resident, until unpinPage() is called.
+     *
+     * @param strategy the strategy of the operation, or null
+     */
+    public Page getRecordPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy) throws TransactionAbortedException, DbException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        acquireLock(tid, pid, exclusive, exclusive ? LockTable.Mode.IX : LockTable.Mode.IS);
+        if (exclusive)
+            writeSetOf(tid).add(pid);
+        return partitionFor(pid).getPinned(pid, strategy);
+    }
+
+    /** Release the pin getRecordPage() put on the page's frame. */
+    public void unpinPage(PageId pid) {
+        partitionFor(pid).unpin(pid);
+    }
+
+    /**
+     * Lock the record for tid, S for READ_ONLY or X for READ_WRITE, unless
+     * a lock tid holds on its page or table covers it. The page must have
+     * been fetched with getRecordPage(), which takes the intention locks.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or waited longer than the lock timeout
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        if (coversRecord(tid, rid, exclusive))
+            return;
+        if (!lockTable.tryAcquireRecord(tid, rid, exclusive)) {
+            long start = System.nanoTime();
+            try {
+                lockTable.acquireRecord(tid, rid, exclusive, lockTimeoutMillis);
+            } finally {
+                metrics.lockWaited(System.nanoTime() - start);
             }
-            if (pages.size() == numPage) {
-                //pages.remove(pages.size()-1);
-                evictPage();
+        }
+        recordLocked(tid, rid);
+    }
+
+    /**
+     * Lock the record X for tid if that does not have to wait, e.g. to
+     * claim an empty slot for an insert.
+     *
+     * @return true if tid now holds an X lock covering the record
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        if (coversRecord(tid, rid, true))
+            return true;
+        if (!lockTable.tryAcquireRecord(tid, rid, true))
+            return false;
+        recordLocked(tid, rid);
+        return true;
+    }
+
+    /**
+     * Escalate the record locks tid holds in the page of rid to a page lock
+     * past the threshold, and retry every threshold records if other
+     * transactions' locks on the page kept it from succeeding.
+     */
+    private void recordLocked(TransactionId tid, RecordId rid) {
+        int threshold = recordEscalationThreshold;
+        if (threshold > 0) {
+            int n = lockTable.recordLockCount(tid, rid.getPageId());
+            if (n > threshold && (n - 1) % threshold == 0)
+                metrics.lockEscalated(lockTable.escalateRecords(tid, rid.getPageId()));
+        }
+    }
+
+    private boolean coversRecord(TransactionId tid, RecordId rid, boolean exclusive) {
+        LockTable.Mode mode = LockTable.Mode.of(exclusive);
+        LockTable.Mode held = lockTable.tableMode(tid, rid.getPageId().getTableId());
+        if (held != null && held.covers(mode))
+            return true;
+        held = lockTable.pageMode(tid, rid.getPageId());
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * Lock the page for tid: take IS or IX on its table, then S or X on the
+     * page, unless tid's lock on the table already covers the page. A
+     * transaction that ends up holding more page locks in the table than
+     * the escalation threshold tries to trade them for a table lock.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        acquireLock(tid, pid, exclusive, LockTable.Mode.of(exclusive));
+    }
+
+    /**
+     * Lock the page in the given mode, S or X, or IS or IX to lock records
+     * of it, as acquireLock(tid, pid, perm) does.
+     */
+    private void acquireLock(TransactionId tid, PageId pid, boolean exclusive,
+            LockTable.Mode mode) throws TransactionAbortedException {
+        int tableId = pid.getTableId();
+        LockTable.Mode held = lockTable.tableMode(tid, tableId);
+        if (held != null && held.covers(LockTable.Mode.of(exclusive)))
+            return;
+        LockTable.Mode intention = exclusive ? LockTable.Mode.IX : LockTable.Mode.IS;
+        if (held == null || !held.covers(intention))
+            acquireTableLock(tid, tableId, intention);
+        if (!lockTable.tryAcquire(tid, pid, mode)) {
+            long start = System.nanoTime();
+            try {
+                lockTable.acquire(tid, pid, mode, lockTimeoutMillis);
+            } finally {
+                metrics.lockWaited(System.nanoTime() - start);
             }
-            DbFile dbf = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            pages.add(dbf.readPage(pid));
-            return pages.get(pages.size() - 1);
         }
+        pageLocked(tid, tableId);
+    }
+
+    /**
+     * Lock the page S or X for tid like acquireLock(tid, pid, perm), if
+     * neither the page lock nor the intention lock on its table has to wait.
+     *
+     * @return true if tid now holds a lock covering the page
+     */
+    private boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm) {
+        LockTable.Mode mode = LockTable.Mode.of(perm == Permissions.READ_WRITE);
+        int tableId = pid.getTableId();
+        LockTable.Mode held = lockTable.tableMode(tid, tableId);
+        if (held != null && held.covers(mode))
+            return true;
+        LockTable.Mode intention = mode == LockTable.Mode.X ? LockTable.Mode.IX : LockTable.Mode.IS;
+        if ((held == null || !held.covers(intention))
+                && !lockTable.tryAcquireTable(tid, tableId, intention))
+            return false;
+        if (!lockTable.tryAcquire(tid, pid, mode))
+            return false;
+        pageLocked(tid, tableId);
+        return true;
+    }
+
+    /**
+     * Escalate the page locks tid holds in the table to a table lock past
+     * the threshold, and retry every threshold pages if other transactions'
+     * locks on the table kept it from succeeding.
+     */
+    private void pageLocked(TransactionId tid, int tableId) {
+        int threshold = lockEscalationThreshold;
+        if (threshold > 0) {
+            int n = lockTable.pageLockCount(tid, tableId);
+            if (n > threshold && (n - 1) % threshold == 0)
+                metrics.lockEscalated(lockTable.escalate(tid, tableId));
+        }
+    }
+
+    /**
+     * Lock a whole table for tid: S for READ_ONLY, X for READ_WRITE. The
+     * pages of the table are then read (or written) without locking each of
+     * them, which is what a scan of the whole table wants; other
+     * transactions can still lock the pages compatible with it.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or waited longer than the lock timeout
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        // snapshots read without locks, and cannot write
+        if (versions.isSnapshot(tid))
+            return;
+        acquireTableLock(tid, tableId,
+                perm == Permissions.READ_WRITE ? LockTable.Mode.X : LockTable.Mode.S);
+    }
+
+    private void acquireTableLock(TransactionId tid, int tableId, LockTable.Mode mode)
+            throws TransactionAbortedException {
+        if (lockTable.tryAcquireTable(tid, tableId, mode))
+            return;
+        long start = System.nanoTime();
+        try {
+            lockTable.acquireTable(tid, tableId, mode, lockTimeoutMillis);
+        } finally {
+            metrics.lockWaited(System.nanoTime() - start);
+        }
+    }
+
+    /** @return the mode tid holds the lock of the table in, or null if it holds none */
+    public LockTable.Mode getTableLockMode(TransactionId tid, int tableId) {
+        return lockTable.tableMode(tid, tableId);
     }
 
     /**
@@ -152,11 +969,24 @@ public class BufferPool {
         transactionComplete(tid,true);
     }
 
-    /** Return true if the specified transaction has a lock on the specified page */
+    /**
+     * Return true if the specified transaction has a lock on the specified
+     * page, or a lock on its table that covers the page. An intention lock
+     * taken to lock records of the page does not count.
+     */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return lockTable.holdLock(p,tid);
+        LockTable.Mode held = lockTable.pageMode(tid, p);
+        if (held != null && held.covers(LockTable.Mode.S))
+            return true;
+        held = lockTable.tableMode(tid, p.getTableId());
+        return held != null && held.covers(LockTable.Mode.S);
+    }
+
+    /** @return true if tid holds a lock on the record, or on its page or table, that covers reading it */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return lockTable.recordMode(tid, rid) != null || coversRecord(tid, rid, false);
     }
 
     /**
@@ -170,22 +1000,50 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.end(tid))
+            return;
 
-        for (int i=0;i<pages.size();i++){
-            if (pages.get(i).isDirty()==tid){
-                if (commit){
-                    flushPage(pages.get(i).getId());
-                }
-                else {
-                    DbFile dbf=Database.getCatalog().getDatabaseFile(pages.get(i).getId().getTableId());
-                    pages.set(i,dbf.readPage(pages.get(i).getId()));
-                }
+        // only logged updates may stay in memory after commit
+        boolean defer = loggedTransactions.remove(tid) && commit && cleaner != null;
+        // only the pages tid wrote are visited, and its locks are released
+        // in one go, so the cost depends on what tid did, not the pool size
+        Set<PageId> writeSet = writeSets.remove(tid);
+        List<List<PageId>> byPartition = writeSetByPartition(writeSet);
+        List<HeapFile.BulkLoad> loads = bulkLoads.remove(tid);
+        // bulk loaded pages are on disk before the commit begins
+        if (loads != null && commit)
+            finishBulkLoads(loads);
+        // snapshots that start during the commit wait for it, so they never
+        // see part of it
+        long committed = commit && (writeSet != null || loads != null) ? versions.beginCommit(tid) : 0;
+        if (!commit)
+            versions.abort(tid);
+        try {
+            for (int i = 0; i < partitions.length; i++) {
+                if (!byPartition.get(i).isEmpty())
+                    partitions[i].transactionComplete(tid, byPartition.get(i), commit, defer,
+                            versions, committed);
             }
+            // the pages tid bulk loaded get empty versions for the older
+            // snapshots, or go once the pages it dirtied are rolled back
+            if (loads != null)
+                completeBulkLoads(loads, commit, committed);
+        } finally {
+            if (committed > 0)
+                versions.endCommit(committed);
         }
-        for (int i=0;i<pages.size();i++){//应该先解锁再操作，否则若abort，锁
-            if (holdsLock(tid,pages.get(i).getId())){
-                releasePage(tid,pages.get(i).getId());
+        lockTable.transactionComplete(tid);
+        // pages a shrink could not evict while tid held them
+        try {
+            for (BufferPartition partition : partitions) {
+                partition.trimToCapacity();
             }
+        } catch (DbException e) {
+            throw new IOException(e.getMessage());
+        }
+        PageCleaner c = cleaner;
+        if (defer && c != null) {
+            c.pagesDeferred(unwrittenPages(), numPage);
         }
     }
 
@@ -208,33 +1066,39 @@ public class BufferPool {
             throws DbException, TransactionAbortedException, IOException {
         // some code goes here
         // not necessary for lab1
+        insertTuple(tid, tableId, t, null);
+    }
+
+    /**
+     * Add a tuple to the specified table on behalf of transaction tid, like
+     * insertTuple(tid, tableId, t). Pages a HeapFile reads while looking for
+     * free space are read into the strategy's ring.
+     *
+     * @param strategy the strategy of the insert, or null
+     */
+    public void insertTuple(TransactionId tid, int tableId, Tuple t,
+            BufferAccessStrategy strategy)
+            throws DbException, TransactionAbortedException, IOException {
         DbFile dbFile= Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> page=dbFile.insertTuple(tid,t);
-        PageId pageId;
-        Page page1;
-        if (page.size()>1) {
-            int pgNo=page.get(0).getId().getPageNumber();
-            if (page.get(0).getClass().equals(HeapPage.class)) {
-                for (int i = 0; i < page.size(); i++) {
-                    pageId = new HeapPageId(tableId, pgNo + i);
-                    byte[] pageDate = page.get(i).getPageData();
-                    page1 = new HeapPage((HeapPageId) pageId, pageDate);
-                    dbFile.writePage(page1);
-                    page.set(i, page1);
-                }
-            }
-            for (int i = 0; i < page.size(); i++) {
-                page.get(i).markDirty(true, tid);
-//                flushPage(page.get(i).getId());
-//                releasePage(tid,page.get(i).getId());
-            }
+        List<Page> page;
+        if (strategy != null && dbFile instanceof HeapFile) {
+            page=((HeapFile) dbFile).insertTuple(tid,t,strategy);
+        } else {
+            page=dbFile.insertTuple(tid,t);
         }
-        else {
-            page.get(0).markDirty(true,tid);
-//            flushPage(page.get(0).getId());
-//            releasePage(tid,page.get(0).getId());
+        // the pages stay locked and in memory until tid completes (NO STEAL)
+        for (int i = 0; i < page.size(); i++) {
+            page.get(i).markDirty(true, tid);
+            cachePage(page.get(i));
         }
+    }
 
+    /**
+     * Install a page version produced by an access method in the page table,
+     * replacing the version held by the frame if the page is resident.
+     */
+    private void cachePage(Page page) throws DbException {
+        partitionFor(page.getId()).cachePage(page);
     }
 
     /**
@@ -256,11 +1120,10 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dbFile=Database.getCatalog().getDatabaseFile(t.getRecordId().pid.getTableId());
         List<Page> page=dbFile.deleteTuple(tid,t);
-        page.get(0).markDirty(true,tid);
+        // the pages stay locked and in memory until tid completes (NO STEAL)
         for (int i = 0; i < page.size(); i++) {
             page.get(i).markDirty(true, tid);
-            flushPage(page.get(i).getId());
-            lockTable.unlock(page.get(i).getId(),tid);
+            cachePage(page.get(i));
         }
     }
 
@@ -269,11 +1132,11 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(int i=0;i<pages.size();i++){
-            flushPage(pages.get(i).getId());
+        for (BufferPartition partition : partitions) {
+            partition.flushAllPages();
         }
     }
 
@@ -285,70 +1148,49 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        int i=0;
-        for ( ;i<pages.size();i++){
-            if (pages.get(i).getId()==pid)
-                pages.remove(i);
-        }
+        partitionFor(pid).discardPage(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-
-        Page page=null;
-            for (int i=0;i<pages.size();i++) {
-                if (pages.get(i).getId() == pid) {
-                    page = pages.get(i);
-                }
-            }
-        if (page.isDirty()!=null) {
-            page.markDirty(false,null);
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-
-        }
+        partitionFor(pid).flushPage(pid);
    }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * The pages of tid's bulk loads are written and forced first, so they
+     * are on disk before a COMMIT record is. Without a PageCleaner the
+     * pages in the pool are written by transactionComplete at commit, so
+     * there is nothing else to do. With a cleaner, only UPDATE records for
+     * them are appended to the log and forced; the pages are then left to
+     * the cleaner when the transaction commits.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    }
-
-    /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
-     */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        Page page=null ;
-        int index=0;
-        for (int i=0;i<pages.size();i++){
-            if (pages.get(i).isDirty()==null){
-                page = pages.get(i);
-                index=i;
-            }
+        List<HeapFile.BulkLoad> loads = bulkLoads.get(tid);
+        if (loads != null)
+            finishBulkLoads(loads);
+        if (cleaner == null) {
+            return;
         }
-        if (page==null){
-            throw new DbException("no clean pages in evictpage()");
-        }
-        else {
-            try {
-                flushPage(page.getId());
-            } catch (IOException e) {
-                e.printStackTrace();
+        LogFile log = Database.getLogFile();
+        List<List<PageId>> byPartition = writeSetByPartition(writeSets.get(tid));
+        for (int i = 0; i < partitions.length; i++) {
+            for (Page page : partitions[i].dirtiedBy(tid, byPartition.get(i))) {
+                log.logWrite(tid, page.getBeforeImage(), page);
             }
-            pages.remove(index);
         }
+        log.force();
+        loggedTransactions.add(tid);
     }
 
 }
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the BufferPool. The Database registers the
+ * metrics of its current pool under the name simpledb:type=BufferPool, so
+ * they can be read with jconsole or any other JMX client.
+ *
+ * @see BufferPoolMetrics
+ */
+public interface BufferPoolMXBean {
+
+    /** @return the maximum number of pages in the pool */
+    public int getCapacity();
+
+    /** @return the maximum number of bytes of page data in the pool */
+    public long getCapacityBytes();
+
+    /**
+     * Resize the pool to as many pages as fit in the given number of bytes.
+     *
+     * @see BufferPool#resizeBytes(long)
+     */
+    public void setCapacityBytes(long bytes);
+
+    /** @return the number of pages currently in the pool */
+    public int getResidentPages();
+
+    /** @return the number of resident pages of each table, by table name */
+    public Map<String, Integer> getResidentPagesByTable();
+
+    /** @return the number of page requests found in the pool */
+    public long getHits();
+
+    /** @return the number of page requests that had to read the page */
+    public long getMisses();
+
+    /** @return hits / (hits + misses), or 0 before the first request */
+    public double getHitRatio();
+
+    /** @return the number of pages read ahead of a scan */
+    public long getReadAheadPages();
+
+    /** @return the number of pages evicted to make room for others */
+    public long getEvictions();
+
+    /** @return the number of pages written to disk */
+    public long getPagesWritten();
+
+    /** @return the number of page lock requests that had to wait */
+    public long getLockWaits();
+
+    /** @return the total time page lock requests spent waiting, in milliseconds */
+    public long getLockWaitMillis();
+
+    /** @return the number of times a transaction's page locks in a table were escalated to a table lock */
+    public long getLockEscalations();
+
+    /** @return the number of escalations that failed because other transactions held conflicting locks */
+    public long getFailedLockEscalations();
+
+    /** @return the number of page locks in one table above which a transaction escalates them */
+    public int getLockEscalationThreshold();
+
+    /** Set the escalation threshold; 0 turns escalation off. */
+    public void setLockEscalationThreshold(int pages);
+
+    /** @return the readPage latency histogram; see LatencyHistogram for the buckets */
+    public long[] getReadLatencyHistogram();
+
+    /** @return the writePage latency histogram; see LatencyHistogram for the buckets */
+    public long[] getWriteLatencyHistogram();
+
+    /** @return the mean readPage latency in microseconds */
+    public double getMeanReadMicros();
+
+    /** @return the mean writePage latency in microseconds */
+    public double getMeanWriteMicros();
+
+    /** Set all counters and histograms back to zero. */
+    public void reset();
+}
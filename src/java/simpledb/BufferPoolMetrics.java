@@ -0,0 +1,252 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BufferPoolMetrics counts what a BufferPool does: hits, misses, pages read
+ * ahead, evictions, pages written, time spent waiting for page locks and
+ * lock escalations,
+ * and keeps latency histograms of readPage and writePage. Each sample of
+ * the write histogram is one call that writes pages to a file, which may
+ * be a batch of several pages.
+ * <p>
+ * All counters are striped (LongAdder), so counting costs an uncontended
+ * add on the hot path and the metrics can stay on all the time. Residency
+ * is not counted but computed from the page tables when asked for.
+ *
+ * @see BufferPoolMXBean
+ * @Threadsafe
+ */
+public class BufferPoolMetrics implements BufferPoolMXBean {
+    /** Name under which the Database registers the metrics of its pool. */
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    private final BufferPool pool;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder readAhead = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder pagesWritten = new LongAdder();
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder lockEscalations = new LongAdder();
+    private final LongAdder failedLockEscalations = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public BufferPoolMetrics(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Register the given metrics with the platform MBean server under
+     * OBJECT_NAME, replacing the metrics registered before.
+     */
+    public static void register(BufferPoolMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (BufferPoolMetrics.class) {
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    /** A page request read the page, which took the given time. */
+    void miss(long readNanos) {
+        misses.increment();
+        readLatency.record(readNanos);
+    }
+
+    /** A page was read ahead, which took the given time. */
+    void readAhead(long readNanos) {
+        readAhead.increment();
+        readLatency.record(readNanos);
+    }
+
+    void evicted() {
+        evictions.increment();
+    }
+
+    /** One call wrote the given number of pages in the given time. */
+    void written(int pages, long writeNanos) {
+        pagesWritten.add(pages);
+        writeLatency.record(writeNanos);
+    }
+
+    /** A lock request waited for the given time. */
+    void lockWaited(long nanos) {
+        lockWaits.increment();
+        lockWaitNanos.add(nanos);
+    }
+
+    /** A transaction tried to escalate its page locks in a table to a table lock. */
+    void lockEscalated(boolean succeeded) {
+        (succeeded ? lockEscalations : failedLockEscalations).increment();
+    }
+
+    public int getCapacity() {
+        return pool.getNumPages();
+    }
+
+    public long getCapacityBytes() {
+        return pool.getSizeBytes();
+    }
+
+    public void setCapacityBytes(long bytes) {
+        try {
+            pool.resizeBytes(bytes);
+        } catch (DbException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public int getResidentPages() {
+        return pool.residentPages().size();
+    }
+
+    public Map<String, Integer> getResidentPagesByTable() {
+        Map<Integer, Integer> byId = new TreeMap<Integer, Integer>();
+        for (PageId pid : pool.residentPages()) {
+            Integer n = byId.get(pid.getTableId());
+            byId.put(pid.getTableId(), n == null ? 1 : n + 1);
+        }
+        Map<String, Integer> byName = new TreeMap<String, Integer>();
+        for (Map.Entry<Integer, Integer> e : byId.entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                name = null;
+            }
+            if (name == null || name.isEmpty() || byName.containsKey(name))
+                name = String.valueOf(e.getKey());
+            byName.put(name, e.getValue());
+        }
+        return byName;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getReadAheadPages() {
+        return readAhead.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    public long getLockWaits() {
+        return lockWaits.sum();
+    }
+
+    public long getLockWaitMillis() {
+        return lockWaitNanos.sum() / 1000000;
+    }
+
+    public long getLockEscalations() {
+        return lockEscalations.sum();
+    }
+
+    public long getFailedLockEscalations() {
+        return failedLockEscalations.sum();
+    }
+
+    public int getLockEscalationThreshold() {
+        return pool.getLockEscalationThreshold();
+    }
+
+    public void setLockEscalationThreshold(int pages) {
+        pool.setLockEscalationThreshold(pages);
+    }
+
+    public long[] getReadLatencyHistogram() {
+        return readLatency.getCounts();
+    }
+
+    public long[] getWriteLatencyHistogram() {
+        return writeLatency.getCounts();
+    }
+
+    public double getMeanReadMicros() {
+        return readLatency.getMeanMicros();
+    }
+
+    public double getMeanWriteMicros() {
+        return writeLatency.getMeanMicros();
+    }
+
+    /** @return the readPage latency histogram */
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    /** @return the writePage latency histogram */
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        readAhead.reset();
+        evictions.reset();
+        pagesWritten.reset();
+        lockWaits.reset();
+        lockWaitNanos.reset();
+        lockEscalations.reset();
+        failedLockEscalations.reset();
+        readLatency.reset();
+        writeLatency.reset();
+    }
+
+    /** @return a report of all metrics, one group per line */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("pages: %d of %d resident%n", getResidentPages(), getCapacity()));
+        sb.append(String.format("requests: %d hits, %d misses, hit ratio %.1f%%, %d read ahead%n",
+                getHits(), getMisses(), 100 * getHitRatio(), getReadAheadPages()));
+        sb.append(String.format("evictions: %d, pages written: %d%n", getEvictions(), getPagesWritten()));
+        sb.append(String.format("lock waits: %d, %d ms waiting%n", getLockWaits(), getLockWaitMillis()));
+        sb.append(String.format("lock escalations: %d, %d failed%n",
+                getLockEscalations(), getFailedLockEscalations()));
+        sb.append(String.format("readPage: %s%n", readLatency));
+        sb.append(String.format("writePage: %s%n", writeLatency));
+        for (Map.Entry<String, Integer> e : getResidentPagesByTable().entrySet()) {
+            sb.append(String.format("  %s: %d pages%n", e.getKey(), e.getValue()));
+        }
+        return sb.toString();
+    }
+}
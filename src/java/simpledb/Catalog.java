@@ -48,6 +48,8 @@ public class Catalog {
             if(tables.size()!=0) {
                 for (int i = 0; i < tables.size(); i++) {
                     if (tablesName.get(i).equals(name)||tables.get(i).getId()==file.getId()) {
+                        if (tables.get(i) != file)
+                            close(tables.get(i));
                         tables.set(i, file);
                         tablesName.set(i, name);
                         tablesPkeyFields.set(i, pkeyField);
@@ -153,13 +155,28 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (DbFile file : tables)
+            close(file);
         tablesName.clear();
         tables.clear();
         tablesPkeyFields.clear();
     }
     
+    /** Release the file handle held by a table that leaves the catalog. */
+    private static void close(DbFile file) {
+        if (file instanceof HeapFile) {
+            try {
+                ((HeapFile) file).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form name (field type [pk], ...) [mmap]; a table
+     * marked mmap is mapped into memory and read only (see HeapFile).
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -197,10 +214,19 @@ public class Catalog {
                         }
                     }
                 }
+                boolean mapped = false;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.toLowerCase().equals("mmap"))
+                        mapped = true;
+                    else if (!option.isEmpty()) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ClockPolicy implements the second-chance CLOCK algorithm. Resident pages
+ * occupy slots arranged in a circle, each with a reference bit that is set
+ * whenever the page is accessed. To find a victim the clock hand sweeps the
+ * circle: a page with its bit set gets a second chance (the bit is cleared),
+ * and the first evictable page with a clear bit is chosen.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private PageId[] slots;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> slotOf;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    /**
+     * @param capacity the number of frames in the pool
+     */
+    public ClockPolicy(int capacity) {
+        int n = Math.max(capacity, 1);
+        slots = new PageId[n];
+        referenced = new boolean[n];
+        slotOf = new HashMap<PageId, Integer>(n * 4 / 3 + 1);
+        freeSlots = new ArrayDeque<Integer>(n);
+        for (int i = 0; i < n; i++)
+            freeSlots.addLast(i);
+        hand = 0;
+    }
+
+    public void pageAdmitted(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot == null) {
+            if (freeSlots.isEmpty())
+                grow();
+            slot = freeSlots.removeFirst();
+            slots[slot] = pid;
+            slotOf.put(pid, slot);
+        }
+        referenced[slot] = true;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null)
+            referenced[slot] = true;
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.addLast(slot);
+        }
+    }
+
+    public PageId chooseVictim(VictimFilter filter) {
+        // two full turns: the first may only clear reference bits
+        for (int i = 0; i < 2 * slots.length; i++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            PageId pid = slots[slot];
+            if (pid == null || !filter.canEvict(pid))
+                continue;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            return pid;
+        }
+        return null;
+    }
+
+    /**
+     * The circle grows when more pages are admitted than it has slots, so
+     * only shrinking needs work: the resident pages are packed into a
+     * smaller circle, in hand order, so that the hand does not sweep empty
+     * slots.
+     */
+    public void setCapacity(int capacity) {
+        int n = Math.max(Math.max(capacity, slotOf.size()), 1);
+        if (n >= slots.length)
+            return;
+        PageId[] oldSlots = slots;
+        boolean[] oldReferenced = referenced;
+        slots = new PageId[n];
+        referenced = new boolean[n];
+        slotOf.clear();
+        freeSlots.clear();
+        int next = 0;
+        for (int i = 0; i < oldSlots.length; i++) {
+            int slot = (hand + i) % oldSlots.length;
+            if (oldSlots[slot] != null) {
+                slots[next] = oldSlots[slot];
+                referenced[next] = oldReferenced[slot];
+                slotOf.put(slots[next], next);
+                next++;
+            }
+        }
+        for (int i = next; i < n; i++)
+            freeSlots.addLast(i);
+        hand = 0;
+    }
+
+    /** Make room for more resident pages than the initial capacity. */
+    private void grow() {
+        int old = slots.length;
+        slots = Arrays.copyOf(slots, old * 2);
+        referenced = Arrays.copyOf(referenced, old * 2);
+        for (int i = old; i < old * 2; i++)
+            freeSlots.addLast(i);
+    }
+}
@@ -0,0 +1,278 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ContentionProfiler records the waits for locks of a LockTable, by page
+ * and by table: how many requests waited, for how long in total and at
+ * most, and which transaction waited for which others in the longest
+ * wait. A wait for a record lock counts for the record's page, and every
+ * wait counts for its table, so the table shows the sum of the waits
+ * for its pages and records and for the table lock itself.
+ * <p>
+ * Only requests that wait are recorded, after they are done waiting, so
+ * a lock granted at once costs nothing and the profile can stay on all
+ * the time. The counters are striped (LongAdder). To bound the memory it
+ * takes, at most MAX_PAGES pages are profiled; the waits for pages past
+ * that still count for their tables.
+ *
+ * @see LockTable#getContention()
+ * @Threadsafe
+ */
+public class ContentionProfiler implements ContentionProfilerMXBean {
+    /** Name under which the Database registers the profile of its pool. */
+    public static final String OBJECT_NAME = "simpledb:type=LockContention";
+    /** Maximum number of pages profiled one by one. */
+    public static final int MAX_PAGES = 10000;
+    /** Number of pages and tables a report shows by default. */
+    public static final int DEFAULT_REPORT_SIZE = 10;
+
+    /** The waits for the locks of one page or table. */
+    public static class Hotspot {
+        private final Object key;
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        /** The transactions of the longest wait; guarded by this. */
+        private TransactionId waiter;
+        private List<TransactionId> blockers = Collections.emptyList();
+
+        Hotspot(Object key) {
+            this.key = key;
+        }
+
+        void waited(TransactionId tid, Collection<TransactionId> waitedFor, long nanos) {
+            waits.increment();
+            waitNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max) {
+                if (maxNanos.compareAndSet(max, nanos)) {
+                    synchronized (this) {
+                        if (maxNanos.get() == nanos) {
+                            waiter = tid;
+                            blockers = new ArrayList<TransactionId>(waitedFor);
+                        }
+                    }
+                    break;
+                }
+                max = maxNanos.get();
+            }
+        }
+
+        /** @return the page the waits were for, or null for a table */
+        public PageId getPageId() {
+            return key instanceof PageId ? (PageId) key : null;
+        }
+
+        /** @return the table the waits were for */
+        public int getTableId() {
+            return key instanceof PageId ? ((PageId) key).getTableId() : (Integer) key;
+        }
+
+        /** @return the number of requests that waited */
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        /** @return the total time the requests waited, in nanoseconds */
+        public long getWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        /** @return the longest time a request waited, in nanoseconds */
+        public long getMaxWaitNanos() {
+            return maxNanos.get();
+        }
+
+        /** @return the transaction that waited longest */
+        public synchronized TransactionId getWaiter() {
+            return waiter;
+        }
+
+        /** @return the transactions it waited for, when its wait began */
+        public synchronized List<TransactionId> getBlockers() {
+            return blockers;
+        }
+
+        /** @return one line: the page or table, the waits and the longest wait's transactions */
+        public String toString() {
+            String name = tableName(getTableId());
+            if (key instanceof PageId)
+                name += " page " + ((PageId) key).getPageNumber();
+            StringBuilder ids = new StringBuilder();
+            for (TransactionId b : getBlockers()) {
+                if (ids.length() > 0)
+                    ids.append(",");
+                ids.append(b.getId());
+            }
+            TransactionId w = getWaiter();
+            return String.format("%s: %d waits, %.1f ms total, %.1f ms max (tx %s waited for %s)",
+                    name, getWaits(), getWaitNanos() / 1e6, getMaxWaitNanos() / 1e6,
+                    w == null ? "-" : String.valueOf(w.getId()), ids);
+        }
+    }
+
+    private static final Comparator<Hotspot> BY_WAIT_TIME = new Comparator<Hotspot>() {
+        public int compare(Hotspot a, Hotspot b) {
+            return Long.compare(b.getWaitNanos(), a.getWaitNanos());
+        }
+    };
+
+    private final ConcurrentHashMap<PageId, Hotspot> pages = new ConcurrentHashMap<PageId, Hotspot>();
+    private final ConcurrentHashMap<Integer, Hotspot> tables = new ConcurrentHashMap<Integer, Hotspot>();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private volatile int reportSize = DEFAULT_REPORT_SIZE;
+
+    /**
+     * Register the given profile with the platform MBean server under
+     * OBJECT_NAME, replacing the profile registered before.
+     */
+    public static void register(ContentionProfiler profiler) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (ContentionProfiler.class) {
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(profiler, name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Record a wait for the lock of a record, page or table.
+     *
+     * @param key the RecordId, PageId or table id of the lock
+     * @param tid the transaction that waited
+     * @param waitedFor the transactions it waited for when it began to wait
+     * @param nanos how long it waited, whether or not it got the lock
+     */
+    void waited(Object key, TransactionId tid, Collection<TransactionId> waitedFor, long nanos) {
+        waits.increment();
+        waitNanos.add(nanos);
+        if (key instanceof RecordId)
+            key = ((RecordId) key).getPageId();
+        int tableId;
+        if (key instanceof PageId) {
+            PageId pid = (PageId) key;
+            tableId = pid.getTableId();
+            Hotspot page = pages.get(pid);
+            if (page == null && pages.size() < MAX_PAGES) {
+                Hotspot created = new Hotspot(pid);
+                page = pages.putIfAbsent(pid, created);
+                if (page == null)
+                    page = created;
+            }
+            if (page != null)
+                page.waited(tid, waitedFor, nanos);
+        } else {
+            tableId = (Integer) key;
+        }
+        Hotspot table = tables.get(tableId);
+        if (table == null) {
+            Hotspot created = new Hotspot(tableId);
+            table = tables.putIfAbsent(tableId, created);
+            if (table == null)
+                table = created;
+        }
+        table.waited(tid, waitedFor, nanos);
+    }
+
+    /** @return the n pages waited for longest in total, worst first */
+    public List<Hotspot> topPages(int n) {
+        return top(pages.values(), n);
+    }
+
+    /** @return the n tables waited for longest in total, worst first */
+    public List<Hotspot> topTables(int n) {
+        return top(tables.values(), n);
+    }
+
+    private static List<Hotspot> top(Collection<Hotspot> hotspots, int n) {
+        List<Hotspot> sorted = new ArrayList<Hotspot>(hotspots);
+        Collections.sort(sorted, BY_WAIT_TIME);
+        return sorted.subList(0, Math.min(n, sorted.size()));
+    }
+
+    private static String[] lines(List<Hotspot> hotspots) {
+        String[] lines = new String[hotspots.size()];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = hotspots.get(i).toString();
+        return lines;
+    }
+
+    private static String tableName(int tableId) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            name = null;
+        }
+        return name == null || name.isEmpty() ? String.valueOf(tableId) : name;
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getWaitMillis() {
+        return waitNanos.sum() / 1000000;
+    }
+
+    public String[] getTopPages() {
+        return lines(topPages(reportSize));
+    }
+
+    public String[] getTopTables() {
+        return lines(topTables(reportSize));
+    }
+
+    public int getReportSize() {
+        return reportSize;
+    }
+
+    public void setReportSize(int n) {
+        reportSize = n;
+    }
+
+    public void reset() {
+        pages.clear();
+        tables.clear();
+        waits.reset();
+        waitNanos.reset();
+    }
+
+    /** @return a report of the n tables and the n pages waited for longest, one per line */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("lock waits: %d, %d ms waiting%n", getWaits(), getWaitMillis()));
+        sb.append(String.format("tables:%n"));
+        for (Hotspot h : topTables(n))
+            sb.append(String.format("  %s%n", h));
+        sb.append(String.format("pages:%n"));
+        for (Hotspot h : topPages(n))
+            sb.append(String.format("  %s%n", h));
+        return sb.toString();
+    }
+
+    /** @return the report of the reportSize hottest tables and pages */
+    public String toString() {
+        return report(reportSize);
+    }
+}
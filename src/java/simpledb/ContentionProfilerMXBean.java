@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * Management interface of the lock contention profile. The Database
+ * registers the profile of its current pool's LockTable under the name
+ * simpledb:type=LockContention.
+ *
+ * @see ContentionProfiler
+ */
+public interface ContentionProfilerMXBean {
+
+    /** @return the number of lock requests that had to wait */
+    public long getWaits();
+
+    /** @return the total time lock requests spent waiting, in milliseconds */
+    public long getWaitMillis();
+
+    /** @return the pages waited for longest in total, one line each, worst first */
+    public String[] getTopPages();
+
+    /** @return the tables waited for longest in total, one line each, worst first */
+    public String[] getTopTables();
+
+    /** @return the number of pages and tables the top lists show */
+    public int getReportSize();
+
+    /** Set the number of pages and tables the top lists show. */
+    public void setReportSize(int n);
+
+    /** Forget all waits recorded so far. */
+    public void reset();
+}
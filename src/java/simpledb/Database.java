@@ -10,6 +10,10 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
+ * <p>
+ * The metrics of the current buffer pool are registered as a
+ * BufferPoolMXBean, and the profile of its lock waits as a
+ * ContentionProfilerMXBean.
  * 
  * @Threadsafe
  */
@@ -24,6 +28,8 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        BufferPoolMetrics.register(_bufferpool.getMetrics());
+        ContentionProfiler.register(_bufferpool.getContention());
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -55,11 +61,27 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Factory policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    /**
+     * Method used for testing -- install the given buffer pool and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
+        stopCleaner(getBufferPool());
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -70,12 +92,24 @@ public class Database {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
+        BufferPoolMetrics.register(bufferPool.getMetrics());
+        ContentionProfiler.register(bufferPool.getContention());
         return _instance.get()._bufferpool;
     }
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        stopCleaner(getBufferPool());
         _instance.set(new Database());
     }
 
+    /** Write back what the cleaner of a pool that is being replaced has not written yet */
+    private static void stopCleaner(BufferPool bufferPool) {
+        try {
+            bufferPool.stopCleaner();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
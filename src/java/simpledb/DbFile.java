@@ -28,6 +28,16 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk in one batch. The pages are
+     * given in increasing page number order, so implementations can write
+     * them in a single sequential pass.
+     *
+     * @param pages The pages to write, sorted by page number.
+     * @throws IOException if the write fails
+     */
+    public void writePages(List<Page> pages) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
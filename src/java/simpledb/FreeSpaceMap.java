@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * FreeSpaceMap tracks how many empty slots each page of a HeapFile has, so
+ * that an insert can go straight to a page with room instead of locking
+ * every page from the first one on.
+ * <p>
+ * Pages are kept in BUCKETS buckets by their share of empty slots, bucket 0
+ * holding the full pages. Pages with room are handed out fullest bucket
+ * first, and in order of their numbers within a bucket, so a page that is
+ * being filled keeps being chosen until it is full and the free space
+ * left by deletes is reused before the file grows. The counts are hints:
+ * they include the changes of transactions that are still running or that
+ * aborted, so an insert checks the page it is given once it holds it, and
+ * reports the count it finds with update().
+ * <p>
+ * The map is built page by page: a page is unknown until its count is
+ * reported, by an insert or delete that holds it or by learn() when the
+ * page is read from disk. Unknown pages are handed out after the pages
+ * known to have room, in order of their numbers, so that an insert looks
+ * at each page of an existing file at most once before the file grows.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    /** Number of buckets pages are kept in by their share of empty slots. */
+    public static final int BUCKETS = 4;
+
+    private final int slotsPerPage;
+    // all fields below are guarded by this
+    private int[] free = new int[16];
+    private int numPages;
+    private final BitSet[] buckets = new BitSet[BUCKETS];
+    private final BitSet unknown = new BitSet();
+
+    /**
+     * @param slotsPerPage the number of slots of every page
+     */
+    public FreeSpaceMap(int slotsPerPage) {
+        this.slotsPerPage = slotsPerPage;
+        for (int b = 0; b < BUCKETS; b++)
+            buckets[b] = new BitSet();
+    }
+
+    private int bucket(int freeSlots) {
+        if (freeSlots <= 0)
+            return 0;
+        return 1 + (int) ((long) (freeSlots - 1) * (BUCKETS - 1) / slotsPerPage);
+    }
+
+    /**
+     * Record that page pgNo has the given number of empty slots. Pages past
+     * the last one the map has are added as unknown.
+     */
+    public synchronized void update(int pgNo, int freeSlots) {
+        extend(pgNo + 1);
+        if (unknown.get(pgNo))
+            unknown.clear(pgNo);
+        else
+            buckets[bucket(free[pgNo])].clear(pgNo);
+        free[pgNo] = freeSlots;
+        buckets[bucket(freeSlots)].set(pgNo);
+    }
+
+    /**
+     * Record the number of empty slots of page pgNo as update() does, but
+     * only if the page is unknown: the count read from disk is older than
+     * one reported by an insert or delete.
+     */
+    public synchronized void learn(int pgNo, int freeSlots) {
+        if (pgNo >= numPages || unknown.get(pgNo))
+            update(pgNo, freeSlots);
+    }
+
+    /** Add the pages up to, but not including, page numPages as unknown. */
+    public synchronized void extend(int numPages) {
+        if (numPages <= this.numPages)
+            return;
+        if (numPages > free.length) {
+            int[] grown = new int[Math.max(numPages, free.length * 2)];
+            System.arraycopy(free, 0, grown, 0, this.numPages);
+            free = grown;
+        }
+        unknown.set(this.numPages, numPages);
+        this.numPages = numPages;
+    }
+
+    /** @return the number of empty slots of page pgNo, or 0 if it is not known */
+    public synchronized int getFree(int pgNo) {
+        return pgNo < numPages && !unknown.get(pgNo) ? free[pgNo] : 0;
+    }
+
+    /** @return the number of pages the map knows */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return up to max pages with empty slots, fullest bucket first, then
+     *         unknown pages, or an empty list if every page is known to be
+     *         full
+     */
+    public synchronized List<Integer> pagesWithRoom(int max) {
+        List<Integer> pages = new ArrayList<Integer>();
+        for (int b = 1; b < BUCKETS && pages.size() < max; b++) {
+            for (int i = buckets[b].nextSetBit(0); i >= 0 && pages.size() < max; i = buckets[b].nextSetBit(i + 1))
+                pages.add(i);
+        }
+        for (int i = unknown.nextSetBit(0); i >= 0 && pages.size() < max; i = unknown.nextSetBit(i + 1))
+            pages.add(i);
+        return pages;
+    }
+}
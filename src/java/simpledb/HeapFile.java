@@ -1,6 +1,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +14,37 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * When the BufferPool has record locking turned on, a HeapFile locks the
+ * tuples it reads and writes one by one rather than their pages. Each page
+ * is then latched, by synchronizing on it, only while a slot is read or
+ * changed, and never while waiting for a lock. An insert claims an empty
+ * slot by taking its record lock without waiting, so slots emptied by
+ * deletes that are not committed yet, whose locks the deleters hold, are
+ * never reused by others.
+ * <p>
+ * Pages are read and written one at a time, at pageNo * pageSize, through
+ * a FileChannel opened on first use, so neither memory nor the cost of a
+ * write grows with the size of the table. A batch of pages with
+ * consecutive numbers is written with a single gathering write.
+ * <p>
+ * Inserts find a page with room through a FreeSpaceMap, built page by
+ * page from the pages inserts, deletes and reads come across, so they
+ * lock only the page they insert into. A page another transaction
+ * holds is passed over for the next one with room; an insert waits for
+ * such a page only if no other page has room.
+ * <p>
+ * A BulkLoad appends tuples to new pages filled in memory, written to the
+ * end of the file a batch at a time and forced when the load finishes,
+ * bypassing the BufferPool; the log only records where the load began, so
+ * that an uncommitted load can be cut off again. See BufferPool#bulkLoad.
+ * <p>
+ * A mapped HeapFile is read only: it maps the file into memory, in
+ * regions of up to 1 GB mapped on first use, and each page it reads
+ * decodes its tuples straight from the mapped bytes rather than from a
+ * copy, leaving the caching of the file to the operating system. Since
+ * the pages it hands out read the mapped bytes, it refuses to write
+ * them. Tables are mapped by the mmap option of the catalog schema file.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -19,7 +55,19 @@ public class HeapFile implements DbFile {
     private File file;
     private TupleDesc td;
     private final int id;
-    private byte[] b;
+    /** Opened on first use; reopened if a thread using it was interrupted. */
+    private volatile FileChannel channel;
+    /** Length of the file in bytes, kept up to date by writePages. */
+    private volatile long length;
+    private final boolean mapped;
+    /** The mapped regions of a mapped file, each mapped on first use; guarded by this. */
+    private MappedByteBuffer[] regions;
+    /** Created on first use, and filled in as pages are read and changed. */
+    private volatile FreeSpaceMap freeSpace;
+    /** Number of pages with room an insert asks the free space map for at a time. */
+    private static final int CANDIDATES = 8;
+    /** The first bulk load of the running transaction loading the file, or null. */
+    private volatile BulkLoad loading;
 
     public class HeapfileIterator implements DbFileIterator {
         Iterator<Tuple> tupleIterator;
@@ -27,11 +75,24 @@ public class HeapFile implements DbFile {
         Iterator pageIterator = null;
         TransactionId tid;
         int pgno = 0;
+        ReadAhead readAhead;
+        BufferAccessStrategy strategy;
 
         public HeapfileIterator(TransactionId tid) {
+            this(tid, null);
+        }
+
+        public HeapfileIterator(TransactionId tid, BufferAccessStrategy strategy) {
             tupleIterator = null;
             tuples = new ArrayList<>();
             this.tid = tid;
+            this.strategy = strategy;
+            readAhead = new ReadAhead(new ReadAhead.Successor() {
+                public PageId next(Page page) {
+                    int next = page.getId().getPageNumber() + 1;
+                    return next < visiblePages(HeapfileIterator.this.tid) ? new HeapPageId(getId(), next) : null;
+                }
+            }, strategy);
         }
 
         @Override
@@ -39,40 +100,58 @@ public class HeapFile implements DbFile {
             if (tuples == null) {
                 throw new DbException("tuples of file==null");
             }
+            readPage();
+        tupleIterator=tuples.iterator();
+    }
+
+        /** Read the tuples of page pgno into tuples, and move on to the next page. */
+        private void readPage() throws DbException, TransactionAbortedException {
             BufferPool bfp = Database.getBufferPool();
             HeapPageId hpid = new HeapPageId(getId(), pgno);
-            HeapPage page = null;
-            page = (HeapPage) bfp.getPage(tid, hpid, Permissions.READ_ONLY);
+            // a snapshot reads a version of the page no one changes, without locks
+            if (bfp.isRecordLocking() && !bfp.isSnapshot(tid)) {
+                readRecords(bfp, hpid);
+                return;
+            }
+            HeapPage page = (HeapPage) bfp.getPage(tid, hpid, Permissions.READ_ONLY, strategy);
+            readAhead.pageRequested(page);
             pgno++;
             pageIterator = page.iterator();
             while (pageIterator.hasNext()) {
                 tuples.add((Tuple) pageIterator.next());
             }
-        tupleIterator=tuples.iterator();
-    }
+        }
+
+        /**
+         * Read the tuples of the page one at a time, each after locking its
+         * record S. A slot that is empty once the lock is granted, because
+         * its insert was undone, is skipped.
+         */
+        private void readRecords(BufferPool bfp, HeapPageId hpid)
+                throws DbException, TransactionAbortedException {
+            HeapPage page = (HeapPage) bfp.getRecordPage(tid, hpid, Permissions.READ_ONLY, strategy);
+            try {
+                readAhead.pageRequested(page);
+                pgno++;
+                for (int slot : page.recordSlots()) {
+                    bfp.lockRecord(tid, new RecordId(hpid, slot), Permissions.READ_ONLY);
+                    Tuple t = page.tupleAt(slot);
+                    if (t != null)
+                        tuples.add(t);
+                }
+            } finally {
+                bfp.unpinPage(hpid);
+            }
+        }
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
             if(tupleIterator==null){
                 return false;
             }
-            if (!tupleIterator.hasNext()&&(pgno<numPages()))
+            if (!tupleIterator.hasNext()&&(pgno<visiblePages(tid)))
             {
                 tuples.clear();
-                BufferPool bfp = Database.getBufferPool();
-                HeapPageId hpid = new HeapPageId(getId(), pgno);
-                HeapPage page = null;
-                try {
-                    page = (HeapPage) bfp.getPage(tid, hpid, Permissions.READ_ONLY);
-                    pgno++;
-                    pageIterator = page.iterator();
-                } catch (TransactionAbortedException e) {
-                    e.printStackTrace();
-                } catch (DbException e) {
-                    e.printStackTrace();
-                }
-                while (pageIterator.hasNext()) {
-                    tuples.add((Tuple) pageIterator.next());
-                }
+                readPage();
                 tupleIterator=tuples.iterator();
             }
             return tupleIterator.hasNext();
@@ -115,18 +194,97 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td)  {
         // some code goes here
+        this(f,td,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, which is mapped
+     * into memory and read only if mapped is true.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            whether pages are read straight from the mapped file
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped)  {
         file=f;
         this.td=td;
+        this.mapped=mapped;
         id=f.getAbsoluteFile().hashCode();
-        b=new byte[(int) f.length()];
-        try{
-            FileInputStream fis=new FileInputStream(file);
-            fis.read(b);
+        length=f.length();
+    }
+
+    /**
+     * @return true if the file is mapped into memory and read only
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /** @return the number of pages in each mapped region */
+    private static int regionPages() {
+        return Math.max(1,(1<<30)/BufferPool.getPageSize());
+    }
+
+    /** @return the bytes of page pgNo of a mapped file, without copying them */
+    private ByteBuffer mappedPage(int pgNo) throws IOException {
+        int pageSize=BufferPool.getPageSize();
+        int r=pgNo/regionPages();
+        MappedByteBuffer region;
+        synchronized (this){
+            if (regions==null){
+                regions=new MappedByteBuffer[(numPages()+regionPages()-1)/regionPages()];
+            }
+            region=regions[r];
+            if (region==null){
+                long start=(long) r*regionPages()*pageSize;
+                long size=Math.min((long) regionPages()*pageSize,(long) numPages()*pageSize-start);
+                region=channel().map(FileChannel.MapMode.READ_ONLY,start,size);
+                regions[r]=region;
+            }
+        }
+        ByteBuffer page=region.duplicate();
+        int off=(pgNo%regionPages())*pageSize;
+        page.position(off);
+        page.limit(off+pageSize);
+        return page.slice();
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c=channel;
+        if (c==null){
+            synchronized (this){
+                if (channel==null){
+                    channel=new RandomAccessFile(file,mapped ? "r" : "rw").getChannel();
+                }
+                c=channel;
+            }
         }
-        catch(IOException e){
+        return c;
+    }
 
+    /**
+     * Forget the channel after it was closed by an interrupted thread, so
+     * that the next use opens it again.
+     */
+    private synchronized void reopen(FileChannel closed) {
+        if (channel==closed){
+            channel=null;
         }
+    }
 
+    /**
+     * Close the channel of the file, if it is open. A later use of the
+     * HeapFile opens it again.
+     */
+    public synchronized void close() throws IOException {
+        FileChannel c=channel;
+        channel=null;
+        regions=null;
+        if (c!=null){
+            c.close();
+        }
     }
 
     /**
@@ -172,39 +330,92 @@ public class HeapFile implements DbFile {
             throw new IllegalArgumentException();
         }
 
-        int off;
-        byte[] pageByte=new byte[BufferPool.getPageSize()];
-        off=(pid.getPageNumber())*(BufferPool.getPageSize());
-
-        for(int i=0;i<BufferPool.getPageSize();i++){
-            pageByte[i]=b[off+i];
+        if (pid.getPageNumber()<0 || pid.getPageNumber()>=numPages()){
+            throw new IllegalArgumentException("page "+pid.getPageNumber()+" is not in "+file);
         }
-        HeapPageId hpid=new HeapPageId(pid.getTableId(),pid.getPageNumber());
-        HeapPage page=null ;
-        try {
-            page = new HeapPage(hpid, pageByte);
+        if (mapped){
+            try {
+                return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),mappedPage(pid.getPageNumber()));
+            } catch (IOException e){
+                throw new IllegalArgumentException("cannot map page "+pid.getPageNumber()+" of "+file,e);
+            }
         }
-        catch(IOException e){
-
+        ByteBuffer buf=ByteBuffer.allocate(BufferPool.getPageSize());
+        long off=(long) pid.getPageNumber()*BufferPool.getPageSize();
+        try {
+            while (buf.hasRemaining()){
+                FileChannel c=channel();
+                try {
+                    if (c.read(buf,off+buf.position())<0){
+                        throw new IllegalArgumentException("page "+pid.getPageNumber()+" is not in "+file);
+                    }
+                } catch (ClosedChannelException e){
+                    reopen(c);
+                    if (e instanceof ClosedByInterruptException){
+                        throw e;
+                    }
+                }
+            }
+            HeapPage page=new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),buf.array());
+            freeSpace().learn(pid.getPageNumber(),page.getNumEmptySlots());
+            return page;
+        } catch (IOException e){
+            throw new IllegalArgumentException("cannot read page "+pid.getPageNumber()+" of "+file,e);
         }
-        return page;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {//还需要改变file！！！！！！
         // some code goes here
         // not necessary for lab1
-        byte[] b=this.b;
-        if (page.getId().getPageNumber()+1>numPages()){
-            this.b=Arrays.copyOf(b,BufferPool.getPageSize()*(numPages()+1));
+        writePages(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized void writePages(List<Page> pages) throws IOException {
+        if (mapped){
+            throw new IOException(file+" is mapped read only");
+        }
+        int pageSize=BufferPool.getPageSize();
+        int i=0;
+        while (i<pages.size()){
+            // pages with consecutive numbers go out in one gathering write
+            int first=pages.get(i).getId().getPageNumber();
+            int j=i+1;
+            while (j<pages.size() && pages.get(j).getId().getPageNumber()==first+(j-i)){
+                j++;
+            }
+            ByteBuffer[] run=new ByteBuffer[j-i];
+            for (int k=i;k<j;k++){
+                run[k-i]=ByteBuffer.wrap(pages.get(k).getPageData());
+            }
+            long off=(long) first*pageSize;
+            write(run,off);
+            length=Math.max(length,off+(long) run.length*pageSize);
+            i=j;
         }
-        int off=(page.getId().getPageNumber())*BufferPool.getPageSize();
-        byte[]pagebyte=page.getPageData();
-        for (int i=0;i<BufferPool.getPageSize();i++){
-            this.b[i+off]=pagebyte[i];
+    }
+
+    /** Write the buffers to the file, one after the other, starting at off. */
+    private void write(ByteBuffer[] bufs,long off) throws IOException {
+        while (bufs[bufs.length-1].hasRemaining()){
+            FileChannel c=channel();
+            try {
+                long written=0;
+                for (ByteBuffer buf : bufs){
+                    written+=buf.position();
+                }
+                // writes are made under the file's monitor, so the
+                // position is ours
+                c.position(off+written);
+                c.write(bufs);
+            } catch (ClosedChannelException e){
+                reopen(c);
+                if (e instanceof ClosedByInterruptException){
+                    throw e;
+                }
+            }
         }
-        FileOutputStream fis=new FileOutputStream(file);
-        fis.write(this.b);
     }
 
     /**
@@ -212,58 +423,459 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return b.length/BufferPool.getPageSize();
+        return (int) (length/BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
+        return insertTuple(tid, t, null);
+    }
+
+    /**
+     * Insert the tuple like insertTuple(tid, t), reading the pages searched
+     * for free space through the given strategy.
+     *
+     * @param strategy the strategy of the insert, or null
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t, BufferAccessStrategy strategy)
+            throws DbException, IOException, TransactionAbortedException {
+        if (mapped){
+            throw new DbException(file+" is mapped read only");
+        }
         BufferPool bfp=Database.getBufferPool();
-        HeapPageId hpid;
-        HeapPage page=null;
-        boolean flag=false;
-        for (int i=0;i<numPages();i++){
-            hpid=new HeapPageId(getId(),i);
-            page=(HeapPage)(bfp.getPage(tid,hpid,Permissions.READ_WRITE));
-            if (page.getNumEmptySlots()==0){
-                Database.getBufferPool().releasePage(tid,hpid);
-            }
-            if (page.getNumEmptySlots()!=0){
-                page.insertTuple(t);
-                flag=true;
-                break;
+        if (bfp.isRecordLocking()){
+            return insertRecord(tid, t, strategy);
+        }
+        FreeSpaceMap fsm=freeSpace();
+        HeapPageId busy=null;
+        List<Integer> candidates;
+        do {
+            candidates=fsm.pagesWithRoom(CANDIDATES);
+            for (int pgNo : candidates){
+                HeapPageId hpid=new HeapPageId(getId(),pgNo);
+                boolean held=bfp.holdsLock(tid,hpid);
+                HeapPage page=(HeapPage) bfp.tryGetPage(tid,hpid,Permissions.READ_WRITE,strategy);
+                if (page==null){
+                    // another transaction holds it; try the next page with room
+                    if (busy==null){
+                        busy=hpid;
+                    }
+                    continue;
+                }
+                if (insertInto(tid,page,t,held)){
+                    return pageList(page);
+                }
+            }
+        } while (busy==null && !candidates.isEmpty());
+        if (busy!=null){
+            boolean held=bfp.holdsLock(tid,busy);
+            HeapPage page=(HeapPage) bfp.getPage(tid,busy,Permissions.READ_WRITE,strategy);
+            if (insertInto(tid,page,t,held)){
+                return pageList(page);
+            }
+        }
+        // append an empty page, and insert into it through the pool so
+        // that the tuple reaches the disk only when tid commits
+        HeapPageId hpid=new HeapPageId(getId(),appendPage());
+        HeapPage page=(HeapPage)(bfp.getPage(tid,hpid,Permissions.READ_WRITE,strategy));
+        page.insertTuple(t);
+        freeSpace().update(hpid.getPageNumber(),page.getNumEmptySlots());
+        return pageList(page);
+    }
+
+    /**
+     * Insert the tuple into the page tid holds X, if it has room; otherwise
+     * record that it is full and release it, unless tid held it before.
+     *
+     * @return true if the tuple was inserted
+     */
+    private boolean insertInto(TransactionId tid, HeapPage page, Tuple t, boolean held)
+            throws DbException, IOException {
+        int pgNo=page.getId().getPageNumber();
+        if (page.getNumEmptySlots()==0){
+            freeSpace().update(pgNo,0);
+            if (!held){
+                Database.getBufferPool().releasePage(tid,page.getId());
+            }
+            return false;
+        }
+        page.insertTuple(t);
+        freeSpace().update(pgNo,page.getNumEmptySlots());
+        return true;
+    }
+
+    /**
+     * Insert the tuple into an empty slot whose record lock tid can take
+     * without waiting, on a page the free space map has room on, appending
+     * a page if there is none.
+     */
+    private ArrayList<Page> insertRecord(TransactionId tid, Tuple t, BufferAccessStrategy strategy)
+            throws DbException, IOException, TransactionAbortedException {
+        for (;;){
+            for (int pgNo : freeSpace().pagesWithRoom(CANDIDATES)){
+                HeapPage page=insertRecord(tid,t,strategy,pgNo);
+                if (page!=null){
+                    return pageList(page);
+                }
+            }
+            HeapPage page=insertRecord(tid,t,strategy,appendPage());
+            if (page!=null){
+                return pageList(page);
             }
         }
-        if (!flag){
-            hpid=new HeapPageId(getId(),numPages());
-            page=new HeapPage(hpid,HeapPage.createEmptyPageData());
-            page.insertTuple(t);
-            writePage(page);
+    }
+
+    /**
+     * Insert the tuple into the first empty slot of page pgNo whose record
+     * lock tid can take without waiting.
+     *
+     * @return the page, or null if there is no such slot
+     */
+    private HeapPage insertRecord(TransactionId tid, Tuple t, BufferAccessStrategy strategy, int pgNo)
+            throws DbException, TransactionAbortedException {
+        BufferPool bfp=Database.getBufferPool();
+        // not under the page's monitor, which writePages takes under the file's
+        FreeSpaceMap fsm=freeSpace();
+        HeapPageId hpid=new HeapPageId(getId(),pgNo);
+        HeapPage page=(HeapPage) bfp.getRecordPage(tid,hpid,Permissions.READ_WRITE,strategy);
+        try {
+            synchronized (page) {
+                try {
+                    for (int slot=0;slot<page.numSlots;slot++){
+                        if (!page.isSlotUsed(slot) && bfp.tryLockRecord(tid,new RecordId(hpid,slot))){
+                            page.insertTuple(tid,t,slot);
+                            return page;
+                        }
+                    }
+                    return null;
+                } finally {
+                    fsm.update(pgNo,page.getNumEmptySlots());
+                }
+            }
+        } finally {
+            bfp.unpinPage(hpid);
         }
-//        writePage(page);
+    }
+
+    /**
+     * Write an empty page to the end of the file.
+     *
+     * @return the number of the page
+     */
+    private synchronized int appendPage() throws IOException {
+        int pgNo=numPages();
+        writePage(new HeapPage(new HeapPageId(getId(),pgNo),HeapPage.createEmptyPageData()));
+        return pgNo;
+    }
+
+    private static ArrayList<Page> pageList(Page page) {
         ArrayList<Page> arrayList=new ArrayList<>();
         arrayList.add(page);
-//        Database.getBufferPool().releasePage(tid,page.getId());
         return arrayList;
     }
 
+    /**
+     * Returns the free space map of this file, creating it on first use,
+     * with the pages written past its end since, e.g. by appendPage(),
+     * added as unknown. No page is read here: an unknown page gets its
+     * count once an insert holds it or it is read.
+     */
+    private FreeSpaceMap freeSpace() {
+        FreeSpaceMap fsm=freeSpace;
+        if (fsm==null){
+            synchronized (this){
+                if (freeSpace==null){
+                    freeSpace=new FreeSpaceMap(Math.floorDiv(BufferPool.getPageSize()*8,td.getSize()*8+1));
+                }
+                fsm=freeSpace;
+            }
+        }
+        fsm.extend(numPages());
+        return fsm;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException, IOException {
         // some code goes here
         // not necessary for lab1
+        if (mapped){
+            throw new DbException(file+" is mapped read only");
+        }
         BufferPool bfp=Database.getBufferPool();
         if (t.getRecordId().getPageId().getTableId()!=getId()){
             throw new DbException("this tuple do not belong to this file");
         }
         HeapPageId hpid=new HeapPageId(getId(),t.getRecordId().pid.getPageNumber());
+        if (bfp.isRecordLocking()){
+            HeapPage page=(HeapPage) bfp.getRecordPage(tid,hpid,Permissions.READ_WRITE,null);
+            try {
+                bfp.lockRecord(tid,t.getRecordId(),Permissions.READ_WRITE);
+                page.deleteTuple(tid,t);
+            } finally {
+                bfp.unpinPage(hpid);
+            }
+            freedSlot(page);
+            return pageList(page);
+        }
         HeapPage page=(HeapPage) bfp.getPage(tid,hpid,Permissions.READ_WRITE);
         page.deleteTuple(t);
-        writePage(page);
-        ArrayList<Page> arrayList=new ArrayList<>();
-        arrayList.add(page);
-        return arrayList;
+        freedSlot(page);
+        return pageList(page);
+    }
+
+    /** Record the room a delete left on the page. */
+    private void freedSlot(HeapPage page) {
+        freeSpace().update(page.getId().getPageNumber(),page.getNumEmptySlots());
+    }
+
+    /**
+     * @return the number of pages tid may read: the pages of a running bulk
+     *         load are only visible to the transaction loading them
+     */
+    private int visiblePages(TransactionId tid) {
+        BulkLoad l=loading;
+        return l!=null && !l.tid.equals(tid) ? l.firstPage : numPages();
+    }
+
+    /**
+     * Appends tuples to new pages at the end of a HeapFile on behalf of a
+     * transaction that holds the table's X lock. The tuples are encoded
+     * straight into the bytes of a page in slot order, as HeapFileEncoder
+     * does, and the full pages are written BATCH_PAGES at a time with one
+     * gathering write, without going through the BufferPool or writing log
+     * records for them. finish() writes the last page and forces the file,
+     * so the pages are on disk before the transaction commits; an abort,
+     * or recovery after a crash, truncates the file back to where the load
+     * began (see rollBackLoad).
+     *
+     * @see BufferPool#bulkLoad
+     */
+    public class BulkLoad {
+        /** Number of full pages written at a time. */
+        public static final int BATCH_PAGES = 64;
+
+        private final TransactionId tid;
+        private final long startLength;
+        private final int firstPage;
+        private final int slotsPerPage;
+        private final int headerSize;
+        private final List<ByteBuffer> batch=new ArrayList<ByteBuffer>();
+        /** The page being filled and its number, or null. */
+        private byte[] page;
+        private HeapPageId pid;
+        /** Number of slots of the page filled so far. */
+        private int slot;
+        private final PageOutputStream out=new PageOutputStream();
+        private final DataOutputStream dos=new DataOutputStream(out);
+        /** Number of pages written so far. */
+        private int written;
+        /** False while tuples were added since the last finish(). */
+        private boolean finished=true;
+
+        BulkLoad(TransactionId tid) {
+            this.tid=tid;
+            startLength=length;
+            firstPage=HeapFile.this.numPages();
+            slotsPerPage=Math.floorDiv(BufferPool.getPageSize()*8,td.getSize()*8+1);
+            headerSize=slotsPerPage%8==0 ? slotsPerPage/8 : slotsPerPage/8+1;
+        }
+
+        /** @return the number of the first page of the load */
+        public int getFirstPage() {
+            return firstPage;
+        }
+
+        /** @return the length of the file in bytes when the load began */
+        public long getStartLength() {
+            return startLength;
+        }
+
+        /** @return the number of pages the load has filled or started so far */
+        public int numLoadedPages() {
+            return written+batch.size()+(page==null ? 0 : 1);
+        }
+
+        /** Add the tuple to the current page, starting a new one if it is full. */
+        public void insert(Tuple t) throws DbException, IOException {
+            if (t.getTupleDesc()!=td && !t.getTupleDesc().equals(td)){
+                throw new DbException("the tupledes is not equal to this");
+            }
+            if (page==null){
+                pid=new HeapPageId(getId(),firstPage+numLoadedPages());
+                page=HeapPage.createEmptyPageData();
+                slot=0;
+            }
+            page[slot/8]|=(byte) (1<<(slot%8));
+            out.data=page;
+            out.pos=headerSize+slot*td.getSize();
+            for (int i=0;i<td.numFields();i++){
+                t.getField(i).serialize(dos);
+            }
+            t.setRecordId(new RecordId(pid,slot));
+            finished=false;
+            if (++slot==slotsPerPage){
+                batch.add(ByteBuffer.wrap(page));
+                page=null;
+                if (batch.size()>=BATCH_PAGES){
+                    flush();
+                }
+            }
+        }
+
+        /** Write the full pages at the end of the file. */
+        private void flush() throws IOException {
+            if (batch.isEmpty()){
+                return;
+            }
+            synchronized (HeapFile.this){
+                int first=firstPage+written;
+                if (HeapFile.this.numPages()!=first){
+                    throw new IOException("pages were added to "+file+" during a bulk load");
+                }
+                long off=(long) first*BufferPool.getPageSize();
+                write(batch.toArray(new ByteBuffer[batch.size()]),off);
+                length=Math.max(length,off+(long) batch.size()*BufferPool.getPageSize());
+                FreeSpaceMap fsm=freeSpace;
+                if (fsm!=null){
+                    for (int i=0;i<batch.size();i++){
+                        fsm.update(first+i,i<batch.size()-1 || slot==slotsPerPage ? 0 : slotsPerPage-slot);
+                    }
+                }
+            }
+            written+=batch.size();
+            batch.clear();
+        }
+
+        /**
+         * Write the last page, and force the pages written to disk. Does
+         * nothing if no tuple was added since the last call.
+         */
+        public void finish() throws IOException {
+            if (finished){
+                return;
+            }
+            if (page!=null){
+                batch.add(ByteBuffer.wrap(page));
+                page=null;
+            }
+            flush();
+            for (;;){
+                FileChannel c=channel();
+                try {
+                    c.force(false);
+                    finished=true;
+                    return;
+                } catch (ClosedChannelException e){
+                    reopen(c);
+                    if (e instanceof ClosedByInterruptException){
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Complete the load when its transaction completes, which finished
+         * it before committing. A commit, once it has begun, keeps empty
+         * versions of the new pages for the snapshots older than it; the
+         * new pages stay hidden from other transactions until then. An
+         * abort drops the pages from the pool and truncates the file. The
+         * loads of a transaction are completed newest first.
+         *
+         * @param committed the number of the commit of tid, if it commits
+         */
+        void complete(boolean commit, VersionStore versions, long committed) throws IOException {
+            try {
+                if (commit){
+                    if (versions.hasSnapshots()){
+                        byte[] empty=HeapPage.createEmptyPageData();
+                        for (int i=firstPage;i<firstPage+written;i++){
+                            versions.save(new HeapPage(new HeapPageId(getId(),i),empty),committed);
+                        }
+                    }
+                } else {
+                    rollBackLoad(startLength);
+                }
+            } finally {
+                synchronized (HeapFile.this){
+                    if (loading==this){
+                        loading=null;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Writes into a page's bytes from a position on. */
+    private static class PageOutputStream extends OutputStream {
+        byte[] data;
+        int pos;
+
+        public void write(int b) {
+            data[pos++]=(byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b,off,data,pos,len);
+            pos+=len;
+        }
+    }
+
+    /**
+     * Start a bulk load by tid, which must hold the table's X lock and not
+     * insert into the file in other ways until the load is finished.
+     *
+     * @throws DbException if the file is mapped read only
+     */
+    synchronized BulkLoad bulkLoad(TransactionId tid) throws DbException {
+        if (mapped){
+            throw new DbException(file+" is mapped read only");
+        }
+        BulkLoad load=new BulkLoad(tid);
+        if (loading==null){
+            loading=load;
+        }
+        if (freeSpace!=null){
+            // bring the map up to the end of the file the load appends to
+            freeSpace();
+        }
+        return load;
+    }
+
+    /**
+     * Drop the pages a bulk load appended from startLength on, first from
+     * the BufferPool and then from the file. Does nothing if the file is
+     * not longer than that, e.g. because the load was rolled back already.
+     */
+    void rollBackLoad(long startLength) throws IOException {
+        for (int i=(int) (startLength/BufferPool.getPageSize());i<numPages();i++){
+            Database.getBufferPool().discardPage(new HeapPageId(getId(),i));
+        }
+        truncate(startLength);
+    }
+
+    /** Cut the file back to the given length, dropping the pages past it from the free space map. */
+    private synchronized void truncate(long size) throws IOException {
+        if (size>=length){
+            return;
+        }
+        for (;;){
+            FileChannel c=channel();
+            try {
+                c.truncate(size);
+                break;
+            } catch (ClosedChannelException e){
+                reopen(c);
+                if (e instanceof ClosedByInterruptException){
+                    throw e;
+                }
+            }
+        }
+        length=size;
+        freeSpace=null;
     }
 
     // see DbFile.java for javadocs
@@ -273,5 +885,15 @@ public class HeapFile implements DbFile {
         return it;
     }
 
+    /**
+     * Returns an iterator over all the tuples of this file, like
+     * iterator(tid), that reads the pages through the given strategy.
+     *
+     * @param strategy the strategy of the scan, or null
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
+        return new HeapfileIterator(tid, strategy);
+    }
+
 }
 
@@ -1,12 +1,28 @@
 package simpledb;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was built from and decodes the tuple in a slot
+ * only when the slot is first accessed, so pages that are read but never
+ * scanned, such as before images, cost little more than their bytes. The
+ * before image of a clean page shares these bytes rather than a copy. The
+ * bytes may also be a region of a mapped file (see HeapFile), which the
+ * tuples are then decoded from in place.
+ * <p>
+ * Under record locking (see BufferPool) several transactions may change a
+ * page at once, each only the slots it holds X locks on. The page then
+ * remembers every uncommitted change and who made it: the before image
+ * stays the committed version, commitRecords() installs the changes of one
+ * transaction in it and abortRecords() undoes them in the page. These
+ * methods, and the reads of record-locking scans, synchronize on the page,
+ * which is the short-term latch keeping its slots consistent.
  *
  * @see HeapFile
  * @see BufferPool
@@ -19,10 +35,34 @@ public class HeapPage implements Page {
     final byte header[];
     private Tuple tuples[];
     final int numSlots;
+    /**
+     * The bytes this page was built from, or its last before image. A used
+     * slot whose tuple has not been decoded yet holds these bytes.
+     */
+    private ByteBuffer data;
     private TransactionId dirtierTid;
     private boolean dirty;
 
-    byte[] oldData;
+    /** An uncommitted change of one slot, made under the slot's record lock. */
+    private static class RecordChange {
+        final TransactionId tid;
+        final int slot;
+        /** The tuple in the slot before and after the change, null if it is empty. */
+        final Tuple before;
+        final Tuple after;
+
+        RecordChange(TransactionId tid, int slot, Tuple before, Tuple after) {
+            this.tid = tid;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /** The uncommitted changes made under record locks, oldest first; guarded by this. */
+    private final List<RecordChange> changes = new ArrayList<RecordChange>();
+
+    ByteBuffer oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     /**
@@ -40,32 +80,37 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * The page keeps a reference to data, which must not be modified
+     * afterwards.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes of a page between the position and
+     * the limit of data, such as a region of a mapped file, without copying
+     * them. The page keeps a reference to the bytes, which must not be
+     * modified afterwards.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
-        // allocate and read the header slots of this page
+        // allocate and read the header slots of this page; the tuples are
+        // read when they are accessed
+        data = data.slice();
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        data.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                if (isSlotUsed(i)) {
-                    tuples[i] = readNextTuple(dis, i);
-                }
-                else tuples[i]=null;
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data = data;
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+        oldData = data;
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -95,7 +140,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
@@ -110,9 +155,15 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        ByteBuffer image = ByteBuffer.wrap(getPageData());
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = image;
+        }
+        // the image holds the same bytes for the slots not decoded yet, so
+        // the older array can go
+        synchronized (this) {
+            data = image;
         }
     }
 
@@ -125,23 +176,67 @@ public class HeapPage implements Page {
     //throw new UnsupportedOperationException("implement this");
     }
 
+    /** @return the offset of the given slot in the page data */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /** @return the bytes of the given slot in the page data; the caller holds the page's monitor */
+    private ByteBuffer slotData(int slotId) {
+        ByteBuffer slot = data.duplicate();
+        slot.position(slotOffset(slotId));
+        slot.limit(slotOffset(slotId) + td.getSize());
+        return slot;
+    }
+
+    /** Reads the bytes of a buffer, from its position to its limit. */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in the given slot, decoding it from the page data if
+     * this is the first access to it.
+     *
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    private Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId))
             return null;
+        Tuple t = tuples[slotId];
+        if (t != null)
+            return t;
+        synchronized (this) {
+            if (tuples[slotId] == null) {
+                DataInputStream dis = new DataInputStream(new BufferInputStream(slotData(slotId)));
+                tuples[slotId] = readNextTuple(dis, slotId);
+            }
+            return tuples[slotId];
         }
+    }
 
+    /**
+     * Suck up a tuple from the page data.
+     */
+    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
@@ -201,6 +296,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: its bytes are unchanged
+            if (tuples[i] == null) {
+                synchronized (this) {
+                    try {
+                        byte[] bytes = new byte[td.getSize()];
+                        slotData(i).get(bytes);
+                        dos.write(bytes);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -297,6 +406,115 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Insert the tuple into the given empty slot on behalf of tid, which
+     * holds the X lock of the slot's record. Unlike insertTuple(t), the
+     * change is remembered so that commitRecords() or abortRecords() can
+     * install or undo it on its own.
+     *
+     * @throws DbException if the slot is not empty or the tupledesc is
+     *         mismatched
+     */
+    public synchronized void insertTuple(TransactionId tid, Tuple t, int slot) throws DbException {
+        if (!t.getTupleDesc().equals(td)){
+            throw new DbException("the tupledes is not equal to this");
+        }
+        if (slot >= numSlots || isSlotUsed(slot)){
+            throw new DbException("slot is not empty");
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        setSlot(slot, t);
+        changes.add(new RecordChange(tid, slot, null, t));
+    }
+
+    /**
+     * Delete the tuple on behalf of tid, which holds the X lock of its
+     * record, remembering the change like insertTuple(tid, t, slot).
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        int slot = t.getRecordId().getTupleNumber();
+        Tuple before = slot < numSlots ? getTuple(slot) : null;
+        deleteTuple(t);
+        changes.add(new RecordChange(tid, slot, before, null));
+    }
+
+    /** @return true if tid made changes under record locks that are not committed yet */
+    public synchronized boolean hasRecordChanges(TransactionId tid) {
+        for (RecordChange c : changes) {
+            if (c.tid.equals(tid))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Install the changes tid made under record locks in the before image,
+     * which is the committed version of the page. The changes of other
+     * transactions stay pending.
+     */
+    public synchronized void commitRecords(TransactionId tid) {
+        HeapPage committed = getBeforeImage();
+        for (Iterator<RecordChange> it = changes.iterator(); it.hasNext();) {
+            RecordChange c = it.next();
+            if (c.tid.equals(tid)) {
+                committed.setSlot(c.slot, c.after);
+                it.remove();
+            }
+        }
+        ByteBuffer image = ByteBuffer.wrap(committed.getPageData());
+        synchronized(oldDataLock)
+        {
+        oldData = image;
+        }
+        if (changes.isEmpty())
+            dirty = false;
+    }
+
+    /** Undo the changes tid made under record locks, newest first. */
+    public synchronized void abortRecords(TransactionId tid) {
+        for (ListIterator<RecordChange> it = changes.listIterator(changes.size()); it.hasPrevious();) {
+            RecordChange c = it.previous();
+            if (c.tid.equals(tid)) {
+                setSlot(c.slot, c.before);
+                it.remove();
+            }
+        }
+        if (changes.isEmpty())
+            dirty = false;
+    }
+
+    /**
+     * @return the slots a record-locking reader has to lock and look at:
+     *         the used ones, and those emptied by a delete that is not
+     *         committed yet
+     */
+    public synchronized List<Integer> recordSlots() {
+        List<Integer> slots = new ArrayList<Integer>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i))
+                slots.add(i);
+        }
+        for (RecordChange c : changes) {
+            if (c.before != null && !isSlotUsed(c.slot) && !slots.contains(c.slot))
+                slots.add(c.slot);
+        }
+        return slots;
+    }
+
+    /** @return the tuple in the slot, or null if the slot is empty */
+    public synchronized Tuple tupleAt(int slot) {
+        return getTuple(slot);
+    }
+
+    /** Put the tuple, which already has its RecordId, in the slot, or empty the slot if it is null. */
+    private void setSlot(int slot, Tuple t) {
+        tuples[slot] = t;
+        markSlotUsed(slot, t != null);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -316,6 +534,10 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
+        synchronized (this) {
+            if (!changes.isEmpty())
+                return changes.get(changes.size() - 1).tid;
+        }
         if (dirty){
             return dirtierTid;
         }
@@ -416,13 +638,30 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tuple2=new ArrayList<>();
-        for(int i=0;i<getNumTuples();i++){
-            if(tuples[i]!=null){
-                tuple2.add(tuples[i]);
+        // tuples are decoded as the iterator reaches them
+        return new Iterator<Tuple>() {
+            private int slot = 0;
+            private Tuple next = null;
+
+            public boolean hasNext() {
+                while (next == null && slot < numSlots) {
+                    next = getTuple(slot++);
+                }
+                return next != null;
             }
-        }
-        return tuple2.iterator();
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
@@ -5,6 +5,13 @@ import java.io.IOException;
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
  * constructor
+ * <p>
+ * Inserts into heap files that do not fit in the BufferPool read the pages
+ * they search for free space through a BULK_WRITE BufferAccessStrategy.
+ * <p>
+ * A bulk-load Insert into a heap file appends the tuples to new pages
+ * through BufferPool.bulkLoad instead of inserting them one at a time,
+ * locking the whole table until the transaction completes.
  */
 public class Insert extends Operator {
 
@@ -17,6 +24,7 @@ public class Insert extends Operator {
     private OpIterator[] opIterators;
    // private Tuple next=null;
     private Tuple res;
+    private final boolean bulkLoad;
     /**
      * Constructor.
      *
@@ -33,6 +41,25 @@ public class Insert extends Operator {
     public Insert(TransactionId t, OpIterator child, int tableId)
             throws DbException {
         // some code goes here
+        this(t, child, tableId, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableId
+     *            The table in which to insert tuples.
+     * @param bulkLoad
+     *            Whether tuples are appended to new pages of a heap file
+     *            with BufferPool.bulkLoad.
+     */
+    public Insert(TransactionId t, OpIterator child, int tableId, boolean bulkLoad)
+            throws DbException {
+        this.bulkLoad=bulkLoad;
         tid=t;
         childOper=child;
         this.tableId=tableId;
@@ -98,9 +125,29 @@ public class Insert extends Operator {
         // some code goes here
         if (!hasCalled) {
             int i = 0;
+            BufferPool bp = Database.getBufferPool();
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+            if (bulkLoad && dbFile instanceof HeapFile) {
+                HeapFile.BulkLoad load = bp.bulkLoad(tid, tableId);
+                try {
+                    while (childOper.hasNext()) {
+                        load.insert(childOper.next());
+                        i++;
+                    }
+                    load.finish();
+                } catch (IOException e) {
+                    throw new DbException("bulk load into table " + tableId + " failed: " + e.getMessage());
+                }
+                res.setField(0, new IntField(i));
+                hasCalled=true;
+                return res;
+            }
+            BufferAccessStrategy strategy = dbFile instanceof HeapFile
+                    ? bp.getStrategy(BufferAccessStrategy.Kind.BULK_WRITE, ((HeapFile) dbFile).numPages())
+                    : null;
             while (childOper.hasNext()) {
                 try {
-                    Database.getBufferPool().insertTuple(tid, tableId, childOper.next());
+                    bp.insertTuple(tid, tableId, childOper.next(), strategy);
                     i++;
                 } catch (IOException e) {
                     e.printStackTrace();
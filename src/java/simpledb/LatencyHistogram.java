@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts how long an operation took, in buckets whose
+ * bounds double from one bucket to the next: bucket 0 counts samples below
+ * one microsecond, and bucket i counts samples of at least 2^(i-1) and
+ * less than 2^i microseconds. The last bucket also takes everything longer.
+ * <p>
+ * Samples are added to striped counters, so threads recording at the same
+ * time do not contend for a single cache line.
+ *
+ * @Threadsafe
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /** Record one sample of the given duration. */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        totalNanos.add(nanos);
+    }
+
+    /** @return the number of samples in each bucket */
+    public long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    /** @return the number of samples */
+    public long getCount() {
+        long n = 0;
+        for (LongAdder bucket : buckets)
+            n += bucket.sum();
+        return n;
+    }
+
+    /** @return the mean of the samples in microseconds, or 0 if there are none */
+    public double getMeanMicros() {
+        long n = getCount();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * @param fraction a fraction between 0 and 1, e.g. 0.99
+     * @return the upper bound in microseconds of the bucket holding the
+     *         sample at the given fraction of the samples, or 0 if there are
+     *         none
+     */
+    public long getPercentileMicros(double fraction) {
+        long[] counts = getCounts();
+        long n = 0;
+        for (long c : counts)
+            n += c;
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /** Forget all samples. */
+    public void reset() {
+        for (LongAdder bucket : buckets)
+            bucket.reset();
+        totalNanos.reset();
+    }
+
+    public String toString() {
+        return String.format("n=%d mean %.1f us p50 %d us p99 %d us", getCount(),
+                getMeanMicros(), getPercentileMicros(0.5), getPercentileMicros(0.99));
+    }
+}
@@ -1,106 +1,951 @@
 package simpledb;
-import com.sun.scenario.animation.shared.ClipEnvelope;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockTable records the locks held by each transaction on records, pages
+ * and whole tables, and queues the requests that cannot be granted yet.
+ * <p>
+ * Locks are taken at three levels of granularity. Record and page locks
+ * are shared (S) or exclusive (X). Table and page locks may also be
+ * intention locks (see Mode): a transaction that locks pages of a table
+ * holds IS or IX on the table first, and one that locks records of a page
+ * holds IS or IX on the page, so that an S or X lock conflicts with the
+ * locks taken under it without having to look at them. A transaction
+ * holding S or X on a table or page needs no locks under it; see
+ * BufferPool for the protocol. The
+ * locks of each transaction are recorded, by table, so that they can be
+ * released at commit without searching the table, and so that a
+ * transaction holding many page locks of a table can trade them for one
+ * table lock (see escalate()), or many record locks of a page for one
+ * page lock (see escalateRecords()).
+ * <p>
+ * Every locked record, page or table has a Lock with the set of holders and a
+ * FIFO queue of waiting requests. A request is granted at once only if it
+ * is compatible with the holders and nobody is queued before it, so a
+ * stream of shared requests cannot starve an exclusive one. When a holder
+ * releases the lock, the releasing thread grants the requests at the head
+ * of the queue that have become compatible and wakes their threads;
+ * waiters never poll.
+ * <p>
+ * A holder that asks for a stronger mode (an upgrade, e.g. S to X, or S
+ * to SIX for a table) is queued ahead of all requests of transactions
+ * that do not hold the lock yet, since they could not be granted before
+ * it anyway, and is granted as soon as the other holders allow it.
+ * <p>
+ * Deadlocks are found with a wait-for graph: a waiting transaction waits
+ * for the holders and the earlier queued requests its request conflicts
+ * with. The graph is not stored but read from the locks, and searched for
+ * a cycle every time a request blocks, so a deadlock is found by the
+ * request that closes it, right when it is closed. One transaction of the
+ * cycle, chosen by the VictimPolicy, has its request fail with
+ * TransactionAbortedException; the others keep waiting. A request also
+ * gives up after a timeout, as a backstop for waits the graph cannot see.
+ * The timeout of each wait is stretched by a random amount of up to the
+ * same length again, so that waiters that started together do not all
+ * give up at once.
+ * <p>
+ * Instead of detecting deadlocks, a LockTable can prevent them by the age
+ * of the transactions, given by their TransactionId counter (see
+ * DeadlockPolicy). Under WAIT_DIE a request may only wait for younger
+ * transactions; a younger request that would wait for an older one fails
+ * at once. Under WOUND_WAIT an older request wounds the younger
+ * transactions it would wait for: a wounded transaction that is waiting
+ * fails at once, and one that is running fails the next time it would
+ * have to wait, while the older request waits for it to finish. Either
+ * way every wait is for a transaction of one age only, so no cycle can
+ * form and no graph is searched. The rules are checked again for every
+ * waiter of a lock whenever a request is queued, since an upgrade queued
+ * ahead of a waiter adds a transaction for it to wait for.
+ * <p>
+ * Every request that waits is recorded in the table's ContentionProfiler,
+ * with the transactions it waited for, once it is done waiting.
+ * <p>
+ * Each Lock is its own monitor, so requests for different pages never
+ * contend. Record locks share the queues, deadlock handling and release
+ * at commit of page and table locks. The search for cycles holds the detector's monitor and visits
+ * the locks one at a time; no thread takes the detector's monitor while it
+ * holds a Lock. BufferPool waits for locks outside of its partition
+ * latches.
+ *
+ * @Threadsafe
+ */
 public class LockTable {
-    private Map<PageId, ArrayList<PageState>> pages;
 
-    public LockTable() {
-        pages = new ConcurrentHashMap<>();
+    /** Which transaction of a deadlock is aborted. */
+    public enum VictimPolicy {
+        /** The transaction that started last. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks, the youngest of those on a tie. */
+        FEWEST_LOCKS
+    }
+
+    /**
+     * Lock modes. Records are only locked S or X; the intention modes are
+     * for tables and pages.
+     */
+    public enum Mode {
+        /** Intention to read parts of the table or page, locking them S. */
+        IS,
+        /** Intention to write parts of the table or page, locking them X. */
+        IX,
+        /** Read all of it. */
+        S,
+        /** Read all of it and write some parts of it: S and IX at once. */
+        SIX,
+        /** Read and write all of it. */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions may hold this mode and other together */
+        public boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return true if holding this mode allows everything other allows */
+        public boolean covers(Mode other) {
+            switch (this) {
+            case IS:
+                return other == IS;
+            case IX:
+                return other == IS || other == IX;
+            case S:
+                return other == IS || other == S;
+            case SIX:
+                return other != X;
+            default:
+                return true;
+            }
+        }
+
+        /** @return the weakest mode that allows everything this and other allow */
+        public Mode combine(Mode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            // only IX and S are incomparable
+            return SIX;
+        }
+
+        /** @return the S or X mode of a page or record lock */
+        public static Mode of(boolean exclusive) {
+            return exclusive ? X : S;
+        }
+    }
+
+    /** How deadlocks among the waiting transactions are handled. */
+    public enum DeadlockPolicy {
+        /** Search the wait-for graph and abort a victim of each cycle. */
+        DETECT,
+        /** Older transactions wait for younger ones; younger ones abort. */
+        WAIT_DIE,
+        /** Older transactions abort the younger ones; younger ones wait. */
+        WOUND_WAIT
+    }
+
+    /** A lock request of one transaction, queued until it is granted. */
+    private static class Request {
+        final TransactionId tid;
+        /** The mode tid holds once the request is granted. */
+        final Mode mode;
+        final Lock lock;
+        boolean granted;
+        /** Set when the request was chosen to break or prevent a deadlock. */
+        boolean aborted;
+
+        Request(TransactionId tid, Mode mode, Lock lock) {
+            this.tid = tid;
+            this.mode = mode;
+            this.lock = lock;
+        }
     }
 
-    public boolean addSlock(PageId pid, TransactionId tid) {
-        if (pages.get(pid) != null) {
-            ArrayList<PageState> states = pages.get(pid);
-            int statesFlag = 0;
-            for (int i = 0; i < states.size(); i++) {
-                if (states.get(i).getTid() != tid && states.get(i).getState() == -1) {
+    /**
+     * The lock of one record, page or table. All fields but the key are guarded by
+     * the Lock itself.
+     */
+    private static class Lock {
+        /** The map the lock is found in, and its key there. */
+        final Map<?, Lock> owner;
+        final Object key;
+        /** The transactions holding the lock, and in which mode. */
+        final Map<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+        final LinkedList<Request> queue = new LinkedList<Request>();
+        /** Set when the lock has been removed from the table; users must look it up again. */
+        boolean removed;
+
+        Lock(Map<?, Lock> owner, Object key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        /** @return true if tid could hold the lock in the given mode if nobody were queued before it */
+        boolean compatible(TransactionId tid, Mode mode) {
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !mode.compatible(e.getValue()))
                     return false;
+            }
+            return true;
+        }
+
+        /** @return true if tid holds the lock at least in the requested mode */
+        boolean covers(TransactionId tid, Mode mode) {
+            Mode held = holders.get(tid);
+            return held != null && held.covers(mode);
+        }
+
+        /** @return the mode tid holds after it is also granted the given mode */
+        Mode target(TransactionId tid, Mode mode) {
+            Mode held = holders.get(tid);
+            return held == null ? mode : held.combine(mode);
+        }
+
+        void grant(TransactionId tid, Mode mode) {
+            holders.put(tid, target(tid, mode));
+        }
+
+        /**
+         * Grant the requests at the head of the queue that are compatible
+         * now. Aborted requests are dropped, never granted: their threads
+         * are about to fail them.
+         */
+        void grantWaiters() {
+            boolean granted = false;
+            while (!queue.isEmpty()) {
+                Request r = queue.getFirst();
+                if (r.aborted) {
+                    queue.removeFirst();
+                    continue;
                 }
-                if (states.get(i).getTid() == tid) {
-                    if (states.get(i).getState() == 1) {
-                        statesFlag = 1;//当前事务有读锁
-                    }
-                    if (states.get(i).getState() == -1) {
-                        statesFlag = -1;//当前事务有写锁
-                    }
+                if (!compatible(r.tid, r.mode))
+                    break;
+                queue.removeFirst();
+                grant(r.tid, r.mode);
+                r.granted = true;
+                granted = true;
+            }
+            if (granted)
+                notifyAll();
+        }
+
+        /** @return true if tid has a request in the queue */
+        boolean queued(TransactionId tid) {
+            for (Request q : queue) {
+                if (q.tid.equals(tid))
+                    return true;
+            }
+            return false;
+        }
+
+        /** @return the transactions the queued request r waits for */
+        Set<TransactionId> blockers(Request r) {
+            Set<TransactionId> blockers = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(r.tid) && !r.mode.compatible(e.getValue()))
+                    blockers.add(e.getKey());
+            }
+            for (Request q : queue) {
+                if (q == r)
+                    break;
+                if (!q.tid.equals(r.tid) && !q.aborted && !r.mode.compatible(q.mode))
+                    blockers.add(q.tid);
+            }
+            return blockers;
+        }
+    }
+
+    /** The locks one transaction holds. Guarded by the Held itself. */
+    private static class Held {
+        /** The pages locked, by table id. */
+        final Map<Integer, Set<PageId>> pages = new HashMap<Integer, Set<PageId>>();
+        final Set<Integer> tables = new HashSet<Integer>();
+        /** The records locked, by page. */
+        final Map<PageId, Set<RecordId>> records = new HashMap<PageId, Set<RecordId>>();
+    }
+
+    private final ConcurrentHashMap<PageId, Lock> locks = new ConcurrentHashMap<PageId, Lock>();
+    /** The locks of single tuples, by the slot they occupy. */
+    private final ConcurrentHashMap<RecordId, Lock> recordLocks = new ConcurrentHashMap<RecordId, Lock>();
+    /** The locks of whole tables, by table id. */
+    private final ConcurrentHashMap<Integer, Lock> tableLocks = new ConcurrentHashMap<Integer, Lock>();
+    /** The locks each transaction holds, so they can be released without a search. */
+    private final ConcurrentHashMap<TransactionId, Held> held = new ConcurrentHashMap<TransactionId, Held>();
+    /** The request each blocked transaction waits on: the nodes of the wait-for graph. */
+    private final ConcurrentHashMap<TransactionId, Request> waiting =
+            new ConcurrentHashMap<TransactionId, Request>();
+    private final Object detector = new Object();
+    private final DeadlockPolicy deadlockPolicy;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final ContentionProfiler contention = new ContentionProfiler();
+    /** Running transactions wounded by older ones, under WOUND_WAIT. */
+    private final Set<TransactionId> wounded =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+
+    /** Create a LockTable that detects deadlocks. */
+    public LockTable() {
+        this(DeadlockPolicy.DETECT);
+    }
+
+    public LockTable(DeadlockPolicy deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+    }
+
+    /** @return the profile of the waits for the locks of this LockTable */
+    public ContentionProfiler getContention() {
+        return contention;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
+
+    /** Choose which transaction of a deadlock is aborted; only used by DETECT. */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /**
+     * @return the number of deadlocks found so far, or under WAIT_DIE and
+     *         WOUND_WAIT the number of requests failed to prevent one
+     */
+    public long getDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /**
+     * Grant the lock if it can be granted without waiting.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @return true if tid now holds the lock, false if it would have to wait
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, boolean exclusive) {
+        return tryAcquire(tid, pid, Mode.of(exclusive));
+    }
+
+    /**
+     * Grant the page lock in the given mode, which is IS or IX if tid goes
+     * on to lock records of the page, if it can be granted without waiting.
+     *
+     * @return true if tid now holds the lock, false if it would have to wait
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Mode mode) {
+        if (!tryAcquire(locks, pid, tid, mode))
+            return false;
+        pageLocked(tid, pid);
+        return true;
+    }
+
+    /**
+     * Grant the record lock if it can be granted without waiting.
+     *
+     * @return true if tid now holds the lock, false if it would have to wait
+     */
+    public boolean tryAcquireRecord(TransactionId tid, RecordId rid, boolean exclusive) {
+        if (!tryAcquire(recordLocks, rid, tid, Mode.of(exclusive)))
+            return false;
+        recordLocked(tid, rid);
+        return true;
+    }
+
+    /**
+     * Grant the table lock if it can be granted without waiting.
+     *
+     * @return true if tid now holds the lock, false if it would have to wait
+     */
+    public boolean tryAcquireTable(TransactionId tid, int tableId, Mode mode) {
+        if (!tryAcquire(tableLocks, tableId, tid, mode))
+            return false;
+        tableLocked(tid, tableId);
+        return true;
+    }
+
+    private static <K> boolean tryAcquire(ConcurrentHashMap<K, Lock> map, K key,
+            TransactionId tid, Mode mode) {
+        while (true) {
+            Lock lock = lockFor(map, key);
+            synchronized (lock) {
+                if (lock.removed)
+                    continue;
+                if (lock.covers(tid, mode))
+                    return true;
+                if (lock.queue.isEmpty() && lock.compatible(tid, lock.target(tid, mode))) {
+                    lock.grant(tid, mode);
+                    return true;
                 }
+                return false;
             }
-            if (statesFlag == 1) {
-                return true;
-            } else {
-                states.add(new PageState(tid, 1));
-                return true;
+        }
+    }
+
+    /**
+     * Grant the lock, waiting in the page's queue until it is compatible
+     * with the holders and every request queued before it is granted.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @param timeoutMillis the shortest time to wait before giving up; the
+     *            request gives up before twice that time
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or the lock was not granted in time
+     */
+    public void acquire(TransactionId tid, PageId pid, boolean exclusive, long timeoutMillis)
+            throws TransactionAbortedException {
+        acquire(tid, pid, Mode.of(exclusive), timeoutMillis);
+    }
+
+    /**
+     * Grant the page lock in the given mode, waiting like acquire(tid, pid,
+     * exclusive, timeoutMillis) does.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or the lock was not granted in time
+     */
+    public void acquire(TransactionId tid, PageId pid, Mode mode, long timeoutMillis)
+            throws TransactionAbortedException {
+        acquire(locks, pid, tid, mode, timeoutMillis);
+        pageLocked(tid, pid);
+    }
+
+    /**
+     * Grant the record lock, waiting like acquire() does for a page lock.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or the lock was not granted in time
+     */
+    public void acquireRecord(TransactionId tid, RecordId rid, boolean exclusive, long timeoutMillis)
+            throws TransactionAbortedException {
+        acquire(recordLocks, rid, tid, Mode.of(exclusive), timeoutMillis);
+        recordLocked(tid, rid);
+    }
+
+    private Held heldBy(TransactionId tid) {
+        Held h = held.get(tid);
+        if (h == null) {
+            Held created = new Held();
+            h = held.putIfAbsent(tid, created);
+            if (h == null)
+                h = created;
+        }
+        return h;
+    }
+
+    private void pageLocked(TransactionId tid, PageId pid) {
+        Held h = heldBy(tid);
+        synchronized (h) {
+            Set<PageId> pages = h.pages.get(pid.getTableId());
+            if (pages == null) {
+                pages = new HashSet<PageId>();
+                h.pages.put(pid.getTableId(), pages);
             }
+            pages.add(pid);
         }
+    }
 
-        PageState pageState = new PageState(tid, 1);
-        ArrayList stateList = new ArrayList();
-        stateList.add(pageState);
-        pages.put(pid, stateList);
+    private void recordLocked(TransactionId tid, RecordId rid) {
+        Held h = heldBy(tid);
+        synchronized (h) {
+            Set<RecordId> records = h.records.get(rid.getPageId());
+            if (records == null) {
+                records = new HashSet<RecordId>();
+                h.records.put(rid.getPageId(), records);
+            }
+            records.add(rid);
+        }
+    }
+
+    private void tableLocked(TransactionId tid, int tableId) {
+        Held h = heldBy(tid);
+        synchronized (h) {
+            h.tables.add(tableId);
+        }
+    }
+
+    /** @return the number of pages of the table tid holds locks on */
+    public int pageLockCount(TransactionId tid, int tableId) {
+        Held h = held.get(tid);
+        if (h == null)
+            return 0;
+        synchronized (h) {
+            Set<PageId> pages = h.pages.get(tableId);
+            return pages == null ? 0 : pages.size();
+        }
+    }
+
+    /**
+     * Trade the page locks tid holds in the table for one lock on the
+     * table: X if any of the pages is locked X or IX, else S. The table lock is
+     * only taken if it can be granted without waiting, so escalating never
+     * blocks and cannot deadlock; the page locks are kept if it cannot.
+     *
+     * @return true if tid now holds the table lock and no page locks in it
+     */
+    public boolean escalate(TransactionId tid, int tableId) {
+        Held h = held.get(tid);
+        if (h == null)
+            return false;
+        List<PageId> pages;
+        synchronized (h) {
+            Set<PageId> locked = h.pages.get(tableId);
+            if (locked == null)
+                return false;
+            pages = new ArrayList<PageId>(locked);
+        }
+        Mode mode = Mode.S;
+        for (PageId pid : pages) {
+            Mode held = heldMode(locks, pid, tid);
+            if (held != null && !Mode.S.covers(held)) {
+                mode = Mode.X;
+                break;
+            }
+        }
+        if (!tryAcquireTable(tid, tableId, mode))
+            return false;
+        for (PageId pid : pages)
+            unlock(pid, tid);
         return true;
     }
 
-    public boolean addXlock(PageId pid, TransactionId tid) {
-        if (pages.get(pid) != null) {
-            ArrayList<PageState> states = pages.get(pid);
-            int statesFlag = 0;
-            int readLockIndex = 0;
-            for (int i = 0; i < states.size(); i++) {//若states中无，则不循环
-                if (states.get(i).getTid() != tid) {
-                    return false;
+    /** @return the number of records of the page tid holds locks on */
+    public int recordLockCount(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h == null)
+            return 0;
+        synchronized (h) {
+            Set<RecordId> records = h.records.get(pid);
+            return records == null ? 0 : records.size();
+        }
+    }
+
+    /**
+     * Trade the record locks tid holds in the page for one lock on the
+     * page: X if any of the records is locked X, else S. Like escalate(),
+     * this never waits, and keeps the record locks if the page lock cannot
+     * be granted at once.
+     *
+     * @return true if tid now holds the page lock and no record locks in it
+     */
+    public boolean escalateRecords(TransactionId tid, PageId pid) {
+        Held h = held.get(tid);
+        if (h == null)
+            return false;
+        List<RecordId> records;
+        synchronized (h) {
+            Set<RecordId> locked = h.records.get(pid);
+            if (locked == null)
+                return false;
+            records = new ArrayList<RecordId>(locked);
+        }
+        Mode mode = Mode.S;
+        for (RecordId rid : records) {
+            if (heldMode(recordLocks, rid, tid) == Mode.X) {
+                mode = Mode.X;
+                break;
+            }
+        }
+        if (!tryAcquire(tid, pid, mode))
+            return false;
+        for (RecordId rid : records) {
+            Lock lock = recordLocks.get(rid);
+            if (lock != null)
+                unlock(lock, tid);
+        }
+        synchronized (h) {
+            h.records.remove(pid);
+        }
+        return true;
+    }
+
+    /**
+     * Grant the table lock, waiting like acquire() does for a page lock.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break or
+     *             prevent a deadlock, or the lock was not granted in time
+     */
+    public void acquireTable(TransactionId tid, int tableId, Mode mode, long timeoutMillis)
+            throws TransactionAbortedException {
+        acquire(tableLocks, tableId, tid, mode, timeoutMillis);
+        tableLocked(tid, tableId);
+    }
+
+    private <K> void acquire(ConcurrentHashMap<K, Lock> map, K key, TransactionId tid,
+            Mode mode, long timeoutMillis) throws TransactionAbortedException {
+        Request r;
+        List<TransactionId> wound = null;
+        Set<TransactionId> blockers;
+        while (true) {
+            Lock lock = lockFor(map, key);
+            synchronized (lock) {
+                if (lock.removed)
+                    continue;
+                if (lock.covers(tid, mode))
+                    return;
+                Mode target = lock.target(tid, mode);
+                if (lock.queue.isEmpty() && lock.compatible(tid, target)) {
+                    lock.grant(tid, mode);
+                    return;
                 }
-                if (states.get(i).getTid() == tid) {
-                    if (states.get(i).getState() == 1) {
-                        statesFlag = 1;//当前事务有读锁
-                        readLockIndex = i;
-                    }
-                    if (states.get(i).getState() == -1) {
-                        statesFlag = -1;//当前事务有写锁
-                    }
+                r = new Request(tid, target, lock);
+                enqueue(lock, r);
+                // an upgrade by the only holder is granted at once
+                lock.grantWaiters();
+                if (r.granted)
+                    return;
+                waiting.put(tid, r);
+                blockers = lock.blockers(r);
+                if (deadlockPolicy != DeadlockPolicy.DETECT)
+                    wound = prevent(lock);
+            }
+            break;
+        }
+        long start = System.nanoTime();
+        try {
+            if (deadlockPolicy == DeadlockPolicy.DETECT) {
+                detectDeadlock(r);
+            } else if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT) {
+                // checked after r is in waiting, so a concurrent wound
+                // either is seen here or finds r there and aborts it
+                if (wounded.remove(tid)) {
+                    deadlocks.incrementAndGet();
+                    throw new TransactionAbortedException();
                 }
+                for (TransactionId younger : wound)
+                    wound(younger, r.lock);
             }
-            if (statesFlag == 1) {
-                states.get(readLockIndex).setState(-1);
-                return true;
+            synchronized (r.lock) {
+                await(r, timeoutMillis);
             }
-            if (statesFlag == 0) {
-                states.add(new PageState(tid, -1));
-                return true;
+        } finally {
+            waiting.remove(tid, r);
+            synchronized (r.lock) {
+                if (!r.granted) {
+                    r.lock.queue.remove(r);
+                    // requests queued behind r may be compatible now
+                    r.lock.grantWaiters();
+                    removeIfUnused(r.lock);
+                }
             }
-            if (statesFlag==-1){
-                return true;
+            contention.waited(key, tid, blockers, System.nanoTime() - start);
+        }
+    }
+
+    /** Queue the request, upgrades ahead of the transactions that hold nothing yet. */
+    private static void enqueue(Lock lock, Request r) {
+        if (!lock.holders.containsKey(r.tid)) {
+            lock.queue.addLast(r);
+            return;
+        }
+        ListIterator<Request> it = lock.queue.listIterator();
+        while (it.hasNext()) {
+            if (!lock.holders.containsKey(it.next().tid)) {
+                it.previous();
+                break;
             }
         }
-        PageState pageState = new PageState(tid, -1);
-        ArrayList stateList = new ArrayList();
-        stateList.add(pageState);
-        pages.put(pid, stateList);
-        return true;
+        it.add(r);
     }
-    public void unlock(PageId pid,TransactionId tid){
-        ArrayList<PageState> statesList=pages.get(pid);
-        if (statesList!=null) {
-            for (int i = statesList.size()-1; i>=0; i--) {
-                if (statesList.get(i).getTid() == tid) {
-                    statesList.remove(i);
+
+    /**
+     * Wait on the lock's monitor until r is granted, chosen as the victim
+     * of a deadlock, or the timeout expires. The caller holds the monitor,
+     * and removes r from the queue if it was not granted.
+     */
+    private static void await(Request r, long timeoutMillis) throws TransactionAbortedException {
+        long timeoutNanos = timeoutMillis * 1000000;
+        long deadline = System.nanoTime() + timeoutNanos
+                + (long) (ThreadLocalRandom.current().nextDouble() * timeoutNanos);
+        boolean interrupted = false;
+        try {
+            while (!r.granted) {
+                long left = deadline - System.nanoTime();
+                if (r.aborted || left <= 0)
+                    throw new TransactionAbortedException();
+                try {
+                    r.lock.wait(left / 1000000, (int) (left % 1000000));
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
     }
-    public boolean holdLock(PageId pid,TransactionId tid) {
-            if (pages.get(pid)==null){
-                return false;
+
+    /**
+     * Apply the prevention rule to every waiter of the lock; the caller
+     * holds its monitor. Under WAIT_DIE the waiters that wait for an older
+     * transaction are failed here.
+     *
+     * @return under WOUND_WAIT, the younger transactions the waiters wait
+     *         for, to be wounded once the monitor is released
+     */
+    private List<TransactionId> prevent(Lock lock) {
+        List<TransactionId> wound = new ArrayList<TransactionId>();
+        boolean died = false;
+        for (Request q : lock.queue) {
+            if (q.aborted)
+                continue;
+            for (TransactionId b : lock.blockers(q)) {
+                boolean older = b.getId() < q.tid.getId();
+                if (deadlockPolicy == DeadlockPolicy.WAIT_DIE && older) {
+                    q.aborted = true;
+                    died = true;
+                    deadlocks.incrementAndGet();
+                    break;
+                }
+                if (deadlockPolicy == DeadlockPolicy.WOUND_WAIT && !older)
+                    wound.add(b);
             }
-            ArrayList<PageState> statelist=pages.get(pid);
-            for (int i=0;i<statelist.size();i++){
-                if (statelist.get(i).getTid()==tid){
-                    return true;
+        }
+        if (died)
+            lock.notifyAll();
+        return wound;
+    }
+
+    /**
+     * Abort a younger transaction an older one waits for at the given
+     * lock: its request if it is waiting, else its next request that has
+     * to wait.
+     */
+    private void wound(TransactionId tid, Lock at) {
+        wounded.add(tid);
+        synchronized (at) {
+            // tid may have finished since; its locks are released before
+            // transactionComplete() forgets it, so this check is enough
+            if (!at.holders.containsKey(tid) && !at.queued(tid)) {
+                wounded.remove(tid);
+                return;
+            }
+        }
+        Request r = waiting.get(tid);
+        if (r == null)
+            return;
+        synchronized (r.lock) {
+            if (!r.granted && !r.aborted && wounded.remove(tid)) {
+                r.aborted = true;
+                deadlocks.incrementAndGet();
+                r.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Release all locks of a finished transaction and forget it. Only the
+     * locks it holds are visited, however many other locks there are.
+     */
+    public void transactionComplete(TransactionId tid) {
+        Held h = held.remove(tid);
+        if (h != null) {
+            synchronized (h) {
+                for (Set<PageId> pages : h.pages.values()) {
+                    for (PageId pid : pages) {
+                        Lock lock = locks.get(pid);
+                        if (lock != null)
+                            unlock(lock, tid);
+                    }
+                }
+                for (Set<RecordId> records : h.records.values()) {
+                    for (RecordId rid : records) {
+                        Lock lock = recordLocks.get(rid);
+                        if (lock != null)
+                            unlock(lock, tid);
+                    }
+                }
+                for (Integer tableId : h.tables) {
+                    Lock lock = tableLocks.get(tableId);
+                    if (lock != null)
+                        unlock(lock, tid);
                 }
             }
-            return false;
+        }
+        wounded.remove(tid);
+    }
+
+    /**
+     * Look for cycles of waiting transactions through the request that
+     * just blocked, and abort the victim of each. A request may close
+     * several cycles at once, so the search is repeated until none is left
+     * or the blocked request itself was chosen.
+     */
+    private void detectDeadlock(Request blocked) {
+        synchronized (detector) {
+            while (true) {
+                List<Request> cycle = findCycle(blocked);
+                if (cycle == null)
+                    return;
+                deadlocks.incrementAndGet();
+                Request victim = chooseVictim(cycle);
+                synchronized (victim.lock) {
+                    if (!victim.granted) {
+                        victim.aborted = true;
+                        victim.lock.notifyAll();
+                    }
+                }
+                if (victim == blocked)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Depth-first search of the wait-for graph for a path from the
+     * transaction of start back to itself.
+     *
+     * @return the requests the transactions on the cycle wait on, or null
+     */
+    private List<Request> findCycle(Request start) {
+        List<Request> path = new ArrayList<Request>();
+        Deque<Iterator<TransactionId>> stack = new ArrayDeque<Iterator<TransactionId>>();
+        Set<TransactionId> visited = new HashSet<TransactionId>();
+        path.add(start);
+        stack.push(blockers(start).iterator());
+        visited.add(start.tid);
+        while (!stack.isEmpty()) {
+            Iterator<TransactionId> it = stack.peek();
+            if (!it.hasNext()) {
+                stack.pop();
+                path.remove(path.size() - 1);
+                continue;
+            }
+            TransactionId next = it.next();
+            if (next.equals(start.tid))
+                return path;
+            if (!visited.add(next))
+                continue;
+            Request r = waiting.get(next);
+            if (r == null)
+                continue; // next is running, so no cycle goes through it
+            path.add(r);
+            stack.push(blockers(r).iterator());
+        }
+        return null;
     }
-}
 
+    /** @return the transactions r waits for, none if it is no longer waiting */
+    private static Set<TransactionId> blockers(Request r) {
+        synchronized (r.lock) {
+            if (r.granted || r.aborted)
+                return Collections.emptySet();
+            return r.lock.blockers(r);
+        }
+    }
+
+    private Request chooseVictim(List<Request> cycle) {
+        Map<TransactionId, Integer> held = new HashMap<TransactionId, Integer>();
+        if (victimPolicy == VictimPolicy.FEWEST_LOCKS) {
+            for (Request r : cycle)
+                held.put(r.tid, 0);
+            List<Lock> all = new ArrayList<Lock>(locks.values());
+            all.addAll(tableLocks.values());
+            all.addAll(recordLocks.values());
+            for (Lock lock : all) {
+                synchronized (lock) {
+                    for (TransactionId tid : lock.holders.keySet()) {
+                        Integer n = held.get(tid);
+                        if (n != null)
+                            held.put(tid, n + 1);
+                    }
+                }
+            }
+        }
+        Request victim = null;
+        for (Request r : cycle) {
+            if (victim == null) {
+                victim = r;
+                continue;
+            }
+            int c = 0;
+            if (victimPolicy == VictimPolicy.FEWEST_LOCKS)
+                c = Integer.compare(held.get(victim.tid), held.get(r.tid));
+            if (c == 0)
+                c = Long.compare(r.tid.getId(), victim.tid.getId());
+            if (c > 0)
+                victim = r;
+        }
+        return victim;
+    }
+
+    /** Release the lock tid holds on the page, if any, and grant what that allows. */
+    public void unlock(PageId pid, TransactionId tid) {
+        Lock lock = locks.get(pid);
+        if (lock != null)
+            unlock(lock, tid);
+        Held h = held.get(tid);
+        if (h != null) {
+            synchronized (h) {
+                Set<PageId> pages = h.pages.get(pid.getTableId());
+                if (pages != null && pages.remove(pid) && pages.isEmpty())
+                    h.pages.remove(pid.getTableId());
+            }
+        }
+    }
+
+    private static void unlock(Lock lock, TransactionId tid) {
+        synchronized (lock) {
+            if (lock.holders.remove(tid) == null)
+                return;
+            lock.grantWaiters();
+            removeIfUnused(lock);
+        }
+    }
+
+    /** Drop the lock from its map if nobody holds or waits for it; the caller holds its monitor. */
+    private static void removeIfUnused(Lock lock) {
+        if (lock.holders.isEmpty() && lock.queue.isEmpty()) {
+            lock.removed = true;
+            lock.owner.remove(lock.key, lock);
+        }
+    }
+
+    /** @return true if tid holds a lock on the page */
+    public boolean holdLock(PageId pid, TransactionId tid) {
+        return heldMode(locks, pid, tid) != null;
+    }
+
+    /** @return the mode tid holds the page's lock in, or null if it does not hold it */
+    public Mode pageMode(TransactionId tid, PageId pid) {
+        return heldMode(locks, pid, tid);
+    }
+
+    /** @return the mode tid holds the record's lock in, or null if it does not hold it */
+    public Mode recordMode(TransactionId tid, RecordId rid) {
+        return heldMode(recordLocks, rid, tid);
+    }
+
+    /** @return the mode tid holds the table's lock in, or null if it does not hold it */
+    public Mode tableMode(TransactionId tid, int tableId) {
+        return heldMode(tableLocks, tableId, tid);
+    }
+
+    private static <K> Mode heldMode(ConcurrentHashMap<K, Lock> map, K key, TransactionId tid) {
+        Lock lock = map.get(key);
+        if (lock == null)
+            return null;
+        synchronized (lock) {
+            return lock.holders.get(tid);
+        }
+    }
+
+    private static <K> Lock lockFor(ConcurrentHashMap<K, Lock> map, K key) {
+        Lock lock = map.get(key);
+        if (lock == null) {
+            Lock created = new Lock(map, key);
+            lock = map.putIfAbsent(key, created);
+            if (lock == null)
+                lock = created;
+        }
+        return lock;
+    }
+}
@@ -51,8 +51,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and BULKLOAD
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,6 +67,12 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> BULKLOAD records consist of an integer table id and the long integer
+length of the table's file when a bulk load into it began (see
+HeapFile.BulkLoad).  The pages of a bulk load are written to the end of
+the file without UPDATE records, so a load whose transaction did not
+commit is undone by truncating the file to that length.
+
 </ul>
 
 */
@@ -82,6 +88,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULKLOAD_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -265,7 +272,15 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // the (id, byte[]) constructor; HeapPage also has one that
+            // takes a ByteBuffer
+            Constructor<?> pageConst = pageClass.getDeclaredConstructors()[0];
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class) {
+                    pageConst = c;
+                }
+            }
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +290,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +310,32 @@ public class LogFile {
 
     }
 
+    /** Write a BULKLOAD record for a bulk load by the specified
+        transaction, and force the log to disk, before the load writes
+        any page.  Loads of a transaction that did not begin in the log
+        are not recorded, since recovery could not tell whether it
+        committed.
+
+        @param tid The loading transaction
+        @param tableId The table loaded into
+        @param startLength The length of the table's file when the load began
+    */
+    public synchronized void logBulkLoad(TransactionId tid, int tableId, long startLength)
+        throws IOException {
+        if (tidToFirstLogRecord.get(tid.getId()) == null) {
+            return;
+        }
+        Debug.log("BULKLOAD " + tid.getId());
+        preAppend();
+        raf.writeInt(BULKLOAD_RECORD);
+        raf.writeLong(tid.getId());
+        raf.writeInt(tableId);
+        raf.writeLong(startLength);
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+        force();
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -429,6 +470,10 @@ public class LogFile {
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
+                case BULKLOAD_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeLong(raf.readLong());
+                    break;
                 }
 
                 //all xactions finish with a pointer
@@ -467,6 +512,139 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null) {
+                    return;
+                }
+                List<long[]> loads = new ArrayList<long[]>();
+                scan(first, loads, new HashSet<Long>(), new HashSet<Long>());
+                Iterator<long[]> it = loads.iterator();
+                while (it.hasNext()) {
+                    if (it.next()[0] != tid.getId()) {
+                        it.remove();
+                    }
+                }
+                rollBackBulkLoads(loads);
+            }
+        }
+    }
+
+    /** Read the BULKLOAD records from the given offset to the end of the
+        log, and the transactions that committed or aborted since.  The
+        file pointer is left where it was.
+
+        @param loads Receives the tid, table id and start length of each load, in log order
+        @param committed Receives the ids of the transactions with a COMMIT record
+        @param aborted Receives the ids of the transactions with an ABORT record
+    */
+    private void scan(long offset, List<long[]> loads, Set<Long> committed, Set<Long> aborted)
+        throws IOException {
+        long end = raf.getFilePointer();
+        raf.seek(offset);
+        try {
+            while (raf.getFilePointer() < raf.length()) {
+                int type = raf.readInt();
+                long record_tid = raf.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    readPageData(raf);
+                    readPageData(raf);
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = raf.readInt();
+                    raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                    break;
+                case COMMIT_RECORD:
+                    committed.add(record_tid);
+                    break;
+                case ABORT_RECORD:
+                    aborted.add(record_tid);
+                    break;
+                case BULKLOAD_RECORD:
+                    int tableId = raf.readInt();
+                    loads.add(new long[] {record_tid, tableId, raf.readLong()});
+                    break;
+                }
+                raf.readLong();
+            }
+        } catch (EOFException e) {
+            // a record cut short by a crash
+        } finally {
+            raf.seek(end);
+        }
+    }
+
+    /** Write the after image of every UPDATE record of a committed
+        transaction to its table, in log order, from the start of the
+        log; logTruncate cuts the log at the last checkpoint, which wrote
+        the pages of the transactions that committed before it.  The
+        file pointer is left where it was.
+
+        @param committed The ids of the transactions with a COMMIT record
+    */
+    private void redo(Set<Long> committed) throws IOException {
+        long end = raf.getFilePointer();
+        raf.seek(LONG_SIZE);
+        try {
+            while (raf.getFilePointer() < raf.length()) {
+                int type = raf.readInt();
+                long record_tid = raf.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    readPageData(raf);
+                    Page after = readPageData(raf);
+                    if (committed.contains(record_tid)) {
+                        DbFile file = fileOf(after.getId().getTableId());
+                        if (file != null) {
+                            Database.getBufferPool().discardPage(after.getId());
+                            file.writePage(after);
+                        }
+                    }
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = raf.readInt();
+                    raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                    break;
+                case BULKLOAD_RECORD:
+                    raf.readInt();
+                    raf.readLong();
+                    break;
+                }
+                raf.readLong();
+            }
+        } catch (EOFException e) {
+            // a record cut short by a crash
+        } finally {
+            raf.seek(end);
+        }
+    }
+
+    /** @return the file of the table, or null if it is not in the catalog */
+    private DbFile fileOf(int tableId) {
+        try {
+            return Database.getCatalog().getDatabaseFile(tableId);
+        } catch (NoSuchElementException e) {
+            System.err.println("logged table " + tableId + " is not in the catalog");
+            return null;
+        }
+    }
+
+    /** Truncate the file of each table loaded into to where the first of
+        the given loads into it began.
+
+        @param loads The tid, table id and start length of each load, in log order
+    */
+    private void rollBackBulkLoads(List<long[]> loads) throws IOException {
+        Map<Integer, Long> startLengths = new HashMap<Integer, Long>();
+        for (long[] load : loads) {
+            if (!startLengths.containsKey((int) load[1])) {
+                startLengths.put((int) load[1], load[2]);
+            }
+        }
+        for (Map.Entry<Integer, Long> e : startLengths.entrySet()) {
+            DbFile file = fileOf(e.getKey());
+            if (file instanceof HeapFile) {
+                ((HeapFile) file).rollBackLoad(e.getValue());
             }
         }
     }
@@ -476,6 +654,13 @@ public class LogFile {
         extensive recovery.)
     */
     public synchronized void shutdown() {
+        try {
+            // let the next start preload the pages that are hot now
+            WarmStart.save(Database.getBufferPool(), WarmStart.defaultFile());
+        } catch (IOException e) {
+            System.out.println("ERROR SAVING HOT PAGES -- IGNORING.");
+            e.printStackTrace();
+        }
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
@@ -494,6 +679,31 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                } else {
+                    List<long[]> loads = new ArrayList<long[]>();
+                    Set<Long> committed = new HashSet<Long>();
+                    Set<Long> aborted = new HashSet<Long>();
+                    scan(LONG_SIZE, loads, committed, aborted);
+                    // install the pages of committed transactions that a
+                    // PageCleaner had not written yet
+                    redo(committed);
+                    // undo the bulk loads of transactions that neither
+                    // committed nor aborted; an aborted one was rolled back
+                    // before its ABORT record was written
+                    Iterator<long[]> it = loads.iterator();
+                    while (it.hasNext()) {
+                        long tid = it.next()[0];
+                        if (committed.contains(tid) || aborted.contains(tid)) {
+                            it.remove();
+                        }
+                    }
+                    rollBackBulkLoads(loads);
+                }
+                raf.seek(raf.length());
+                currentOffset = raf.getFilePointer();
             }
          }
     }
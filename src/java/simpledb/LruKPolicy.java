@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LruKPolicy implements the LRU-K algorithm of O'Neil, O'Neil and Weikum.
+ * For every page it remembers the times of the last K accesses, and it
+ * evicts the page whose K-th most recent access lies furthest in the past.
+ * Pages referenced fewer than K times have an infinite backward K-distance
+ * and are evicted first, least recently used first, so a single scan cannot
+ * push out pages that are referenced repeatedly.
+ * <p>
+ * The access history of evicted pages is retained for a bounded number of
+ * pages, so a page that comes back soon after eviction keeps its history.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    /** The K used by ReplacementPolicy.Kind.LRU_K. */
+    public static final int DEFAULT_K = 2;
+
+    /** Access history of one page. */
+    private static class History {
+        final PageId pid;
+        final long[] times; // ring of the last K access times
+        int next;
+        int count;
+        long last;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void record(long time) {
+            times[next] = time;
+            next = (next + 1) % times.length;
+            if (count < times.length)
+                count++;
+            last = time;
+        }
+
+        /** @return the time of the K-th most recent access, or -1 if there are fewer than K */
+        long kth() {
+            return count < times.length ? -1 : times[next];
+        }
+    }
+
+    private static final Comparator<History> EVICTION_ORDER = new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kth() != b.kth())
+                return a.kth() < b.kth() ? -1 : 1;
+            if (a.last != b.last)
+                return a.last < b.last ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final int k;
+    private int retainedLimit;
+    private final Map<PageId, History> resident;
+    private final TreeSet<History> order;
+    private final LinkedHashMap<PageId, History> retained;
+    private long clock;
+
+    /**
+     * @param capacity the number of frames in the pool; also bounds how many
+     *            evicted pages keep their history
+     * @param k the number of accesses remembered per page
+     */
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.retainedLimit = Math.max(capacity, 1);
+        this.resident = new HashMap<PageId, History>();
+        this.order = new TreeSet<History>(EVICTION_ORDER);
+        this.retained = new LinkedHashMap<PageId, History>();
+        this.clock = 0;
+    }
+
+    public void pageAdmitted(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            h = retained.remove(pid);
+            if (h == null)
+                h = new History(pid, k);
+            resident.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.record(++clock);
+        order.add(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null)
+            return;
+        order.remove(h);
+        h.record(++clock);
+        order.add(h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h == null)
+            return;
+        order.remove(h);
+        retained.put(pid, h);
+        if (retained.size() > retainedLimit) {
+            Iterator<PageId> it = retained.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public PageId chooseVictim(VictimFilter filter) {
+        for (History h : order) {
+            if (filter.canEvict(h.pid))
+                return h.pid;
+        }
+        return null;
+    }
+
+    public void setCapacity(int capacity) {
+        retainedLimit = Math.max(capacity, 1);
+        Iterator<PageId> it = retained.keySet().iterator();
+        while (retained.size() > retainedLimit) {
+            it.next();
+            it.remove();
+        }
+    }
+}
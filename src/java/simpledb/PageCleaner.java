@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PageCleaner is a background thread that writes committed pages of a
+ * BufferPool back to disk, so that commits do not wait for page writes and
+ * eviction almost always finds a frame that can be dropped without I/O.
+ * <p>
+ * The cleaner wakes up every intervalMillis milliseconds, and earlier when
+ * the pool reports that fewer than cleanTarget of its frames are free of
+ * unwritten pages. Each round writes back every unwritten page of the
+ * pool. The pages are grouped by DbFile and sorted by page number, so each
+ * file receives one batch of writes in file order.
+ * <p>
+ * Only pages of transactions whose updates are in the log are left to the
+ * cleaner (see BufferPool.flushPages), and the log is forced before each
+ * round, so no page reaches the disk before the log records describing it.
+ * Until the cleaner writes them, those pages are on disk only as the after
+ * images of their UPDATE records: a committed transaction survives a crash
+ * only if LogFile.recover() runs on restart and redoes it.
+ *
+ * @see BufferPool#startCleaner
+ */
+public class PageCleaner implements Runnable {
+
+    /** Default fraction of frames the cleaner keeps free of unwritten pages. */
+    public static final double DEFAULT_CLEAN_TARGET = 0.9;
+    /** Default time between two rounds of the cleaner. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+        }
+    };
+
+    private final BufferPool pool;
+    private final double cleanTarget;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean running;
+    private boolean wakeup; // guarded by this
+
+    /**
+     * Create a cleaner for the given pool; call start() to run it.
+     *
+     * @param pool the pool whose pages are written back
+     * @param cleanTarget the fraction of frames, between 0 and 1, that
+     *            should not hold unwritten pages
+     * @param intervalMillis the longest time between two rounds
+     */
+    public PageCleaner(BufferPool pool, double cleanTarget, long intervalMillis) {
+        if (cleanTarget < 0 || cleanTarget > 1)
+            throw new IllegalArgumentException("clean target must be between 0 and 1");
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("interval must be positive");
+        this.pool = pool;
+        this.cleanTarget = cleanTarget;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "PageCleaner");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /** Stop the cleaner and wait for the current round to finish. */
+    public void shutdown() {
+        running = false;
+        wakeUp();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Start a round now instead of waiting for the interval to pass. */
+    public synchronized void wakeUp() {
+        wakeup = true;
+        notifyAll();
+    }
+
+    /**
+     * Called by the pool after pages were committed without being written,
+     * with the number of unwritten pages and the capacity of the pool.
+     */
+    public void pagesDeferred(int unwritten, int capacity) {
+        if (unwritten > (1 - cleanTarget) * capacity)
+            wakeUp();
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                if (!wakeup) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        // an interrupt stops the cleaner like shutdown does
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                wakeup = false;
+            }
+            try {
+                pool.writeUnwrittenPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Write the given pages to their files: one batch per DbFile, with the
+     * pages of each batch in page number order.
+     *
+     * @param metrics counts the pages written
+     */
+    public static void writeBatch(Collection<Page> pages, BufferPoolMetrics metrics)
+            throws IOException {
+        Map<Integer, List<Page>> byFile = new HashMap<Integer, List<Page>>();
+        for (Page page : pages) {
+            List<Page> batch = byFile.get(page.getId().getTableId());
+            if (batch == null) {
+                batch = new ArrayList<Page>();
+                byFile.put(page.getId().getTableId(), batch);
+            }
+            batch.add(page);
+        }
+        for (Map.Entry<Integer, List<Page>> e : byFile.entrySet()) {
+            List<Page> batch = e.getValue();
+            Collections.sort(batch, PAGE_ORDER);
+            long start = System.nanoTime();
+            Database.getCatalog().getDatabaseFile(e.getKey()).writePages(batch);
+            metrics.written(batch.size(), System.nanoTime() - start);
+        }
+    }
+}
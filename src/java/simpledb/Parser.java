@@ -11,6 +11,8 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    /** Whether INSERT ... SELECT bulk loads its tuples, see BufferPool#bulkLoad. */
+    static boolean bulkLoad = false;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -390,7 +392,8 @@ public class Parser {
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
-        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId));
+        insertQ.setPhysicalPlan(new Insert(tId, newTups, tableId,
+                bulkLoad && s.getValues() == null));
         return insertQ;
     }
 
@@ -581,7 +584,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "stats", "contention", "bulkload" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -595,10 +598,18 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]\n"
+            + "Type stats; at the prompt to show buffer pool metrics, and\n"
+            + "contention; or contention n; to show the n pages and tables waited for longest,\n"
+            + "and bulkload on; or bulkload off; to have INSERT ... SELECT append new pages";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            WarmStart.save(Database.getBufferPool(), WarmStart.defaultFile());
+        } catch (IOException e) {
+            System.out.println("Unable to save the hot pages: " + e.getMessage());
+        }
         System.out.println("Bye");
     }
 
@@ -608,6 +619,8 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // bring back the pages that were hot when we last quit
+        WarmStart.preload(Database.getBufferPool(), WarmStart.defaultFile());
 
         String queryFile = null;
 
@@ -682,12 +695,27 @@ public class Parser {
                         break;
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+                    if (cmd.equalsIgnoreCase("stats;")) {
+                        // buffer pool metrics, see BufferPoolMetrics
+                        System.out.println(Database.getBufferPool().getMetrics());
+                    } else if (cmd.toLowerCase().matches("contention( \\d+)?;")) {
+                        // lock waits by page and table, see ContentionProfiler
+                        String n = cmd.substring("contention".length(), cmd.length() - 1).trim();
+                        ContentionProfiler contention = Database.getBufferPool().getContention();
+                        System.out.println(n.isEmpty() ? contention.toString()
+                                : contention.report(Integer.parseInt(n)));
+                    } else if (cmd.toLowerCase().matches("bulkload (on|off);")) {
+                        // INSERT ... SELECT through BufferPool.bulkLoad
+                        bulkLoad = cmd.toLowerCase().startsWith("bulkload on");
+                        System.out.println("Bulk load " + (bulkLoad ? "enabled." : "disabled."));
+                    } else {
+                        long startTime = System.currentTimeMillis();
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                        long time = System.currentTimeMillis() - startTime;
+                        System.out.printf("----------------\n%.2f seconds\n\n",
+                                ((double) time / 1000.0));
+                    }
 
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead fetches the pages a sequential scan is about to ask for into the
+ * BufferPool in the background, so that the scan finds them resident
+ * instead of stalling on every miss.
+ * <p>
+ * A scan owns one ReadAhead and reports every page it gets from the pool.
+ * The scan is sequential while each page is the successor of the previous
+ * one, as defined by the scan's Successor: the next page number of a
+ * HeapFile, or the right sibling of a BTree leaf. While it is, the pages
+ * following the furthest page fetched so far are read asynchronously, and
+ * the number of pages kept ahead of the scan (the window) adapts to the
+ * observed speed: it covers the time needed to read a page at the rate at
+ * which the scan consumes them, between MIN_WINDOW and MAX_WINDOW pages
+ * and never more than a quarter of the pool. A jump resets the window.
+ * <p>
+ * Scans that read through a BufferAccessStrategy read ahead into the same
+ * ring, and keep the window to half of it so that pages read ahead are not
+ * recycled before the scan gets to them.
+ *
+ * @see BufferPool#readAhead
+ */
+public class ReadAhead {
+
+    /** Computes the page a scan reads after the given one. */
+    public interface Successor {
+        /** @return the id of the page after page, or null at the end of the scan */
+        PageId next(Page page);
+    }
+
+    public static final int MIN_WINDOW = 2;
+    public static final int MAX_WINDOW = 64;
+    private static final int THREADS = 4;
+    /** Weight of a new sample in the moving averages. */
+    private static final double ALPHA = 0.25;
+
+    private static boolean enabled = true;
+    private static ExecutorService executor;
+    /** Moving average of the time to fetch one page ahead, over all scans. */
+    private static volatile double readNanos = 0;
+
+    private final Successor successor;
+    private final BufferAccessStrategy strategy;
+    // all fields below are guarded by this
+    private BufferPool pool;
+    private Page last;
+    private Page frontier;
+    private final LinkedHashSet<PageId> ahead = new LinkedHashSet<PageId>();
+    private boolean fetching;
+    private int generation;
+    private int window = MIN_WINDOW;
+    private long lastRequest;
+    private double gapNanos;
+
+    public ReadAhead(Successor successor) {
+        this(successor, null);
+    }
+
+    /**
+     * @param successor computes the pages the scan reads
+     * @param strategy the strategy the scan reads through, or null
+     */
+    public ReadAhead(Successor successor, BufferAccessStrategy strategy) {
+        this.successor = successor;
+        this.strategy = strategy;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setEnabled(boolean enabled) {
+        ReadAhead.enabled = enabled;
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ReadAhead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Report that the scan got the given page from the pool, and start
+     * reading ahead if the window is running low.
+     */
+    public synchronized void pageRequested(Page page) {
+        if (!enabled)
+            return;
+        long now = System.nanoTime();
+        boolean sequential = ahead.remove(page.getId())
+                || (last != null && page.getId().equals(successor.next(last)));
+        if (sequential) {
+            double gap = now - lastRequest;
+            gapNanos = gapNanos == 0 ? gap : (1 - ALPHA) * gapNanos + ALPHA * gap;
+            window = (int) Math.ceil(2 * readNanos / Math.max(gapNanos, 1));
+        } else {
+            ahead.clear();
+            generation++;
+            gapNanos = 0;
+            window = MIN_WINDOW;
+        }
+        if (ahead.isEmpty())
+            frontier = page;
+        last = page;
+        lastRequest = now;
+
+        pool = Database.getBufferPool();
+        int limit = Math.min(MAX_WINDOW, pool.getNumPages() / 4);
+        if (strategy != null)
+            limit = Math.min(limit, strategy.getRingPages() / 2);
+        window = Math.min(Math.max(window, MIN_WINDOW), limit);
+        if (window >= MIN_WINDOW && !fetching && ahead.size() <= window / 2) {
+            fetching = true;
+            executor().execute(new Runnable() {
+                public void run() {
+                    fetch();
+                }
+            });
+        }
+    }
+
+    /** Fetch pages past the frontier until the window is full. */
+    private void fetch() {
+        try {
+            while (true) {
+                Page from;
+                BufferPool bp;
+                int gen;
+                synchronized (this) {
+                    if (ahead.size() >= window)
+                        return;
+                    from = frontier;
+                    bp = pool;
+                    gen = generation;
+                }
+                PageId next = successor.next(from);
+                if (next == null)
+                    return;
+                long start = System.nanoTime();
+                Page page = bp.readAhead(next, strategy);
+                readNanos = (1 - ALPHA) * readNanos + ALPHA * (System.nanoTime() - start);
+                if (page == null)
+                    return;
+                synchronized (this) {
+                    if (gen != generation)
+                        return;
+                    // the scan may have passed us; then continue from where it is
+                    if (frontier == from) {
+                        ahead.add(next);
+                        frontier = page;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // read-ahead is only a hint; the scan reads the page itself
+        } finally {
+            synchronized (this) {
+                fetching = false;
+            }
+        }
+    }
+}
@@ -76,8 +76,9 @@ public class RecordId implements Serializable {
     @Override
     public int hashCode() {
         // some code goes here
-        String ha=getTupleNumber()+getPageId().hashCode()+"";
-        return Integer.parseInt(ha);
+        // slots of neighbouring pages must not collide, since record locks
+        // are kept in a hash table by RecordId
+        return (getPageId().hashCode()<<16)+getTupleNumber();
        // return Integer.parseInt(((Integer.toString(getTupleNumber()))+(Integer.toString(getPageId().hashCode()))));
         //throw new UnsupportedOperationException("implement this");
 
@@ -0,0 +1,94 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool evicts when
+ * it needs a free frame. The pool reports every page that enters the pool,
+ * every hit and every page that leaves the pool; the policy keeps whatever
+ * recency or frequency information it needs and ranks victims from it.
+ * <p>
+ * Policies are not thread safe; the BufferPool serializes all calls.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page is brought into the pool. This counts as an access
+     * to the page.
+     *
+     * @param pid the id of the page that became resident
+     */
+    public void pageAdmitted(PageId pid);
+
+    /**
+     * Called when a resident page is accessed (a buffer hit).
+     *
+     * @param pid the id of the page that was accessed
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the pool, because it was evicted or
+     * discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict next. The page stays resident until the pool
+     * reports it with pageRemoved.
+     *
+     * @param filter tells which resident pages may be evicted right now
+     * @return the id of the victim, or null if no resident page passes the filter
+     */
+    public PageId chooseVictim(VictimFilter filter);
+
+    /**
+     * Called when the pool is resized. More pages than the new capacity may
+     * stay resident for a while, until the pool has evicted them.
+     *
+     * @param capacity the new number of frames the policy manages
+     */
+    public void setCapacity(int capacity);
+
+    /** Tells a policy which resident pages are currently evictable. */
+    public interface VictimFilter {
+        /** @return true if the page with the given id may be evicted */
+        public boolean canEvict(PageId pid);
+    }
+
+    /** Creates policies for a pool of a given capacity. */
+    public interface Factory {
+        /**
+         * @param capacity the number of frames the policy manages
+         * @return a new policy instance
+         */
+        public ReplacementPolicy create(int capacity);
+    }
+
+    /** The replacement policies shipped with SimpleDB. */
+    public enum Kind implements Factory {
+        /** Second-chance clock sweep. */
+        CLOCK() {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new ClockPolicy(capacity);
+            }
+        },
+        /** LRU-K with K = 2. */
+        LRU_K() {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new LruKPolicy(capacity, LruKPolicy.DEFAULT_K);
+            }
+        },
+        /** Full version of 2Q, with a ghost queue for pages evicted from A1in. */
+        TWO_Q() {
+            @Override
+            public ReplacementPolicy create(int capacity) {
+                return new TwoQPolicy(capacity);
+            }
+        };
+    }
+}
@@ -8,6 +8,13 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  *  * each tuple of a table in no particular order (e.g., as they are laid out on
  *  * disk).
+ * <p>
+ * Scans of heap files that do not fit in the BufferPool read through a
+ * BULK_READ BufferAccessStrategy, so that they do not evict the pages of
+ * other transactions.
+ * <p>
+ * A scan locks the whole table shared when it is opened, instead of each
+ * page as it is read.
  */
 public class SeqScan implements OpIterator {
 
@@ -37,7 +44,15 @@ public class SeqScan implements OpIterator {
         this.tableid=tableid;
         this.tableAlias=tableAlias;
        this.tid=tid;
-        it= Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        if (dbFile instanceof HeapFile) {
+            HeapFile hf = (HeapFile) dbFile;
+            BufferAccessStrategy strategy = Database.getBufferPool().getStrategy(
+                    BufferAccessStrategy.Kind.BULK_READ, hf.numPages());
+            it = hf.iterator(tid, strategy);
+        } else {
+            it = dbFile.iterator(tid);
+        }
     }
 //sea ying gai you bufferpool
     /**
@@ -82,6 +97,12 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        // the scan reads every page, so one table lock replaces a lock per
+        // page; under record locking HeapFiles lock the tuples instead, so
+        // that writers of other tuples can go on
+        BufferPool bp = Database.getBufferPool();
+        if (!(bp.isRecordLocking() && Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            bp.lockTable(tid, tableid, Permissions.READ_ONLY);
         it.open();
     }
 
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * TwoQPolicy implements the full version of the 2Q algorithm of Johnson and
+ * Shasha. A page seen for the first time enters A1in, a FIFO queue holding
+ * about a quarter of the pool. When it is evicted from A1in its id moves to
+ * A1out, a ghost queue that remembers recently evicted ids without holding
+ * their pages. A page that is requested again while its id is in A1out is
+ * admitted to Am, an LRU queue of pages with proven reuse. Pages touched
+ * only once, such as those read by a large scan, therefore cycle through
+ * A1in without disturbing Am.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private int kin;
+    private int kout;
+    // iteration order of the sets is oldest first
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * @param capacity the number of frames in the pool
+     */
+    public TwoQPolicy(int capacity) {
+        this.kin = Math.max(capacity / 4, 1);
+        this.kout = Math.max(capacity / 2, 1);
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashSet<PageId>();
+    }
+
+    public void pageAdmitted(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: correlated references
+        // right after the first one do not prove reuse
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim(VictimFilter filter) {
+        PageId victim = null;
+        if (a1in.size() > kin)
+            victim = firstEvictable(a1in, filter);
+        if (victim == null)
+            victim = firstEvictable(am, filter);
+        if (victim == null)
+            victim = firstEvictable(a1in, filter);
+        return victim;
+    }
+
+    public void setCapacity(int capacity) {
+        kin = Math.max(capacity / 4, 1);
+        kout = Math.max(capacity / 2, 1);
+        Iterator<PageId> it = a1out.iterator();
+        while (a1out.size() > kout) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, VictimFilter filter) {
+        for (PageId pid : queue) {
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
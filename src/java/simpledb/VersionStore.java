@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * VersionStore keeps the old committed versions of pages that snapshot
+ * transactions may still read. Commits are numbered in the order they
+ * begin; a snapshot transaction reads the database as of the last commit
+ * that had begun when it started, which it waits for to finish.
+ * <p>
+ * When a commit replaces the committed version of a page while a snapshot
+ * older than the commit is running, the version it replaces is saved here,
+ * valid until that commit. A snapshot reads the oldest saved version of a
+ * page that is still valid after its start, or the current committed
+ * version if there is none. Versions go once no running snapshot is older
+ * than the commit that replaced them; when no snapshot runs, nothing is
+ * saved at all.
+ *
+ * @see BufferPool#beginSnapshot(TransactionId)
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** A saved page version, and the commit that replaced it. */
+    private static class Version {
+        final Page page;
+        long validTo;
+
+        Version(Page page, long validTo) {
+            this.page = page;
+            this.validTo = validTo;
+        }
+    }
+
+    /** Number of the last commit that began. */
+    private long lastCommit;
+    /** Commits that have begun and not finished yet. */
+    private final TreeSet<Long> committing = new TreeSet<Long>();
+    /** The running snapshots, and the commit each reads as of. */
+    private final Map<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    /** How many running snapshots read as of each commit. */
+    private final TreeMap<Long, Integer> starts = new TreeMap<Long, Integer>();
+    /** Saved versions of each page, oldest first. */
+    private final Map<PageId, List<Version>> versions = new HashMap<PageId, List<Version>>();
+    /** Versions saved for pages a running transaction overwrites on disk, until it commits. */
+    private final Map<TransactionId, List<Version>> retired = new HashMap<TransactionId, List<Version>>();
+    private int size;
+
+    /**
+     * Start tid as a snapshot transaction, once the commits that began
+     * before it are done.
+     *
+     * @throws TransactionAbortedException if interrupted while waiting
+     */
+    public synchronized void begin(TransactionId tid) throws TransactionAbortedException {
+        if (snapshots.containsKey(tid))
+            return;
+        long start = lastCommit;
+        snapshots.put(tid, start);
+        Integer n = starts.get(start);
+        starts.put(start, n == null ? 1 : n + 1);
+        try {
+            while (!committing.isEmpty() && committing.first() <= start)
+                wait();
+        } catch (InterruptedException e) {
+            end(tid);
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /** @return true if tid is a running snapshot transaction */
+    public synchronized boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** @return the commit the snapshot tid reads as of, or -1 if tid is not a snapshot */
+    public synchronized long startOf(TransactionId tid) {
+        Long start = snapshots.get(tid);
+        return start == null ? -1 : start;
+    }
+
+    /** @return true if any snapshot transaction is running */
+    public synchronized boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * End the snapshot transaction tid, and drop the versions no running
+     * snapshot needs any more.
+     *
+     * @return false if tid was not a snapshot transaction
+     */
+    public synchronized boolean end(TransactionId tid) {
+        Long start = snapshots.remove(tid);
+        if (start == null)
+            return false;
+        int n = starts.get(start);
+        if (n == 1)
+            starts.remove(start);
+        else
+            starts.put(start, n - 1);
+        prune();
+        return true;
+    }
+
+    /**
+     * Begin the commit of a writing transaction. The versions retired on
+     * behalf of tid become valid until this commit.
+     *
+     * @return the number of the commit, to pass to save() and endCommit()
+     */
+    public synchronized long beginCommit(TransactionId tid) {
+        long commit = ++lastCommit;
+        committing.add(commit);
+        List<Version> pending = retired.remove(tid);
+        if (pending != null) {
+            for (Version v : pending)
+                v.validTo = commit;
+        }
+        return commit;
+    }
+
+    /** Finish a commit, letting the snapshots that wait for it start. */
+    public synchronized void endCommit(long commit) {
+        committing.remove(commit);
+        notifyAll();
+    }
+
+    /** Drop the versions retired on behalf of tid, which aborted. */
+    public synchronized void abort(TransactionId tid) {
+        List<Version> pending = retired.remove(tid);
+        if (pending == null)
+            return;
+        for (Iterator<List<Version>> it = versions.values().iterator(); it.hasNext();) {
+            List<Version> chain = it.next();
+            size -= chain.size();
+            chain.removeAll(pending);
+            size += chain.size();
+            if (chain.isEmpty())
+                it.remove();
+        }
+    }
+
+    /**
+     * Save the committed version of the page, its before image, if a
+     * running snapshot is older than the commit that is about to replace
+     * it. Must be called before the commit installs the page's new
+     * version, under the latch that keeps snapshots from reading it.
+     */
+    public synchronized void save(Page page, long commit) {
+        if (starts.isEmpty() || starts.firstKey() >= commit)
+            return;
+        add(page.getId(), new Version(page.getBeforeImage(), commit));
+    }
+
+    /**
+     * Save the committed version of a page that tid overwrites on disk
+     * without going through the buffer pool, as BTreeFile does when it
+     * reuses a free page. The version stays valid until tid commits.
+     */
+    public synchronized void retire(TransactionId tid, Page committed) {
+        if (snapshots.isEmpty())
+            return;
+        Version v = new Version(committed, Long.MAX_VALUE);
+        add(committed.getId(), v);
+        List<Version> pending = retired.get(tid);
+        if (pending == null) {
+            pending = new ArrayList<Version>();
+            retired.put(tid, pending);
+        }
+        pending.add(v);
+    }
+
+    private void add(PageId pid, Version v) {
+        List<Version> chain = versions.get(pid);
+        if (chain == null) {
+            chain = new ArrayList<Version>(2);
+            versions.put(pid, chain);
+        }
+        chain.add(v);
+        size++;
+    }
+
+    /**
+     * @return the version of the page a snapshot that reads as of the
+     *         given commit sees, or null if that is the current committed
+     *         version
+     */
+    public synchronized Page get(PageId pid, long start) {
+        List<Version> chain = versions.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.validTo > start)
+                    return v.page;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of saved versions */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Drop the versions that were replaced before every running snapshot started. */
+    private void prune() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            size = 0;
+            return;
+        }
+        long oldest = starts.firstKey();
+        for (Iterator<List<Version>> it = versions.values().iterator(); it.hasNext();) {
+            List<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.get(0).validTo <= oldest) {
+                chain.remove(0);
+                size--;
+            }
+            if (chain.isEmpty())
+                it.remove();
+        }
+    }
+}
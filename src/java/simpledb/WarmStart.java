@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * WarmStart saves the set of pages resident in a BufferPool and loads it
+ * back after a restart, so that the first requests after a restart find
+ * their pages in the pool instead of all missing to disk.
+ * <p>
+ * save() writes the ids of the resident pages, hottest first, to a small
+ * file: the names of the PageId classes once, then each id as a class
+ * index and the ints of PageId.serialize(). The file is written under a
+ * temporary name and renamed, so a crash while saving leaves the previous
+ * list in place. The list is saved when the LogFile shuts down and when
+ * the interactive parser quits.
+ * <p>
+ * A WarmStart thread preloads a saved list: it keeps as many of the
+ * hottest pages as the pool holds, drops those whose table or page no
+ * longer exists, and reads the rest in file order (by table, then page
+ * number), so each file is read mostly sequentially. Pages are read only
+ * into free frames without taking locks, like ReadAhead, so preloading
+ * never evicts a page that requests have already brought in.
+ *
+ * @see BufferPool#hotPages
+ * @see BufferPool#preload
+ */
+public class WarmStart implements Runnable {
+
+    /** File the Database saves its hot pages to, next to the log. */
+    public static final String DEFAULT_FILE = "hotpages";
+
+    private static final Comparator<PageId> FILE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return Integer.compare(a.getTableId(), b.getTableId());
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
+    };
+
+    private final BufferPool pool;
+    private final List<PageId> pages;
+    private final Thread thread;
+    private volatile int loaded;
+
+    /**
+     * Create a preloader for the given pool; call start() to run it.
+     *
+     * @param pool the pool to load the pages into
+     * @param hotPages the ids of the pages to load, hottest first
+     */
+    public WarmStart(BufferPool pool, List<PageId> hotPages) {
+        this.pool = pool;
+        List<PageId> keep = new ArrayList<PageId>();
+        for (PageId pid : hotPages) {
+            if (keep.size() >= pool.getNumPages())
+                break;
+            if (exists(pid))
+                keep.add(pid);
+        }
+        Collections.sort(keep, FILE_ORDER);
+        this.pages = keep;
+        this.thread = new Thread(this, "WarmStart");
+        this.thread.setDaemon(true);
+    }
+
+    /** @return the file the hot pages of the Database are saved to, next to its log */
+    public static File defaultFile() {
+        return new File(Database.getLogFile().logFile.getAbsoluteFile().getParentFile(), DEFAULT_FILE);
+    }
+
+    /**
+     * Start preloading the pages saved in the given file into the pool in
+     * the background.
+     *
+     * @return the running preloader, or null if there is no such file
+     */
+    public static WarmStart preload(BufferPool pool, File file) throws IOException {
+        if (!file.exists())
+            return null;
+        WarmStart w = new WarmStart(pool, load(file));
+        w.start();
+        return w;
+    }
+
+    /** Save the ids of the pages resident in the pool, hottest first. */
+    public static void save(BufferPool pool, File file) throws IOException {
+        List<PageId> hot = pool.hotPages();
+        List<String> classes = new ArrayList<String>();
+        Map<String, Integer> classIndex = new HashMap<String, Integer>();
+        for (PageId pid : hot) {
+            String name = pid.getClass().getName();
+            if (!classIndex.containsKey(name)) {
+                classIndex.put(name, classes.size());
+                classes.add(name);
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(classes.size());
+            for (String name : classes)
+                out.writeUTF(name);
+            out.writeInt(hot.size());
+            for (PageId pid : hot) {
+                int[] data = pid.serialize();
+                out.writeByte(classIndex.get(pid.getClass().getName()));
+                out.writeByte(data.length);
+                for (int i = 0; i < data.length; i++)
+                    out.writeInt(data[i]);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** @return the ids of the pages saved in the given file, hottest first */
+    public static List<PageId> load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            List<Constructor<?>> constructors = new ArrayList<Constructor<?>>();
+            int numClasses = in.readInt();
+            for (int i = 0; i < numClasses; i++)
+                constructors.add(constructor(in.readUTF()));
+            int count = in.readInt();
+            List<PageId> pids = new ArrayList<PageId>(count);
+            for (int i = 0; i < count; i++) {
+                Constructor<?> c = constructors.get(in.readUnsignedByte());
+                Object[] args = new Object[in.readUnsignedByte()];
+                for (int j = 0; j < args.length; j++)
+                    args[j] = in.readInt();
+                try {
+                    pids.add((PageId) c.newInstance(args));
+                } catch (Exception e) {
+                    throw new IOException("cannot create " + c.getName() + ": " + e.getMessage());
+                }
+            }
+            return pids;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** @return the constructor of the named PageId class that takes only ints */
+    private static Constructor<?> constructor(String className) throws IOException {
+        try {
+            for (Constructor<?> c : Class.forName(className).getDeclaredConstructors()) {
+                boolean ints = c.getParameterTypes().length > 0;
+                for (Class<?> type : c.getParameterTypes())
+                    ints &= type == int.class;
+                if (ints)
+                    return c;
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown page id class " + className);
+        }
+        throw new IOException("no constructor of " + className + " takes ints only");
+    }
+
+    /** @return true if the page still exists in its table */
+    private static boolean exists(PageId pid) {
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        if (f instanceof HeapFile)
+            return pid.getPageNumber() < ((HeapFile) f).numPages();
+        if (f instanceof BTreeFile)
+            // page 0 is the root pointer, stored in front of the other pages
+            return pid.getPageNumber() <= ((BTreeFile) f).numPages();
+        return f != null;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Wait until all pages have been preloaded. */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /** @return the ids of the pages this preloader reads, in file order */
+    public List<PageId> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+
+    /** @return the number of pages preloaded so far */
+    public int getPagesLoaded() {
+        return loaded;
+    }
+
+    public void run() {
+        for (PageId pid : pages) {
+            try {
+                if (pool.preload(pid) != null)
+                    loaded++;
+            } catch (RuntimeException e) {
+                // the table changed since the list was saved; skip the page
+            }
+        }
+    }
+}
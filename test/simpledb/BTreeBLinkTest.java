@@ -0,0 +1,216 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBLinkTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		Database.reset();
+	}
+
+	/**
+	 * Unit test for B-link splits: the left half of a split leaf gets the separator
+	 * as its high key, and the right half the high key the leaf had, if it was known.
+	 */
+	@Test
+	public void testSplitLeafPageHighKeys() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		int tableid = empty.getId();
+
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), 0);
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(parentId, parent);
+
+		// a leaf whose high key is known
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, 0,
+				0, BTreeUtility.MAX_RAND_VALUE);
+		leftPage.setParentId(parentId);
+		IntField high = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		leftPage.setHighKey(high);
+		dirtypages.put(leftPageId, leftPage);
+		empty.splitLeafPage(tid, dirtypages, leftPage, new IntField(0));
+
+		BTreeEntry entry = parent.iterator().next();
+		BTreeLeafPage rightPage = (BTreeLeafPage) dirtypages.get(entry.getRightChild());
+		assertTrue(leftPage.isHighKeyKnown());
+		assertEquals(entry.getKey(), leftPage.getHighKey());
+		assertEquals(rightPage.getId(), leftPage.getRightSiblingId());
+		assertTrue(rightPage.isHighKeyKnown());
+		assertEquals(high, rightPage.getHighKey());
+	}
+
+	/**
+	 * Unit test for B-link splits: the high key of the right half of a split leaf is
+	 * not known if that of the leaf was not, as for a leaf read from disk.
+	 */
+	@Test
+	public void testSplitLeafPageUnknownHighKey() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 3);
+		int tableid = empty.getId();
+
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), 0);
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.LEAF);
+		BTreeLeafPage leftPage = BTreeUtility.createRandomLeafPage(leftPageId, 2, 0,
+				0, BTreeUtility.MAX_RAND_VALUE);
+		leftPage.setParentId(parentId);
+		assertFalse(leftPage.isHighKeyKnown());
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(parentId, parent);
+		dirtypages.put(leftPageId, leftPage);
+		BTreeLeafPage page = empty.splitLeafPage(tid, dirtypages, leftPage, new IntField(0));
+		assertEquals(leftPage, page);
+		assertTrue(leftPage.isHighKeyKnown());
+		assertFalse(((BTreePage) dirtypages.get(leftPage.getRightSiblingId())).isHighKeyKnown());
+	}
+
+	/**
+	 * Unit test for B-link splits: the left half of a split internal page gets the key
+	 * pushed up as its high key and a pointer to the right half, which gets the high
+	 * key and the right sibling the page had.
+	 */
+	@Test
+	public void testSplitInternalPageLinks() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		int entriesPerPage = BTreeUtility.getNumEntriesPerPage();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 4 + entriesPerPage);
+		int tableid = empty.getId();
+
+		BTreePageId leftPageId = new BTreePageId(tableid, 2, BTreePageId.INTERNAL);
+		BTreeInternalPage leftPage = BTreeUtility.createRandomInternalPage(leftPageId, 0, BTreePageId.LEAF,
+				0, BTreeUtility.MAX_RAND_VALUE, 4);
+		BTreePageId parentId = new BTreePageId(tableid, 1, BTreePageId.INTERNAL);
+		BTreeInternalPage parent = new BTreeInternalPage(parentId,
+				BTreeInternalPage.createEmptyPageData(), 0);
+		leftPage.setParentId(parentId);
+		IntField high = new IntField(BTreeUtility.MAX_RAND_VALUE);
+		BTreePageId siblingId = new BTreePageId(tableid, 3, BTreePageId.INTERNAL);
+		leftPage.setHighKey(high);
+		leftPage.setRightSiblingId(siblingId);
+
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		dirtypages.put(leftPageId, leftPage);
+		dirtypages.put(parentId, parent);
+		empty.splitInternalPage(tid, dirtypages, leftPage, new IntField(0));
+
+		BTreeEntry entry = parent.iterator().next();
+		BTreeInternalPage rightPage = (BTreeInternalPage) dirtypages.get(entry.getRightChild());
+		assertEquals(leftPageId, entry.getLeftChild());
+		assertTrue(leftPage.isHighKeyKnown());
+		assertEquals(entry.getKey(), leftPage.getHighKey());
+		assertEquals(rightPage.getId(), leftPage.getRightSiblingId());
+		assertTrue(rightPage.isHighKeyKnown());
+		assertEquals(high, rightPage.getHighKey());
+		assertEquals(siblingId, rightPage.getRightSiblingId());
+	}
+
+	/**
+	 * Unit test for B-link searches: lookups of committed keys, made while other
+	 * transactions split leaves and internal pages, find every key.
+	 */
+	@Test
+	public void testLookupsDuringSplits() throws Exception {
+		final ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, tuples, 0);
+		final BufferPool bp = Database.getBufferPool();
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		final List<Integer> missed = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 2; i++) {
+			final Random rand = new Random(i);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int b = 0; b < 10; b++) {
+							TransactionId tid = new TransactionId();
+							try {
+								for (int j = 0; j < 100; j++) {
+									int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+									bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+								}
+								bp.transactionComplete(tid);
+							} catch (TransactionAbortedException e) {
+								bp.transactionComplete(tid, false);
+							}
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 500; j++) {
+							int key = tuples.get(rand.nextInt(tuples.size())).get(0);
+							TransactionId tid = new TransactionId();
+							try {
+								DbFileIterator it = bf.indexIterator(tid,
+										new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+								it.open();
+								if (!it.hasNext()) {
+									missed.add(key);
+								}
+								it.close();
+								bp.transactionComplete(tid);
+							} catch (TransactionAbortedException e) {
+								bp.transactionComplete(tid, false);
+							}
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(Collections.<Exception>emptyList(), errors);
+		assertEquals(Collections.<Integer>emptyList(), missed);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBLinkTest.class);
+	}
+}
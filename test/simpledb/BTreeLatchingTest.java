@@ -0,0 +1,204 @@
+package simpledb;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Test;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchingTest extends SimpleDbTestBase {
+	private static final long TIMEOUT = 10000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+
+	/** @return the root page id as stored on disk */
+	private BTreePageId rootId() {
+		return ((BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()))).getRootId();
+	}
+
+	/** @return the tuples tid finds with the given key */
+	private List<Tuple> search(TransactionId tid, int key) throws Exception {
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		while (it.hasNext())
+			tuples.add(it.next());
+		it.close();
+		return tuples;
+	}
+
+	/** @return the number of tuples in the file, counted by a transaction of its own */
+	private int count() throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		return n;
+	}
+
+	/**
+	 * Unit test for latch crabbing: a lookup latches its way down the tree
+	 * and only locks the leaf it reads.
+	 */
+	@Test public void searchLocksOnlyLeaf() throws Exception {
+		bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		bp = Database.getBufferPool();
+		BTreePageId root = rootId();
+		assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+
+		TransactionId tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		bp.insertTuple(tid, bf.getId(), t);
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		List<Tuple> found = search(tid, BTreeUtility.MAX_RAND_VALUE);
+		assertEquals(1, found.size());
+		assertTrue(bp.holdsLock(tid, found.get(0).getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, root));
+		assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Unit test for latch crabbing: an insert into a leaf with room locks
+	 * the leaf only, while one that splits the leaf also locks the parent
+	 * it changes.
+	 */
+	@Test public void insertLocksChangedPages() throws Exception {
+		// two full leaves under an internal root
+		bf = BTreeUtility.createRandomBTreeFile(2, 2 * BTreeUtility.getNumTuplesPerPage(2), null, null, 0);
+		bp = Database.getBufferPool();
+		BTreePageId root = rootId();
+		BTreePageId rootPtr = BTreeRootPtrPage.getId(bf.getId());
+
+		TransactionId tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		bp.insertTuple(tid, bf.getId(), t);
+		assertTrue(bp.holdsLock(tid, root));
+		assertFalse(bp.holdsLock(tid, rootPtr));
+		bp.transactionComplete(tid);
+
+		// the right leaf was split in two and has room now
+		tid = new TransactionId();
+		t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		bp.insertTuple(tid, bf.getId(), t);
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, root));
+		assertFalse(bp.holdsLock(tid, rootPtr));
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * Unit test for latch crabbing: a reader that reaches a leaf created by
+	 * an uncommitted split waits for it, and after the split is undone looks
+	 * again from the root instead of reading the orphaned leaf.
+	 */
+	@Test public void readerRetriesAfterAbortedSplit() throws Exception {
+		File f = File.createTempFile("empty", ".dat");
+		f.deleteOnExit();
+		Database.reset();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		bp = Database.getBufferPool();
+		int perPage = BTreeUtility.getNumTuplesPerPage(2);
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < perPage; i++)
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		bp.transactionComplete(tid);
+
+		// split the root leaf without committing
+		final TransactionId writer = new TransactionId();
+		bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(perPage, 2));
+
+		final int key = perPage - 1;
+		final TransactionId reader = new TransactionId();
+		final List<Tuple> found = Collections.synchronizedList(new ArrayList<Tuple>());
+		final Exception[] error = new Exception[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					found.addAll(search(reader, key));
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		t.start();
+		t.join(200);
+		assertTrue(t.isAlive());
+
+		bp.transactionComplete(writer, false);
+		t.join(TIMEOUT);
+		assertFalse(t.isAlive());
+		assertNull(error[0]);
+		assertEquals(1, found.size());
+		bp.transactionComplete(reader);
+		assertEquals(perPage, count());
+	}
+
+	/**
+	 * Unit test for latch crabbing: concurrent writers that split leaves
+	 * and internal pages leave a consistent tree with all their tuples.
+	 */
+	@Test public void concurrentInserts() throws Exception {
+		bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		bp = Database.getBufferPool();
+		final int threads = 4, batches = 10, batch = 50;
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final Random rand = new Random(i);
+			workers.add(new Thread() {
+				public void run() {
+					try {
+						for (int b = 0; b < batches; b++) {
+							while (true) {
+								TransactionId tid = new TransactionId();
+								try {
+									for (int j = 0; j < batch; j++) {
+										int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+										bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+									}
+									bp.transactionComplete(tid);
+									break;
+								} catch (TransactionAbortedException e) {
+									bp.transactionComplete(tid, false);
+								}
+							}
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread t : workers)
+			t.start();
+		for (Thread t : workers)
+			t.join(60 * TIMEOUT);
+		assertEquals(Collections.<Exception>emptyList(), errors);
+
+		assertEquals(1000 + threads * batches * batch, count());
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchingTest.class);
+	}
+}
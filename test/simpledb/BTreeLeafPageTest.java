@@ -12,6 +12,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -336,6 +337,27 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.getPageData() on a page whose tuples have
+	 * not been decoded, and after an insert that moves some of them
+	 */
+	@Test public void getPageDataUndecoded() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+
+		page.insertTuple(BTreeUtility.getBTreeTuple(0, 2));
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(EXAMPLE_VALUES.length + 1, copy.getNumTuples());
+		Iterator<Tuple> it = copy.iterator();
+		Field prev = it.next().getField(0);
+		assertEquals(new IntField(0), prev);
+		while (it.hasNext()) {
+			Field f = it.next().getField(0);
+			assertTrue(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, f));
+			prev = f;
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded benchmark of point lookups in a B+ tree under an insert load.
+ * One thread looks up random keys, each in a transaction of its own, while 0 to 8
+ * writer threads insert random keys in transactions of 100 inserts each, splitting
+ * leaves and internal pages as they go. The median and 99th percentile latency of
+ * the lookups are reported with the number of inserts per second. With B-link
+ * searches the lookups take no latch on internal pages, so their latency should
+ * not grow with the number of writers beyond their share of the CPU.
+ * <p>
+ * Run with: ant runbench -Dbench=BTreeLookupBenchmark [-Dargs="seconds rows"]
+ */
+public class BTreeLookupBenchmark {
+
+    private static final int[] WRITERS = { 0, 1, 2, 4, 8 };
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3.0;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%8s %15s %15s %15s%n", "writers", "p50 us", "p99 us", "inserts/s");
+        for (int writers : WRITERS) {
+            BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10);
+            measure(bp, bf, writers, seconds);
+        }
+    }
+
+    static void measure(final BufferPool bp, final BTreeFile bf, int writers,
+            double seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong inserts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long[] latencies = new long[1 << 20];
+        final int[] lookups = new int[1];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < writers; i++) {
+            final Random rand = new Random(i);
+            threads.add(new Thread() {
+                public void run() {
+                    while (running.get()) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int j = 0; j < 100; j++) {
+                                int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                                bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                            }
+                            bp.transactionComplete(tid, true);
+                            inserts.addAndGet(100);
+                        } catch (TransactionAbortedException e) {
+                            abort(bp, tid);
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                            abort(bp, tid);
+                        }
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            public void run() {
+                Random rand = new Random();
+                while (running.get() && lookups[0] < latencies.length) {
+                    IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS,
+                            new IntField(rand.nextInt(BTreeUtility.MAX_RAND_VALUE)));
+                    TransactionId tid = new TransactionId();
+                    long start = System.nanoTime();
+                    try {
+                        DbFileIterator it = bf.indexIterator(tid, ipred);
+                        it.open();
+                        while (it.hasNext())
+                            it.next();
+                        it.close();
+                        bp.transactionComplete(tid, true);
+                        latencies[lookups[0]++] = System.nanoTime() - start;
+                    } catch (TransactionAbortedException e) {
+                        abort(bp, tid);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        abort(bp, tid);
+                    }
+                }
+            }
+        });
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread t : threads)
+            t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failures.get() > 0)
+            System.err.println(failures.get() + " transactions failed");
+
+        long[] sorted = Arrays.copyOf(latencies, lookups[0]);
+        Arrays.sort(sorted);
+        System.out.printf("%8d %15.1f %15.1f %15.1f%n", writers,
+                percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3,
+                inserts.get() / elapsed);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    static void abort(BufferPool bp, TransactionId tid) {
+        try {
+            bp.transactionComplete(tid, false);
+        } catch (Exception e) {
+            // the transaction is over either way
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolMetricsTest extends SimpleDbTestBase {
+    private static final int PAGES = 4;
+
+    private HeapFile table;
+    private BufferPool bp;
+    private BufferPoolMetrics metrics;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        metrics = bp.getMetrics();
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(table.getId(), pgNo);
+    }
+
+    /**
+     * Unit test for BufferPoolMetrics: hits, misses and the readPage
+     * latency histogram.
+     */
+    @Test public void hitsAndMisses() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < PAGES; i++)
+                bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        }
+        assertEquals(PAGES, metrics.getMisses());
+        assertEquals(2 * PAGES, metrics.getHits());
+        assertEquals(2.0 / 3, metrics.getHitRatio(), 0.001);
+        assertEquals(PAGES, metrics.getReadLatency().getCount());
+        assertEquals(PAGES, (int) metrics.getResidentPagesByTable().values().iterator().next());
+        bp.transactionComplete(tid);
+
+        metrics.reset();
+        assertEquals(0, metrics.getMisses());
+        assertEquals(0, metrics.getReadLatency().getCount());
+    }
+
+    /**
+     * Unit test for BufferPoolMetrics: evictions and pages written.
+     */
+    @Test public void evictionsAndWrites() throws Exception {
+        bp = Database.resetBufferPool(2);
+        metrics = bp.getMetrics();
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, page(0), Permissions.READ_WRITE).markDirty(true, tid);
+        bp.transactionComplete(tid, true);
+        assertEquals(1, metrics.getPagesWritten());
+        assertEquals(1, metrics.getWriteLatency().getCount());
+
+        tid = new TransactionId();
+        for (int i = 0; i < PAGES; i++)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        assertEquals(PAGES - 2, metrics.getEvictions());
+        assertEquals(2, metrics.getResidentPages());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPoolMetrics: a lock request that waits for
+     * another transaction is counted with its waiting time.
+     */
+    @Test public void lockWaits() throws Exception {
+        bp.setLockTimeout(500);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.getPage(t1, page(0), Permissions.READ_WRITE);
+        bp.getPage(t2, page(1), Permissions.READ_ONLY);
+        assertEquals(0, metrics.getLockWaits());
+        try {
+            bp.getPage(t2, page(0), Permissions.READ_ONLY);
+            fail("expected the lock request to time out");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getLockWaits());
+        assertTrue(metrics.getLockWaitMillis() >= 400);
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2, false);
+    }
+
+    /**
+     * Unit test for LatencyHistogram.
+     */
+    @Test public void histogramBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(500);
+        h.record(1500);
+        h.record(3000);
+        h.record(3500);
+        long[] counts = h.getCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(2, counts[2]);
+        assertEquals(4, h.getCount());
+        assertEquals(2.125, h.getMeanMicros(), 0.001);
+        assertEquals(2, h.getPercentileMicros(0.5));
+        assertEquals(4, h.getPercentileMicros(0.99));
+    }
+
+    /**
+     * Unit test for Database: the metrics of the current pool are
+     * registered as an MXBean.
+     */
+    @Test public void registeredAsMXBean() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, page(0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        ObjectName name = new ObjectName(BufferPoolMetrics.OBJECT_NAME);
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Misses"));
+        assertEquals(BufferPool.DEFAULT_PAGES,
+                ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Capacity"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolMetricsTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolResizeTest extends SimpleDbTestBase {
+    private static final int PAGES = 8;
+
+    private HeapFile table;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        bp = Database.resetBufferPool(new BufferPool(4, ReplacementPolicy.Kind.CLOCK, 1));
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(table.getId(), pgNo);
+    }
+
+    private void readAll(TransactionId tid) throws Exception {
+        for (int i = 0; i < PAGES; i++)
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for BufferPool.resize: a pool that grows keeps its pages
+     * and holds more of them.
+     */
+    @Test public void grow() throws Exception {
+        TransactionId tid = new TransactionId();
+        readAll(tid);
+        assertEquals(4, bp.residentPages().size());
+        bp.resize(PAGES);
+        assertEquals(PAGES, bp.getNumPages());
+        assertEquals(4, bp.residentPages().size());
+        readAll(tid);
+        assertEquals(PAGES, bp.residentPages().size());
+        bp.getMetrics().reset();
+        readAll(tid);
+        assertEquals(PAGES, bp.getMetrics().getHits());
+        assertEquals(0, bp.getMetrics().getMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.resize: a pool that shrinks evicts clean
+     * pages at once and dirty pages when their transaction commits.
+     */
+    @Test public void shrink() throws Exception {
+        bp.resize(PAGES);
+        TransactionId tid = new TransactionId();
+        readAll(tid);
+        bp.getPage(tid, page(0), Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, page(1), Permissions.READ_WRITE).markDirty(true, tid);
+
+        bp.resize(1);
+        assertEquals(2, bp.residentPages().size());
+        assertTrue(bp.residentPages().contains(page(0)));
+        assertTrue(bp.residentPages().contains(page(1)));
+
+        bp.transactionComplete(tid);
+        assertEquals(1, bp.residentPages().size());
+
+        // the pool keeps working at its new size
+        tid = new TransactionId();
+        readAll(tid);
+        assertEquals(1, bp.residentPages().size());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.resizeBytes: the pool holds as many whole
+     * pages as fit in the given number of bytes.
+     */
+    @Test public void resizeBytes() throws Exception {
+        bp.resizeBytes(6L * BufferPool.getPageSize() + 100);
+        assertEquals(6, bp.getNumPages());
+        assertEquals(6L * BufferPool.getPageSize(), bp.getSizeBytes());
+        bp.getMetrics().setCapacityBytes(2L * BufferPool.getPageSize());
+        assertEquals(2, bp.getMetrics().getCapacity());
+        try {
+            bp.resize(0);
+            fail("expected a pool without pages to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -34,13 +32,11 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     			throws DbException, IOException, TransactionAbortedException {
     		ArrayList<Page> dirtypages = new ArrayList<Page>();
     		for(int i = 0; i < duplicates; i++) {
-    			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-    			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1), 
-    					HeapPage.createEmptyPageData());
+    			// append a blank page through the HeapFile, so that it
+    			// counts the page; the tuple stays in memory (NO STEAL)
+    			HeapPageId pid = new HeapPageId(super.getId(), super.numPages());
+    			super.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    			HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
     			dirtypages.add(p);
     		}
@@ -0,0 +1,204 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkLoadTest extends TestUtil.CreateHeapFile {
+    /** Slots of a page of two int fields. */
+    private static final int SLOTS = 504;
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid, true);
+    }
+
+    /** @return an operator over n tuples of two int fields, from the given value on */
+    private static OpIterator tuples(int first, int n) {
+        List<Tuple> tuples = new ArrayList<Tuple>(n);
+        for (int i = first; i < first + n; i++)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        return new TupleIterator(Utility.getTupleDesc(2), tuples);
+    }
+
+    /** Bulk load n tuples into the table on behalf of tid, returning the count Insert reports. */
+    private int load(TransactionId tid, int first, int n) throws Exception {
+        Insert insert = new Insert(tid, tuples(first, n), empty.getId(), true);
+        insert.open();
+        int count = ((IntField) insert.next().getField(0)).getValue();
+        assertFalse(insert.hasNext());
+        insert.close();
+        return count;
+    }
+
+    /** @return the number of tuples tid sees in the table */
+    private int count(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, empty.getId());
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    /** @return the number of committed tuples in the table, read by a transaction of its own */
+    private int countCommitted() throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = count(tid);
+        bp.transactionComplete(tid, true);
+        return n;
+    }
+
+    /**
+     * Unit test for bulk-load Insert: the tuples go to full new pages at
+     * the end of the file, written in more than one batch, under a table
+     * lock, and are there once the transaction commits.
+     */
+    @Test public void appendsPages() throws Exception {
+        int n = SLOTS * (HeapFile.BulkLoad.BATCH_PAGES + 10) + 7;
+        TransactionId tid = new TransactionId();
+        assertEquals(n, load(tid, 100, n));
+        assertEquals(LockTable.Mode.X, bp.getTableLockMode(tid, empty.getId()));
+        assertEquals(1 + HeapFile.BulkLoad.BATCH_PAGES + 11, empty.numPages());
+        assertEquals(n + 10, count(tid));
+        bp.transactionComplete(tid, true);
+
+        assertEquals(SLOTS - 10, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0))).getNumEmptySlots());
+        assertEquals(0, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1))).getNumEmptySlots());
+        assertEquals(n + 10, countCommitted());
+
+        // ordinary inserts still find room in the existing pages
+        tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertTrue(bp.holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * Unit test for bulk-load Insert: an abort truncates the file back to
+     * where the load began, after which inserts append as before.
+     */
+    @Test public void abortTruncates() throws Exception {
+        long length = empty.getFile().length();
+        TransactionId tid = new TransactionId();
+        load(tid, 100, SLOTS * 3);
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(-1, 2));
+        assertEquals(4, empty.numPages());
+        bp.transactionComplete(tid, false);
+
+        assertEquals(1, empty.numPages());
+        assertEquals(length, empty.getFile().length());
+        assertEquals(10, countCommitted());
+
+        tid = new TransactionId();
+        for (int i = 0; i < SLOTS; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid, true);
+        assertEquals(2, empty.numPages());
+        assertEquals(SLOTS + 10, countCommitted());
+    }
+
+    /**
+     * Unit test for bulk-load Insert: a snapshot does not see the pages of
+     * a load that is running, nor, after it commits, those of a load that
+     * committed after the snapshot started.
+     */
+    @Test public void snapshotsDoNotSeeLoad() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        TransactionId tid = new TransactionId();
+        load(tid, 100, SLOTS * 2);
+        assertEquals(10, count(snapshot));
+        bp.transactionComplete(tid, true);
+        assertEquals(10, count(snapshot));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(SLOTS * 2 + 10, count(later));
+        bp.transactionComplete(later, true);
+        bp.transactionComplete(snapshot, true);
+        assertEquals(0, bp.snapshotVersions());
+    }
+
+    /** Simulate a crash: restart the database and run log recovery. */
+    private void crash() throws Exception {
+        File file = empty.getFile();
+        Database.reset();
+        bp = Database.getBufferPool();
+        empty = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Unit test for bulk-load Insert: recovery truncates the pages of a
+     * load whose transaction did not commit, and keeps those of a load
+     * that did.
+     */
+    @Test public void recoveryTruncates() throws Exception {
+        Transaction committed = new Transaction();
+        committed.start();
+        load(committed.getId(), 100, SLOTS * 2);
+        committed.commit();
+        long length = empty.getFile().length();
+
+        Transaction crashed = new Transaction();
+        crashed.start();
+        load(crashed.getId(), 100, SLOTS * 3);
+        assertEquals(6, empty.numPages());
+        crash();
+
+        assertEquals(length, empty.getFile().length());
+        assertEquals(3, empty.numPages());
+        assertEquals(SLOTS * 2 + 10, countCommitted());
+    }
+
+    /**
+     * Unit test for LogFile.rollback(): the abort record of a transaction
+     * that bulk loaded is written after its loads are truncated.
+     */
+    @Test public void rollbackTruncates() throws Exception {
+        long length = empty.getFile().length();
+        Transaction t = new Transaction();
+        t.start();
+        load(t.getId(), 100, SLOTS * 2);
+        load(t.getId(), 100, SLOTS);
+        assertEquals(4, empty.numPages());
+        Database.getLogFile().logAbort(t.getId());
+        assertEquals(length, empty.getFile().length());
+        bp.transactionComplete(t.getId(), false);
+        assertEquals(1, empty.numPages());
+        assertEquals(10, countCommitted());
+    }
+
+    /**
+     * Unit test for BufferPool.bulkLoad(): a snapshot cannot load.
+     */
+    @Test(expected = DbException.class) public void snapshotCannotLoad() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        bp.bulkLoad(snapshot, empty.getId());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoadTest.class);
+    }
+}
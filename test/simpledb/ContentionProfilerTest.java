@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentionProfilerTest {
+    private static final long TIMEOUT = 5000;
+
+    private LockTable locks;
+    private ContentionProfiler contention;
+    private PageId p0, p1;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        locks = new LockTable();
+        contention = locks.getContention();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(2, 0);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /** Acquires the page lock X in a new thread, which holds it until the test ends. */
+    private Thread waitFor(final TransactionId tid, final PageId pid) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid, pid, true, TIMEOUT);
+                } catch (TransactionAbortedException e) {
+                    // the test checks what was recorded
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Unit test for ContentionProfiler: a request granted at once is not
+     * recorded; one that waits is recorded for its page and table with the
+     * time it waited and the transactions it waited for.
+     */
+    @Test public void recordsWaits() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        assertTrue(locks.tryAcquire(t2, p0, false));
+        assertEquals(0, contention.getWaits());
+
+        Thread waiter = waitFor(t3, p0);
+        Thread.sleep(100);
+        locks.transactionComplete(t1);
+        locks.transactionComplete(t2);
+        waiter.join(TIMEOUT);
+
+        assertEquals(1, contention.getWaits());
+        List<ContentionProfiler.Hotspot> pages = contention.topPages(10);
+        assertEquals(1, pages.size());
+        ContentionProfiler.Hotspot page = pages.get(0);
+        assertEquals(p0, page.getPageId());
+        assertEquals(1, page.getWaits());
+        assertTrue(page.getMaxWaitNanos() >= 50 * 1000000L);
+        assertEquals(page.getMaxWaitNanos(), page.getWaitNanos());
+        assertEquals(t3, page.getWaiter());
+        assertTrue(page.getBlockers().containsAll(Arrays.asList(t1, t2)));
+        assertEquals(2, page.getBlockers().size());
+
+        ContentionProfiler.Hotspot table = contention.topTables(10).get(0);
+        assertNull(table.getPageId());
+        assertEquals(p0.getTableId(), table.getTableId());
+        assertEquals(1, table.getWaits());
+    }
+
+    /**
+     * Unit test for ContentionProfiler: waits for records count for their
+     * page, waits for table locks only for the table, and the top lists
+     * are ordered by the total time waited.
+     */
+    @Test public void ranksHotspots() throws Exception {
+        final RecordId rid = new RecordId(p1, 3);
+        assertTrue(locks.tryAcquireRecord(t1, rid, true));
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    locks.acquireRecord(t2, rid, true, TIMEOUT);
+                } catch (TransactionAbortedException e) {
+                    // the test checks what was recorded
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        locks.transactionComplete(t1);
+        waiter.join(TIMEOUT);
+        locks.transactionComplete(t2);
+
+        assertTrue(locks.tryAcquireTable(t1, p0.getTableId(), LockTable.Mode.X));
+        waiter = new Thread() {
+            public void run() {
+                try {
+                    locks.acquireTable(t3, p0.getTableId(), LockTable.Mode.S, TIMEOUT);
+                } catch (TransactionAbortedException e) {
+                    // the test checks what was recorded
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(10);
+        locks.transactionComplete(t1);
+        waiter.join(TIMEOUT);
+
+        assertEquals(2, contention.getWaits());
+        List<ContentionProfiler.Hotspot> pages = contention.topPages(10);
+        assertEquals(1, pages.size());
+        assertEquals(p1, pages.get(0).getPageId());
+        assertEquals(t2, pages.get(0).getWaiter());
+        List<ContentionProfiler.Hotspot> tables = contention.topTables(10);
+        assertEquals(2, tables.size());
+        assertEquals(p1.getTableId(), tables.get(0).getTableId());
+        assertEquals(p0.getTableId(), tables.get(1).getTableId());
+        assertEquals(1, contention.topTables(1).size());
+        assertTrue(contention.report(1).contains("tx " + t2.getId() + " waited for " + t1.getId()));
+
+        contention.reset();
+        assertEquals(0, contention.getWaits());
+        assertTrue(contention.topPages(10).isEmpty());
+    }
+
+    /**
+     * Unit test for ContentionProfiler: the profile of the pool the
+     * Database uses is registered as an MBean.
+     */
+    @Test public void mbean() throws Exception {
+        Database.reset();
+        ObjectName name = new ObjectName(ContentionProfiler.OBJECT_NAME);
+        assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Waits"));
+        assertEquals(ContentionProfiler.DEFAULT_REPORT_SIZE,
+                ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ReportSize"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ContentionProfilerTest.class);
+    }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    /** Slots of a page of two int fields. */
+    private static final int SLOTS = 504;
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test for FreeSpaceMap: full pages are never handed out, pages
+     * with room are handed out fullest first, and unknown pages after them.
+     */
+    @Test public void buckets() {
+        FreeSpaceMap fsm = new FreeSpaceMap(100);
+        fsm.update(0, 0);
+        fsm.update(1, 100);
+        fsm.update(2, 5);
+        fsm.update(3, 60);
+        assertEquals(4, fsm.numPages());
+        assertEquals(Arrays.asList(2, 3, 1), fsm.pagesWithRoom(10));
+        assertEquals(Arrays.asList(2), fsm.pagesWithRoom(1));
+
+        fsm.update(2, 0);
+        fsm.update(0, 1);
+        assertEquals(Arrays.asList(0, 3, 1), fsm.pagesWithRoom(10));
+        assertEquals(1, fsm.getFree(0));
+
+        fsm.update(5, 100);
+        assertEquals(0, fsm.getFree(4));
+        assertEquals(Arrays.asList(0, 3, 1, 5, 4), fsm.pagesWithRoom(10));
+        fsm.extend(8);
+        assertEquals(Arrays.asList(0, 3, 1, 5, 4, 6, 7), fsm.pagesWithRoom(10));
+        for (int i = 0; i < 7; i++)
+            fsm.update(i, 0);
+        assertEquals(Arrays.asList(7), fsm.pagesWithRoom(10));
+        // a count read from disk does not replace a reported one
+        fsm.learn(0, 100);
+        fsm.learn(7, 0);
+        assertEquals(0, fsm.getFree(0));
+        assertEquals(Collections.emptyList(), fsm.pagesWithRoom(10));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): an insert into a table whose
+     * first pages are full locks only the page it inserts into.
+     */
+    @Test public void insertLocksOnlyTarget() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, SLOTS * 2 + 10, null, null);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertFalse(bp.holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        assertFalse(bp.holdsLock(tid, new HeapPageId(hf.getId(), 1)));
+        assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 2)));
+        bp.transactionComplete(tid, true);
+        assertEquals(3, hf.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): the map is filled in from the
+     * pages a scan reads, so an insert after a scan asks the pool only for
+     * the page with room.
+     */
+    @Test public void learnsFromReads() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, SLOTS * 2 + 10, null, null);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            it.next();
+        it.close();
+        BufferPoolMetrics metrics = bp.getMetrics();
+        long requests = metrics.getHits() + metrics.getMisses();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(requests + 1, metrics.getHits() + metrics.getMisses());
+        assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 2)));
+        bp.transactionComplete(tid, true);
+        assertEquals(3, hf.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): the room left by a delete is
+     * reused, and an insert passes over a page another transaction holds
+     * for the next page with room instead of waiting.
+     */
+    @Test public void skipsLockedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, SLOTS + 10, null, null);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(tid, first);
+        bp.transactionComplete(tid, true);
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertTrue(bp.holdsLock(t1, new HeapPageId(hf.getId(), 0)));
+        bp.insertTuple(t2, hf.getId(), Utility.getHeapTuple(2, 2));
+        assertFalse(bp.holdsLock(t2, new HeapPageId(hf.getId(), 0)));
+        assertTrue(bp.holdsLock(t2, new HeapPageId(hf.getId(), 1)));
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, true);
+        assertEquals(2, hf.numPages());
+        assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -3,6 +3,8 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +79,20 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.close(): a closed file opens its channel
+     * again on the next read.
+     */
+    @Test
+    public void closeReopens() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.readPage(pid);
+        hf.close();
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +137,72 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for a mapped HeapFile: pages decoded from the mapped file
+     * hold the same tuples as pages read into memory.
+     */
+    @Test
+    public void mappedRead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 1200,
+                1 << 16, null, tuples);
+        HeapFile mapped = new HeapFile(f, td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMapped());
+        assertEquals(3, mapped.numPages());
+        SystemTestUtil.matchTuples(mapped, tid, tuples);
+
+        HeapPageId pid = new HeapPageId(mapped.getId(), 2);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertEquals(new HeapPage(pid, page.getPageData()).getNumEmptySlots(),
+                page.getNumEmptySlots());
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for a mapped HeapFile: its pages cannot be changed.
+     */
+    @Test
+    public void mappedReadOnly() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        try {
+            mapped.insertTuple(tid, Utility.getHeapTuple(1, 2));
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+        try {
+            mapped.writePage(mapped.readPage(new HeapPageId(mapped.getId(), 0)));
+            fail("expected exception");
+        } catch (java.io.IOException e) {
+        }
+        assertFalse(hf.isMapped());
+    }
+
+    /**
+     * Unit test for Catalog.loadSchema(): a table marked mmap is mapped.
+     */
+    @Test
+    public void loadSchemaMapped() throws Exception {
+        File dir = hf.getFile().getParentFile();
+        String plain = SystemTestUtil.getUUID().replace("-", "");
+        String mapped = SystemTestUtil.getUUID().replace("-", "");
+        File schema = File.createTempFile("schema", ".txt", dir);
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write(plain + " (a int, b int)\n");
+        w.write(mapped + " (a int pk, b string) mmap\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        HeapFile p = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(plain));
+        HeapFile m = (HeapFile) Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId(mapped));
+        assertFalse(p.isMapped());
+        assertTrue(m.isMapped());
+        assertEquals("a", Database.getCatalog().getPrimaryKey(m.getId()));
+    }
+
     /**
      * JUnit suite target
      */
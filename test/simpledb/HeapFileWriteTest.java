@@ -5,6 +5,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
 import junit.framework.JUnit4TestAdapter;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -43,6 +46,53 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /** @return a page of the file full of tuples with the given value */
+    private HeapPage fullPage(int pgNo, int value) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgNo), HeapPage.createEmptyPageData());
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(Utility.getHeapTuple(value, 2));
+        return page;
+    }
+
+    private int firstValue(HeapFile hf, int pgNo) {
+        Tuple t = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo))).iterator().next();
+        return ((IntField) t.getField(0)).getValue();
+    }
+
+    /**
+     * Unit test for HeapFile.writePage(): a page is written in place, at
+     * its offset, leaving the other pages as they are, and a page past the
+     * end extends the file.
+     */
+    @Test public void writePageInPlace() throws Exception {
+        empty.writePages(Arrays.<Page>asList(fullPage(0, 10), fullPage(1, 11), fullPage(2, 12)));
+        assertEquals(3, empty.numPages());
+        empty.writePage(fullPage(1, 21));
+        assertEquals(3, empty.numPages());
+        assertEquals(10, firstValue(empty, 0));
+        assertEquals(21, firstValue(empty, 1));
+        assertEquals(12, firstValue(empty, 2));
+
+        empty.writePage(fullPage(3, 13));
+        assertEquals(4, empty.numPages());
+        assertEquals(4L * BufferPool.getPageSize(), empty.getFile().length());
+
+        // a new HeapFile reads what is on disk
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(4, reopened.numPages());
+        assertEquals(21, firstValue(reopened, 1));
+        assertEquals(13, firstValue(reopened, 3));
+    }
+
+    /**
+     * Unit test for HeapFile.readPage(): a page that is not in the file
+     * cannot be read.
+     */
+    @Test(expected = IllegalArgumentException.class) public void readPastEnd() throws Exception {
+        empty.writePage(fullPage(0, 1));
+        empty.readPage(new HeapPageId(empty.getId(), 1));
+    }
+
     /**
      * JUnit suite target
      */
@@ -10,6 +10,7 @@ import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -120,6 +121,38 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() on a page whose tuples have not
+     * been decoded
+     */
+    @Test public void getPageDataUndecoded() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+        assertArrayEquals(EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage.getPageData() on a page modified after only
+     * some of its tuples were decoded
+     */
+    @Test public void getPageDataPartlyDecoded() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        it.next();
+        page.deleteTuple(it.next());
+
+        Iterator<Tuple> copy = new HeapPage(pid, page.getPageData()).iterator();
+        for (int row = 0; row < 20; ++row) {
+            if (row == 2)
+                continue;
+            Tuple tup = copy.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(copy.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
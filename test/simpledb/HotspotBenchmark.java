@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-threaded benchmark of many writers on one hot page, with page and
+ * with record locking. Each transaction inserts a tuple into a table that
+ * fits on one page, works for a while (parked, standing in for the rest of
+ * the transaction), deletes its tuple again and commits, so the table
+ * stays on one page. With page locks the writers take turns on the page;
+ * with record locks they only share its latch. Committed and aborted
+ * transactions per second are reported for 1 to 16 threads.
+ * <p>
+ * Run with: ant runbench -Dbench=HotspotBenchmark [-Dargs="seconds workMicros"]
+ */
+public class HotspotBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+    private static long workNanos;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3.0;
+        workNanos = (args.length > 1 ? Long.parseLong(args[1]) : 200) * 1000;
+
+        Database.reset();
+        HeapFile table = Utility.createEmptyHeapFile(
+                java.io.File.createTempFile("hotspot", ".dat").getAbsolutePath(), 2);
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+
+        for (boolean recordLocking : new boolean[] { false, true }) {
+            System.out.println(recordLocking ? "record locks" : "page locks");
+            System.out.printf("%8s %15s %15s%n", "threads", "commits/s", "aborts/s");
+            for (int threads : THREADS) {
+                BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                bp.setRecordLocking(recordLocking);
+                measure(bp, table, threads, seconds);
+            }
+        }
+    }
+
+    /** Inserts a tuple, works, deletes it and commits. */
+    static void transaction(BufferPool bp, HeapFile table, int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        try {
+            Tuple t = Utility.getHeapTuple(value, 2);
+            bp.insertTuple(tid, table.getId(), t);
+            LockSupport.parkNanos(workNanos);
+            bp.deleteTuple(tid, t);
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+            throw e;
+        }
+        bp.transactionComplete(tid, true);
+    }
+
+    static void measure(final BufferPool bp, final HeapFile table, int threads,
+            double seconds) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int value = i;
+            Thread t = new Thread() {
+                public void run() {
+                    while (running.get()) {
+                        try {
+                            transaction(bp, table, value);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread t : workers)
+            t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failures.get() > 0)
+            System.err.println(failures.get() + " transactions failed");
+        System.out.printf("%8d %15.1f %15.1f%n", threads,
+                commits.get() / elapsed, aborts.get() / elapsed);
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Multi-threaded throughput benchmark for transactions that contend for
+ * page locks. Each transaction reads one random page of a small table,
+ * writes another, works for a while (parked, standing in for I/O) and
+ * commits; with few pages and many threads most lock requests conflict. Locks are taken in page order, so there are no
+ * deadlocks and every wait ends when a holder commits. Committed and
+ * aborted transactions per second are reported for 1 to 16 threads.
+ * Waiters should get a lock as soon as its holder commits, so throughput
+ * should not collapse under contention.
+ * <p>
+ * Run with: ant runbench -Dbench=LockContentionBenchmark [-Dargs="seconds pages workMicros"]
+ */
+public class LockContentionBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+    private static long workNanos;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3.0;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        workNanos = (args.length > 2 ? Long.parseLong(args[2]) : 200) * 1000;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors()
+                + ", table pages: " + table.numPages());
+
+        System.out.printf("%8s %15s %15s%n", "threads", "commits/s", "aborts/s");
+        for (int threads : THREADS) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            measure(table.getId(), pages, threads, seconds);
+        }
+    }
+
+    /** Reads a random page, writes a later one and commits. */
+    static void transaction(int tableId, int pages, Random rand) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        try {
+            int a = rand.nextInt(pages - 1);
+            int b = a + 1 + rand.nextInt(pages - 1 - a);
+            bp.getPage(tid, new HeapPageId(tableId, a), Permissions.READ_ONLY);
+            bp.getPage(tid, new HeapPageId(tableId, b), Permissions.READ_WRITE);
+            LockSupport.parkNanos(workNanos);
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+            throw e;
+        }
+        bp.transactionComplete(tid, true);
+    }
+
+    static void measure(final int tableId, final int pages, int threads, double seconds)
+            throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final Random rand = new Random(i);
+            Thread t = new Thread() {
+                public void run() {
+                    while (running.get()) {
+                        try {
+                            transaction(tableId, pages, rand);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread t : workers)
+            t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failures.get() > 0)
+            System.err.println(failures.get() + " transactions failed");
+        System.out.printf("%8d %15.1f %15.1f%n", threads,
+                commits.get() / elapsed, aborts.get() / elapsed);
+    }
+}
@@ -0,0 +1,408 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockTableTest {
+    private static final long TIMEOUT = 5000;
+
+    private LockTable locks;
+    private PageId p0, p1;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        locks = new LockTable();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /** Acquires a lock in a new thread; check acquired() or the error later. */
+    private class Waiter extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        final long timeout;
+        volatile boolean acquired;
+        volatile long grantedAt;
+        volatile TransactionAbortedException error;
+
+        Waiter(TransactionId tid, boolean exclusive, long timeout) {
+            this(tid, p0, exclusive, timeout);
+        }
+
+        Waiter(TransactionId tid, PageId pid, boolean exclusive, long timeout) {
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            this.timeout = timeout;
+            start();
+        }
+
+        public void run() {
+            try {
+                locks.acquire(tid, pid, exclusive, timeout);
+                grantedAt = System.nanoTime();
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                error = e;
+            }
+        }
+    }
+
+    /** Give started waiters time to queue up. */
+    private static void settle() throws InterruptedException {
+        Thread.sleep(100);
+    }
+
+    /**
+     * Unit test for LockTable: shared locks are compatible, exclusive ones
+     * are not.
+     */
+    @Test public void compatibility() {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        assertTrue(locks.tryAcquire(t2, p0, false));
+        assertFalse(locks.tryAcquire(t3, p0, true));
+        locks.unlock(p0, t1);
+        locks.unlock(p0, t2);
+        assertTrue(locks.tryAcquire(t3, p0, true));
+        assertFalse(locks.tryAcquire(t1, p0, false));
+        // a holder may ask again in the same or a weaker mode
+        assertTrue(locks.tryAcquire(t3, p0, false));
+        assertTrue(locks.holdLock(p0, t3));
+        assertFalse(locks.holdLock(p0, t1));
+    }
+
+    /**
+     * Unit test for LockTable: a waiter is woken when the holder releases
+     * the lock, long before its timeout.
+     */
+    @Test public void wakeupOnRelease() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        Waiter w = new Waiter(t2, true, TIMEOUT);
+        settle();
+        assertFalse(w.acquired);
+        long released = System.nanoTime();
+        locks.unlock(p0, t1);
+        w.join(TIMEOUT);
+        assertTrue(w.acquired);
+        assertTrue(w.grantedAt - released < 1000L * 1000000);
+    }
+
+    /**
+     * Unit test for LockTable: a shared request does not pass an exclusive
+     * request queued before it, even though it is compatible with the
+     * holders.
+     */
+    @Test public void fifo() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        Waiter writer = new Waiter(t2, true, TIMEOUT);
+        settle();
+        assertFalse(locks.tryAcquire(t3, p0, false));
+        Waiter reader = new Waiter(t3, false, TIMEOUT);
+        settle();
+        assertFalse(reader.acquired);
+
+        locks.unlock(p0, t1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+        settle();
+        assertFalse(reader.acquired);
+        locks.unlock(p0, t2);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired);
+    }
+
+    /**
+     * Unit test for LockTable: an upgrade is queued ahead of waiters that
+     * hold nothing, and granted when the other readers leave.
+     */
+    @Test public void upgrade() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        assertTrue(locks.tryAcquire(t2, p0, false));
+        Waiter writer = new Waiter(t3, true, TIMEOUT);
+        settle();
+        Waiter upgrade = new Waiter(t1, true, TIMEOUT);
+        settle();
+        assertFalse(upgrade.acquired);
+
+        locks.unlock(p0, t2);
+        upgrade.join(TIMEOUT);
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+        locks.unlock(p0, t1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired);
+
+        // the only holder upgrades at once, even with others queued
+        TransactionId t4 = new TransactionId();
+        locks.unlock(p0, t3);
+        assertTrue(locks.tryAcquire(t4, p0, false));
+        Waiter queued = new Waiter(t2, true, TIMEOUT);
+        settle();
+        locks.acquire(t4, p0, true, TIMEOUT);
+        assertFalse(queued.acquired);
+        locks.unlock(p0, t4);
+        queued.join(TIMEOUT);
+        assertTrue(queued.acquired);
+    }
+
+    /**
+     * Unit test for LockTable: a request that times out leaves the queue,
+     * so requests behind it are not blocked by it.
+     */
+    @Test public void timeout() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        Waiter writer = new Waiter(t2, true, 100);
+        writer.join(TIMEOUT);
+        assertNotNull(writer.error);
+        assertFalse(locks.holdLock(p0, t2));
+        assertTrue(locks.tryAcquire(t3, p0, false));
+    }
+
+    /**
+     * Unit test for LockTable: two transactions that wait for each other's
+     * page form a cycle; the youngest is aborted at once and the other gets
+     * its lock when the victim's locks are released.
+     */
+    @Test public void deadlock() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        assertTrue(locks.tryAcquire(t2, p1, true));
+        long start = System.nanoTime();
+        Waiter older = new Waiter(t1, p1, true, TIMEOUT);
+        settle();
+        Waiter younger = new Waiter(t2, p0, true, TIMEOUT);
+        younger.join(TIMEOUT);
+        assertNotNull(younger.error);
+        assertTrue(System.nanoTime() - start < 1000L * 1000000);
+        assertEquals(1, locks.getDeadlocks());
+
+        assertFalse(older.acquired);
+        locks.unlock(p1, t2);
+        older.join(TIMEOUT);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * Unit test for LockTable: two readers that both upgrade deadlock, and
+     * the surviving upgrade is granted once the victim leaves.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        assertTrue(locks.tryAcquire(t2, p0, false));
+        Waiter first = new Waiter(t1, true, TIMEOUT);
+        settle();
+        Waiter second = new Waiter(t2, true, TIMEOUT);
+        second.join(TIMEOUT);
+        assertNotNull(second.error);
+        assertEquals(1, locks.getDeadlocks());
+
+        locks.unlock(p0, t2);
+        first.join(TIMEOUT);
+        assertTrue(first.acquired);
+    }
+
+    /**
+     * Unit test for LockTable: with FEWEST_LOCKS the transaction holding
+     * fewer locks is aborted, even if it is the older one.
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        locks.setVictimPolicy(LockTable.VictimPolicy.FEWEST_LOCKS);
+        PageId p2 = new HeapPageId(1, 2);
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        assertTrue(locks.tryAcquire(t2, p1, true));
+        assertTrue(locks.tryAcquire(t2, p2, true));
+        Waiter older = new Waiter(t1, p1, true, TIMEOUT);
+        settle();
+        Waiter younger = new Waiter(t2, p0, true, TIMEOUT);
+        older.join(TIMEOUT);
+        assertNotNull(older.error);
+        assertEquals(1, locks.getDeadlocks());
+
+        assertFalse(younger.acquired);
+        locks.unlock(p0, t1);
+        younger.join(TIMEOUT);
+        assertTrue(younger.acquired);
+    }
+
+    /**
+     * Unit test for LockTable.Mode: the compatibility of the modes, and the
+     * mode a transaction ends up holding after asking for two.
+     */
+    @Test public void modes() {
+        LockTable.Mode IS = LockTable.Mode.IS, IX = LockTable.Mode.IX,
+                S = LockTable.Mode.S, SIX = LockTable.Mode.SIX, X = LockTable.Mode.X;
+        assertTrue(IS.compatible(SIX));
+        assertTrue(IX.compatible(IX));
+        assertFalse(IX.compatible(S));
+        assertFalse(SIX.compatible(SIX));
+        assertFalse(X.compatible(IS));
+        assertEquals(SIX, IX.combine(S));
+        assertEquals(SIX, S.combine(IX));
+        assertEquals(S, IS.combine(S));
+        assertEquals(X, SIX.combine(X));
+        assertTrue(SIX.covers(S));
+        assertFalse(S.covers(IX));
+    }
+
+    /**
+     * Unit test for LockTable: table locks follow the compatibility of the
+     * modes, a holder asking for S on top of IX gets SIX, and table locks
+     * are released when the transaction completes.
+     */
+    @Test public void tableLocks() {
+        assertTrue(locks.tryAcquireTable(t1, 1, LockTable.Mode.IX));
+        assertTrue(locks.tryAcquireTable(t2, 1, LockTable.Mode.IS));
+        assertFalse(locks.tryAcquireTable(t3, 1, LockTable.Mode.S));
+        assertTrue(locks.tryAcquireTable(t3, 2, LockTable.Mode.S));
+
+        assertTrue(locks.tryAcquireTable(t1, 1, LockTable.Mode.S));
+        assertEquals(LockTable.Mode.SIX, locks.tableMode(t1, 1));
+        assertFalse(locks.tryAcquireTable(t2, 1, LockTable.Mode.IX));
+
+        locks.transactionComplete(t1);
+        assertNull(locks.tableMode(t1, 1));
+        assertTrue(locks.tryAcquireTable(t2, 1, LockTable.Mode.IX));
+        // page locks are separate from table locks
+        assertTrue(locks.tryAcquire(t1, p0, true));
+    }
+
+    /**
+     * Unit test for LockTable: records are locked S or X under IS or IX on
+     * their page, so writers of different records of a page do not
+     * conflict, while an S lock on the page does.
+     */
+    @Test public void recordLocks() {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        assertTrue(locks.tryAcquire(t1, p0, LockTable.Mode.IX));
+        assertTrue(locks.tryAcquireRecord(t1, r0, true));
+        assertTrue(locks.tryAcquire(t2, p0, LockTable.Mode.IX));
+        assertTrue(locks.tryAcquireRecord(t2, r1, true));
+        assertFalse(locks.tryAcquireRecord(t2, r0, false));
+        assertFalse(locks.tryAcquire(t3, p0, false));
+        assertEquals(LockTable.Mode.X, locks.recordMode(t1, r0));
+
+        locks.transactionComplete(t1);
+        assertNull(locks.recordMode(t1, r0));
+        assertNull(locks.pageMode(t1, p0));
+        assertTrue(locks.tryAcquireRecord(t2, r0, false));
+    }
+
+    /**
+     * Unit test for LockTable.transactionComplete(): every page and table
+     * lock of the transaction is released, and waiters are granted.
+     */
+    @Test public void transactionComplete() throws Exception {
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        assertTrue(locks.tryAcquire(t1, p1, false));
+        assertTrue(locks.tryAcquireTable(t1, 2, LockTable.Mode.X));
+        Waiter w = new Waiter(t2, true, TIMEOUT);
+        settle();
+        assertFalse(w.acquired);
+
+        locks.transactionComplete(t1);
+        w.join(TIMEOUT);
+        assertTrue(w.acquired);
+        assertFalse(locks.holdLock(p1, t1));
+        assertEquals(0, locks.pageLockCount(t1, 1));
+        assertNull(locks.tableMode(t1, 2));
+        assertTrue(locks.tryAcquire(t3, p1, true));
+        assertTrue(locks.tryAcquireTable(t3, 2, LockTable.Mode.X));
+    }
+
+    /**
+     * Unit test for LockTable.escalate(): page locks are traded for a table
+     * lock of the strongest of their modes, unless another transaction
+     * holds a conflicting lock on the table.
+     */
+    @Test public void escalation() {
+        assertTrue(locks.tryAcquire(t1, p0, false));
+        assertTrue(locks.tryAcquire(t1, p1, false));
+        assertEquals(2, locks.pageLockCount(t1, 1));
+        assertTrue(locks.tryAcquireTable(t2, 1, LockTable.Mode.IS));
+        assertTrue(locks.escalate(t1, 1));
+        assertEquals(LockTable.Mode.S, locks.tableMode(t1, 1));
+        assertEquals(0, locks.pageLockCount(t1, 1));
+        assertFalse(locks.holdLock(p0, t1));
+
+        PageId q0 = new HeapPageId(2, 0);
+        assertTrue(locks.tryAcquire(t3, q0, true));
+        assertTrue(locks.tryAcquireTable(t2, 2, LockTable.Mode.IS));
+        assertFalse(locks.escalate(t3, 2));
+        assertNull(locks.tableMode(t3, 2));
+        assertTrue(locks.holdLock(q0, t3));
+        assertEquals(1, locks.pageLockCount(t3, 2));
+    }
+
+    /**
+     * Unit test for LockTable: under WAIT_DIE a younger transaction that
+     * would wait for an older one fails at once, and an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        locks = new LockTable(LockTable.DeadlockPolicy.WAIT_DIE);
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        assertTrue(locks.tryAcquire(t2, p1, true));
+        Waiter older = new Waiter(t1, p1, true, TIMEOUT);
+        settle();
+        assertNull(older.error);
+        Waiter younger = new Waiter(t2, p0, true, TIMEOUT);
+        younger.join(TIMEOUT);
+        assertNotNull(younger.error);
+        assertEquals(1, locks.getDeadlocks());
+
+        locks.unlock(p1, t2);
+        older.join(TIMEOUT);
+        assertTrue(older.acquired);
+    }
+
+    /**
+     * Unit test for LockTable: under WOUND_WAIT an older transaction fails
+     * the younger one it waits for, at once if the younger one is waiting
+     * and at its next wait if it is running.
+     */
+    @Test public void woundWait() throws Exception {
+        locks = new LockTable(LockTable.DeadlockPolicy.WOUND_WAIT);
+        PageId p2 = new HeapPageId(1, 2);
+        // t2 waits for the older t1, then t1 wants t2's page
+        assertTrue(locks.tryAcquire(t1, p0, true));
+        assertTrue(locks.tryAcquire(t2, p1, true));
+        Waiter younger = new Waiter(t2, p0, true, TIMEOUT);
+        settle();
+        assertNull(younger.error);
+        Waiter older = new Waiter(t1, p1, true, TIMEOUT);
+        younger.join(TIMEOUT);
+        assertNotNull(younger.error);
+        locks.unlock(p1, t2);
+        older.join(TIMEOUT);
+        assertTrue(older.acquired);
+
+        // t3 is running when t1 wounds it; it fails when it next waits
+        assertTrue(locks.tryAcquire(t3, p2, true));
+        Waiter waiter = new Waiter(t1, p2, true, TIMEOUT);
+        settle();
+        assertTrue(locks.tryAcquire(t3, new HeapPageId(1, 3), true));
+        try {
+            locks.acquire(t3, p0, false, TIMEOUT);
+            fail("a wounded transaction must not wait");
+        } catch (TransactionAbortedException expected) {
+        }
+        assertEquals(2, locks.getDeadlocks());
+        locks.unlock(p2, t3);
+        waiter.join(TIMEOUT);
+        assertTrue(waiter.acquired);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockTableTest.class);
+    }
+}
@@ -3,7 +3,10 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +189,82 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.lockTable().
+   * A transaction holding a shared table lock reads every page of the table
+   * without page locks; other readers may share the pages, writers wait.
+   */
+  @Test public void tableReadLock() throws Exception {
+    bp.lockTable(tid1, empty.getId(), Permissions.READ_ONLY);
+    assertEquals(LockTable.Mode.S, bp.getTableLockMode(tid1, empty.getId()));
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p2));
+    grabLock(tid2, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Writing a page takes an intention lock on its table, so another
+   * transaction cannot lock the whole table shared.
+   */
+  @Test public void pageWriteBlocksTableRead() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertEquals(LockTable.Mode.IX, bp.getTableLockMode(tid1, empty.getId()));
+    grabLock(tid2, p1, Permissions.READ_WRITE, true);
+
+    TransactionId tid3 = new TransactionId();
+    bp.setLockTimeout(100);
+    try {
+      bp.lockTable(tid3, empty.getId(), Permissions.READ_ONLY);
+      fail("a table read lock must wait for page writers");
+    } catch (TransactionAbortedException expected) {
+    }
+  }
+
+  /**
+   * Unit test for lock escalation in BufferPool.getPage().
+   * Past the threshold a reader's page locks become a table read lock; a
+   * writer's cannot become a table write lock while another transaction
+   * reads the table, and are kept.
+   */
+  @Test public void lockEscalation() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockTable.Mode.IS, bp.getTableLockMode(tid1, empty.getId()));
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockTable.Mode.S, bp.getTableLockMode(tid1, empty.getId()));
+    assertEquals(1, bp.getMetrics().getLockEscalations());
+    assertTrue(bp.holdsLock(tid1, p0));
+    bp.transactionComplete(tid1);
+
+    bp.setLockEscalationThreshold(1);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid3, p1, Permissions.READ_WRITE);
+    bp.getPage(tid3, p2, Permissions.READ_WRITE);
+    assertEquals(LockTable.Mode.IX, bp.getTableLockMode(tid3, empty.getId()));
+    assertEquals(1, bp.getMetrics().getFailedLockEscalations());
+    assertTrue(bp.holdsLock(tid3, p1));
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete(): locks on pages that
+   * were evicted before the commit are released as well.
+   */
+  @Test public void evictedPageLocksReleased() throws Exception {
+    bp = Database.resetBufferPool(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p0));
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertNull(bp.getTableLockMode(tid1, empty.getId()));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageCleanerTest extends TestUtil.CreateHeapFile {
+    private static final long NEVER = 60 * 60 * 1000;
+
+    private PageId p0, p2;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // three pages, the last one with free slots
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        p0 = new HeapPageId(empty.getId(), 0);
+        p2 = new HeapPageId(empty.getId(), 2);
+
+        bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+        bp.flushAllPages();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Insert a tuple with the given first field into p2 on behalf of tid. */
+    private void insert(TransactionId tid, int value) throws Exception {
+        HeapPage p = (HeapPage) bp.getPage(tid, p2, Permissions.READ_WRITE);
+        Tuple t = Utility.getHeapTuple(new int[] { value, 830 });
+        p.insertTuple(t);
+        p.markDirty(true, tid);
+    }
+
+    /** Insert a tuple and commit through Transaction, so the update is logged. */
+    private void loggedInsert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), value);
+        t.commit();
+    }
+
+    private static boolean contains(Page page, int value) {
+        Iterator<Tuple> it = ((HeapPage) page).iterator();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == value)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean onDisk(int value) {
+        return contains(empty.readPage(p2), value);
+    }
+
+    /**
+     * Unit test for BufferPool with a PageCleaner: a logged commit leaves the
+     * page to the cleaner.
+     */
+    @Test public void loggedCommitIsDeferred() throws Exception {
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, NEVER);
+        loggedInsert(6);
+        assertFalse(onDisk(6));
+        assertEquals(1, bp.unwrittenPages());
+
+        assertEquals(1, bp.writeUnwrittenPages());
+        assertTrue(onDisk(6));
+        assertEquals(0, bp.unwrittenPages());
+    }
+
+    /**
+     * Unit test for BufferPool with a PageCleaner: a commit whose updates are
+     * not in the log is still written at commit.
+     */
+    @Test public void unloggedCommitIsForced() throws Exception {
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, NEVER);
+        TransactionId tid = new TransactionId();
+        insert(tid, 6);
+        bp.transactionComplete(tid, true);
+        assertTrue(onDisk(6));
+        assertEquals(0, bp.unwrittenPages());
+    }
+
+    /**
+     * Unit test for BufferPool with a PageCleaner: an abort restores the
+     * committed version of a page even if it is not on disk yet.
+     */
+    @Test public void abortRestoresUnwrittenVersion() throws Exception {
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, NEVER);
+        loggedInsert(6);
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 7);
+        bp.transactionComplete(tid, false);
+
+        Page p = bp.getPage(new TransactionId(), p2, Permissions.READ_ONLY);
+        assertTrue(contains(p, 6));
+        assertFalse(contains(p, 7));
+
+        bp.writeUnwrittenPages();
+        assertTrue(onDisk(6));
+        assertFalse(onDisk(7));
+    }
+
+    /**
+     * Unit test for PageCleaner: the cleaner wakes up when the pool falls
+     * below the clean target.
+     */
+    @Test public void cleanerMeetsTarget() throws Exception {
+        bp.startCleaner(1.0, NEVER);
+        loggedInsert(6);
+        for (int i = 0; i < 100 && bp.unwrittenPages() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, bp.unwrittenPages());
+        assertTrue(onDisk(6));
+    }
+
+    /**
+     * Unit test for BufferPool with a PageCleaner: stopping the cleaner, or
+     * evicting a page it has not written, writes the page back.
+     */
+    @Test public void unwrittenPagesSurvive() throws Exception {
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, NEVER);
+        loggedInsert(6);
+        bp.stopCleaner();
+        assertTrue(onDisk(6));
+
+        // with a single frame any clean target above 0 would wake the cleaner
+        bp = Database.resetBufferPool(1);
+        bp.startCleaner(0.0, NEVER);
+        loggedInsert(7);
+        assertFalse(onDisk(7));
+        bp.getPage(new TransactionId(), p0, Permissions.READ_ONLY);
+        assertTrue(onDisk(7));
+        bp.stopCleaner();
+    }
+
+    /**
+     * Unit test for LogFile.recover() with a PageCleaner: a commit whose
+     * page the cleaner had not written when the system crashed is redone
+     * from the log.
+     */
+    @Test public void crashRedoesCommit() throws Exception {
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, NEVER);
+        loggedInsert(6);
+        Page crashed = empty.readPage(p2);
+        assertFalse(contains(crashed, 6));
+
+        // Database.reset() writes what the cleaner has not, so put back
+        // the page as it was on disk at the crash
+        File file = empty.getFile();
+        Database.reset();
+        bp = Database.getBufferPool();
+        empty = Utility.openHeapFile(2, file);
+        empty.writePage(crashed);
+        assertFalse(onDisk(6));
+        Database.getLogFile().recover();
+        assertTrue(onDisk(6));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
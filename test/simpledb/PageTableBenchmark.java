@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Microbenchmark for the BufferPool hit path. For each pool size it fills the
+ * pool with resident pages and then measures the average latency of
+ * getPage() calls that hit in the pool. With a hashed page table the hit
+ * latency should stay roughly flat as the pool grows from 50 to 100k pages.
+ * <p>
+ * Pages come from an in-memory DbFile holding tiny pages, so the benchmark
+ * measures the pool itself rather than disk or page decoding costs.
+ * Run with: ant runbench -Dbench=PageTableBenchmark
+ */
+public class PageTableBenchmark {
+
+    private static final int[] POOL_SIZES = { 50, 500, 5000, 50000, 100000 };
+    private static final int HITS = 2000000;
+    private static final int ROUNDS = 3;
+
+    /** Minimal page that carries no tuple data. */
+    static class BenchPage implements Page {
+        private final PageId pid;
+        private TransactionId dirtier;
+
+        BenchPage(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public TransactionId isDirty() {
+            return dirtier;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+            dirtier = dirty ? tid : null;
+        }
+
+        public byte[] getPageData() {
+            return new byte[BufferPool.getPageSize()];
+        }
+
+        public Page getBeforeImage() {
+            return new BenchPage(pid);
+        }
+
+        public void setBeforeImage() {
+        }
+    }
+
+    /** DbFile that materializes BenchPages on demand. */
+    static class BenchFile extends TestUtil.SkeletonFile {
+        BenchFile(int tableid) {
+            super(tableid, Utility.getTupleDesc(1));
+        }
+
+        public Page readPage(PageId id) {
+            return new BenchPage(id);
+        }
+
+        public void writePage(Page p) {
+        }
+    }
+
+    public static void main(String[] args) throws DbException,
+            TransactionAbortedException, IOException {
+        System.out.printf("%10s %15s%n", "numPages", "ns/hit");
+        for (int numPages : POOL_SIZES) {
+            System.out.printf("%10d %15.1f%n", numPages, measure(numPages));
+        }
+    }
+
+    static double measure(int numPages) throws DbException,
+            TransactionAbortedException, IOException {
+        Database.reset();
+        BenchFile file = new BenchFile(numPages);
+        Database.getCatalog().addTable(file, "bench" + numPages);
+        BufferPool bp = Database.resetBufferPool(numPages);
+
+        // make every page resident, and hold a shared lock on each so the
+        // timed loop only exercises the hit path
+        TransactionId tid = new TransactionId();
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        for (int i = 0; i < numPages; i++) {
+            PageId pid = new HeapPageId(file.getId(), i);
+            pids.add(pid);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+        }
+
+        Random rand = new Random(42);
+        int[] order = new int[HITS];
+        for (int i = 0; i < HITS; i++)
+            order[i] = rand.nextInt(numPages);
+
+        // report the best of several rounds; the first one also warms the JIT
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < HITS; i++)
+                bp.getPage(tid, pids.get(order[i]), Permissions.READ_ONLY);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        bp.transactionComplete(tid);
+        return (double) best / HITS;
+    }
+}
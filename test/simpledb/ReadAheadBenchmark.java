@@ -0,0 +1,75 @@
+package simpledb;
+
+import java.io.File;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures how fast an aggregate over a full SeqScan runs with and without
+ * read-ahead. The table is a HeapFile whose readPage sleeps for a fixed
+ * time, standing in for a disk, and is several times larger than the pool,
+ * so without read-ahead every page is a synchronous miss and the query
+ * takes the read time plus the processing time. With read-ahead the two
+ * overlap, and the query should take little more than the larger of them.
+ * <p>
+ * Run with: ant runbench -Dbench=ReadAheadBenchmark [-Dargs="pages readMicros"]
+ */
+public class ReadAheadBenchmark {
+
+    /** HeapFile with a simulated read latency. */
+    static class SlowHeapFile extends HeapFile {
+        private final long readNanos;
+
+        SlowHeapFile(File f, TupleDesc td, long readNanos) {
+            super(f, td);
+            this.readNanos = readNanos;
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            try {
+                Thread.sleep(readNanos / 1000000, (int) (readNanos % 1000000));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        long readMicros = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, null);
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(2), readMicros * 1000);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        System.out.printf("%d pages, %d us per read%n", pages, readMicros);
+        for (int round = 0; round < 3; round++) {
+            for (boolean enabled : new boolean[] { false, true }) {
+                ReadAhead.setEnabled(enabled);
+                Database.resetBufferPool(pages / 4);
+                long start = System.nanoTime();
+                int sum = sum(table.getId());
+                double ms = (System.nanoTime() - start) / 1e6;
+                System.out.printf("read-ahead %-5s sum %12d %10.0f ms%n", enabled, sum, ms);
+            }
+        }
+        ReadAhead.setEnabled(true);
+    }
+
+    /** SELECT SUM(t.1) FROM t GROUP BY t.0 */
+    static int sum(int tableId) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, tableId, "t");
+        Aggregate agg = new Aggregate(ss, 1, 0, Aggregator.Op.SUM);
+        int sum = 0;
+        agg.open();
+        while (agg.hasNext()) {
+            sum += ((IntField) agg.next().getField(1)).getValue();
+        }
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return sum;
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    /** Records which pages were read from disk. */
+    static class InstrumentedHeapFile extends HeapFile {
+        final Set<Integer> read = Collections.synchronizedSet(new HashSet<Integer>());
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            synchronized (this) {
+                readCount++;
+            }
+            read.add(pid.getPageNumber());
+            return super.readPage(pid);
+        }
+    }
+
+    private InstrumentedHeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * PAGES, 1000, null, null);
+        table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+    }
+
+    @After public void tearDown() {
+        ReadAhead.setEnabled(true);
+    }
+
+    /** Waits a little for read-ahead threads to reach the given page. */
+    private boolean eventuallyRead(int pgNo) throws InterruptedException {
+        for (int i = 0; i < 100 && !table.read.contains(pgNo); i++)
+            Thread.sleep(20);
+        return table.read.contains(pgNo);
+    }
+
+    /**
+     * Unit test for ReadAhead: a heap scan reads pages it has not asked for
+     * yet, and no page is read twice.
+     */
+    @Test public void heapScanReadsAhead() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        assertTrue(it.hasNext());
+        it.next();
+        assertTrue(eventuallyRead(1));
+
+        int tuples = 1;
+        while (it.hasNext()) {
+            it.next();
+            tuples++;
+        }
+        it.close();
+        assertEquals(992 * PAGES, tuples);
+        assertEquals(PAGES, table.read.size());
+        assertEquals(PAGES, table.readCount);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for ReadAhead: pools too small to hold a window do not
+     * read ahead.
+     */
+    @Test public void smallPoolDoesNotReadAhead() throws Exception {
+        Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        it.next();
+        Thread.sleep(200);
+        assertEquals(1, table.readCount);
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.readAhead(): a page read ahead is found in
+     * the pool by a later getPage.
+     */
+    @Test public void readAheadPageIsCached() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageId pid = new HeapPageId(table.getId(), 3);
+        Page page = bp.readAhead(pid);
+        assertNotNull(page);
+        assertSame(page, bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY));
+        assertEquals(1, table.readCount);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
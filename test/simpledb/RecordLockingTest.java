@@ -0,0 +1,231 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+    private static final long TIMEOUT = 5000;
+
+    private BufferPool bp;
+    private TransactionId t1, t2;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= 3; i++)
+            insert(tid, i);
+        bp.transactionComplete(tid, true);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+    }
+
+    private void insert(TransactionId tid, int value) throws Exception {
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    /** @return the committed tuple with the given value, read by a transaction of its own */
+    private Tuple find(int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() == value)
+                    return t;
+            }
+        } finally {
+            it.close();
+            bp.transactionComplete(tid, true);
+        }
+        return null;
+    }
+
+    /** @return the values of the first field of the tuples tid sees, sorted */
+    private List<Integer> scan(TransactionId tid) throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    /** @return the values of the first field of the tuples on disk, sorted */
+    private List<Integer> onDisk() {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < empty.numPages(); i++) {
+            Iterator<Tuple> it = ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), i))).iterator();
+            while (it.hasNext())
+                values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    /** Scans the table in a new thread; check the values or the error later. */
+    private class Scanner extends Thread {
+        final TransactionId tid = new TransactionId();
+        volatile List<Integer> values;
+        volatile Exception error;
+
+        Scanner() {
+            start();
+        }
+
+        public void run() {
+            try {
+                values = scan(tid);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Unit test for record locking: two transactions insert into the same
+     * page without waiting, and the commit of one and the abort of the
+     * other only install or undo their own tuple.
+     */
+    @Test public void insertsOnOnePage() throws Exception {
+        insert(t1, 4);
+        insert(t2, 5);
+        assertEquals(1, empty.numPages());
+        assertEquals(LockTable.Mode.IX, bp.getTableLockMode(t1, empty.getId()));
+        assertEquals(LockTable.Mode.IX, bp.getTableLockMode(t2, empty.getId()));
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        assertEquals(Arrays.asList(1, 2, 3, 5), onDisk());
+        TransactionId tid = new TransactionId();
+        assertEquals(Arrays.asList(1, 2, 3, 5), scan(tid));
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * Unit test for record locking: two transactions delete different
+     * tuples of a page without waiting; the aborted delete is undone while
+     * the other commits.
+     */
+    @Test public void deletesOnOnePage() throws Exception {
+        Tuple one = find(1);
+        Tuple two = find(2);
+        bp.deleteTuple(t1, one);
+        bp.deleteTuple(t2, two);
+        assertTrue(bp.holdsLock(t1, one.getRecordId()));
+        assertFalse(bp.holdsLock(t1, two.getRecordId()));
+
+        bp.transactionComplete(t1, false);
+        assertEquals(Arrays.asList(1, 2, 3), onDisk());
+        bp.transactionComplete(t2, true);
+        assertEquals(Arrays.asList(1, 3), onDisk());
+    }
+
+    /**
+     * Unit test for record locking: the slot of a tuple whose delete is
+     * not committed yet is not reused by another transaction, so that the
+     * tuple can be put back if the delete is undone.
+     */
+    @Test public void deletedSlotNotReused() throws Exception {
+        Tuple deleted = find(1);
+        bp.deleteTuple(t1, deleted);
+        insert(t2, 4);
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        assertEquals(Arrays.asList(1, 2, 3, 4), onDisk());
+        assertEquals(deleted.getRecordId(), find(1).getRecordId());
+    }
+
+    /**
+     * Unit test for record locking: a reader waits for the writer of a
+     * tuple it reads, and does not see tuples whose insert was undone.
+     */
+    @Test public void readerWaitsForWriter() throws Exception {
+        insert(t1, 4);
+        Scanner s = new Scanner();
+        s.join(100);
+        assertTrue(s.isAlive());
+        bp.transactionComplete(t1, true);
+        s.join(TIMEOUT);
+        assertNull(s.error);
+        assertEquals(Arrays.asList(1, 2, 3, 4), s.values);
+        bp.transactionComplete(s.tid, true);
+
+        insert(t2, 5);
+        s = new Scanner();
+        s.join(100);
+        assertTrue(s.isAlive());
+        bp.transactionComplete(t2, false);
+        s.join(TIMEOUT);
+        assertNull(s.error);
+        assertEquals(Arrays.asList(1, 2, 3, 4), s.values);
+        bp.transactionComplete(s.tid, true);
+    }
+
+    /**
+     * Unit test for record locking: a transaction that locks more records
+     * of a page than the threshold trades them for a page lock, unless a
+     * writer of the page keeps it from getting one.
+     */
+    @Test public void recordEscalation() throws Exception {
+        bp.setRecordEscalationThreshold(2);
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        assertEquals(Arrays.asList(1, 2, 3), scan(t1));
+        assertEquals(LockTable.Mode.IS, bp.getTableLockMode(t1, empty.getId()));
+        assertTrue(bp.holdsLock(t1, pid));
+        assertEquals(1, bp.getMetrics().getLockEscalations());
+        bp.transactionComplete(t1, true);
+
+        insert(t2, 4);
+        Scanner s = new Scanner();
+        s.join(100);
+        bp.transactionComplete(t2, true);
+        s.join(TIMEOUT);
+        assertEquals(Arrays.asList(1, 2, 3, 4), s.values);
+        assertEquals(1, bp.getMetrics().getFailedLockEscalations());
+        bp.transactionComplete(s.tid, true);
+    }
+
+    /**
+     * Unit test for record locking: flushPages logs whole pages, so the
+     * pool refuses to run a PageCleaner together with record locking.
+     */
+    @Test public void cleanerRejected() throws Exception {
+        try {
+            bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, PageCleaner.DEFAULT_INTERVAL_MILLIS);
+            fail("started a cleaner under record locking");
+        } catch (IllegalStateException expected) {
+        }
+        bp.setRecordLocking(false);
+        bp.startCleaner(PageCleaner.DEFAULT_CLEAN_TARGET, PageCleaner.DEFAULT_INTERVAL_MILLIS);
+        try {
+            bp.setRecordLocking(true);
+            fail("turned on record locking with a cleaner running");
+        } catch (IllegalStateException expected) {
+        } finally {
+            bp.stopCleaner();
+        }
+        assertFalse(bp.isRecordLocking());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+/**
+ * Compares the replacement policies on page-access traces recorded from the
+ * system test workloads. Each workload (a class in simpledb.systemtest) is
+ * run once with a recording policy installed in every BufferPool it
+ * creates; the recorded sequence of page accesses is then replayed against
+ * each policy for a range of pool sizes, and the hit ratios are reported.
+ * <p>
+ * Run with: ant runbench -Dbench=ReplacementPolicyHarness [-Dargs="ScanTest JoinTest"]
+ */
+public class ReplacementPolicyHarness {
+
+    private static final int[] POOL_SIZES = { 8, 16, 32, 64, 128, 256 };
+    private static final String[] DEFAULT_WORKLOADS = { "ScanTest", "JoinTest",
+            "FilterTest", "AggregateTest", "BTreeScanTest", "InsertTest",
+            "DeleteTest" };
+
+    /** Wraps a policy and appends every page access to a trace. */
+    static class RecordingPolicy implements ReplacementPolicy {
+        private final ReplacementPolicy delegate;
+        private final List<PageId> trace;
+
+        RecordingPolicy(ReplacementPolicy delegate, List<PageId> trace) {
+            this.delegate = delegate;
+            this.trace = trace;
+        }
+
+        public void pageAdmitted(PageId pid) {
+            trace.add(pid);
+            delegate.pageAdmitted(pid);
+        }
+
+        public void pageAccessed(PageId pid) {
+            trace.add(pid);
+            delegate.pageAccessed(pid);
+        }
+
+        public void pageRemoved(PageId pid) {
+            delegate.pageRemoved(pid);
+        }
+
+        public PageId chooseVictim(VictimFilter filter) {
+            return delegate.chooseVictim(filter);
+        }
+
+        public void setCapacity(int capacity) {
+            delegate.setCapacity(capacity);
+        }
+    }
+
+    private static final ReplacementPolicy.VictimFilter ANY_PAGE = new ReplacementPolicy.VictimFilter() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        String[] workloads = args.length > 0 ? args : DEFAULT_WORKLOADS;
+
+        System.out.printf("%-16s %8s %10s", "workload", "accesses", "numPages");
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values())
+            System.out.printf(" %8s", kind.name());
+        System.out.println();
+
+        for (String workload : workloads) {
+            List<PageId> trace = record(workload);
+            for (int numPages : POOL_SIZES) {
+                System.out.printf("%-16s %8d %10d", workload, trace.size(), numPages);
+                for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values())
+                    System.out.printf(" %8.3f", replay(trace, numPages, kind));
+                System.out.println();
+            }
+        }
+    }
+
+    /** Runs a system test class and returns the pages it accessed, in order. */
+    static List<PageId> record(String workload) throws ClassNotFoundException {
+        final List<PageId> trace = new ArrayList<PageId>();
+        BufferPool.setDefaultReplacementPolicy(new ReplacementPolicy.Factory() {
+            public ReplacementPolicy create(int capacity) {
+                return new RecordingPolicy(ReplacementPolicy.Kind.CLOCK.create(capacity), trace);
+            }
+        });
+        try {
+            Result result = JUnitCore.runClasses(Class.forName("simpledb.systemtest." + workload));
+            if (!result.wasSuccessful())
+                System.err.println(workload + ": " + result.getFailureCount()
+                        + " test failures while recording");
+        } finally {
+            BufferPool.resetDefaultReplacementPolicy();
+        }
+        return trace;
+    }
+
+    /** Replays a trace against a pool of numPages pages and returns the hit ratio. */
+    static double replay(List<PageId> trace, int numPages, ReplacementPolicy.Kind kind) {
+        ReplacementPolicy policy = kind.create(numPages);
+        Set<PageId> resident = new HashSet<PageId>();
+        long hits = 0;
+        for (PageId pid : trace) {
+            if (resident.contains(pid)) {
+                hits++;
+                policy.pageAccessed(pid);
+                continue;
+            }
+            if (resident.size() >= numPages) {
+                PageId victim = policy.chooseVictim(ANY_PAGE);
+                resident.remove(victim);
+                policy.pageRemoved(victim);
+            }
+            resident.add(pid);
+            policy.pageAdmitted(pid);
+        }
+        return trace.isEmpty() ? 0.0 : (double) hits / trace.size();
+    }
+}
@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class ReplacementPolicyTest {
+
+    private static final int TABLE = 1;
+
+    /** Filter that lets every page except the given ones be evicted. */
+    private static class Except implements ReplacementPolicy.VictimFilter {
+        private final Set<PageId> pinned = new HashSet<PageId>();
+
+        Except(PageId... pids) {
+            for (PageId pid : pids)
+                pinned.add(pid);
+        }
+
+        public boolean canEvict(PageId pid) {
+            return !pinned.contains(pid);
+        }
+    }
+
+    private static PageId page(int pgNo) {
+        return new HeapPageId(TABLE, pgNo);
+    }
+
+    /** Evicts one page according to the policy and returns its id. */
+    private static PageId evict(ReplacementPolicy policy) {
+        PageId victim = policy.chooseVictim(new Except());
+        assertNotNull(victim);
+        policy.pageRemoved(victim);
+        return victim;
+    }
+
+    /**
+     * Unit test for ClockPolicy: a referenced page gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdmitted(page(i));
+        // the first sweep clears all bits, so page 0 is the first victim
+        assertEquals(page(0), evict(policy));
+        policy.pageAdmitted(page(3));
+        // page 1 is referenced again, so page 2 goes before it
+        policy.pageAccessed(page(1));
+        assertEquals(page(2), evict(policy));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages with fewer than K references go first.
+     */
+    @Test public void lruKPrefersOnceReferenced() {
+        ReplacementPolicy policy = new LruKPolicy(4, 2);
+        policy.pageAdmitted(page(0));
+        policy.pageAccessed(page(0));
+        policy.pageAdmitted(page(1));
+        policy.pageAdmitted(page(2));
+        policy.pageAccessed(page(2));
+        policy.pageAdmitted(page(3));
+        // 1 and 3 were referenced once; the least recent of them goes first
+        assertEquals(page(1), evict(policy));
+        assertEquals(page(3), evict(policy));
+        // then the page whose second most recent access is the oldest
+        assertEquals(page(0), evict(policy));
+        assertEquals(page(2), evict(policy));
+    }
+
+    /**
+     * Unit test for LruKPolicy: history survives eviction of a page.
+     */
+    @Test public void lruKRetainsHistory() {
+        ReplacementPolicy policy = new LruKPolicy(4, 2);
+        policy.pageAdmitted(page(0));
+        policy.pageAdmitted(page(1));
+        assertEquals(page(0), evict(policy));
+        // page 0 comes back, so it now has two references and outlives page 1
+        policy.pageAdmitted(page(0));
+        policy.pageAdmitted(page(2));
+        assertEquals(page(1), evict(policy));
+        assertEquals(page(2), evict(policy));
+        assertEquals(page(0), evict(policy));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: a scan does not push out pages with proven
+     * reuse.
+     */
+    @Test public void twoQScanResistance() {
+        // a full pool of four pages, all seen once
+        ReplacementPolicy policy = new TwoQPolicy(4);
+        for (int i = 0; i < 4; i++)
+            policy.pageAdmitted(page(i));
+
+        // pages 0 and 1 are evicted and requested again, so they enter Am
+        assertEquals(page(0), evict(policy));
+        policy.pageAdmitted(page(0));
+        assertEquals(page(1), evict(policy));
+        policy.pageAdmitted(page(1));
+
+        // a scan of pages seen only once keeps cycling through A1in
+        for (int i = 100; i < 120; i++) {
+            PageId victim = evict(policy);
+            assertFalse(victim.equals(page(0)) || victim.equals(page(1)));
+            policy.pageAdmitted(page(i));
+        }
+    }
+
+    /**
+     * Unit test for all policies: victims respect the filter, and null is
+     * returned when nothing may be evicted.
+     */
+    @Test public void filterRespected() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(2);
+            policy.pageAdmitted(page(0));
+            policy.pageAdmitted(page(1));
+            assertEquals(kind.name(), page(1), policy.chooseVictim(new Except(page(0))));
+            assertNull(kind.name(), policy.chooseVictim(new Except(page(0), page(1))));
+        }
+    }
+
+    /**
+     * Unit test for all policies: a policy keeps choosing resident pages
+     * after the pool shrinks and grows again.
+     */
+    @Test public void capacityChanges() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(8);
+            for (int i = 0; i < 8; i++)
+                policy.pageAdmitted(page(i));
+            Set<PageId> resident = new HashSet<PageId>();
+            for (int i = 0; i < 8; i++)
+                resident.add(page(i));
+            for (int i = 0; i < 6; i++)
+                resident.remove(evict(policy));
+            policy.setCapacity(2);
+            policy.setCapacity(16);
+            for (int i = 100; i < 110; i++) {
+                policy.pageAdmitted(page(i));
+                resident.add(page(i));
+            }
+            for (int i = 0; i < 12; i++)
+                assertTrue(kind.name(), resident.remove(evict(policy)));
+            assertNull(kind.name(), policy.chooseVictim(new Except()));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool: dirty pages are never chosen for eviction.
+     */
+    @Test public void bufferPoolEvictsCleanPages() throws Exception {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            Database.reset();
+            HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+            BufferPool bp = Database.resetBufferPool(2, kind);
+            TransactionId tid = new TransactionId();
+            Page dirty = bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            dirty.markDirty(true, tid);
+            for (int i = 1; i < 4; i++)
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            assertSame(kind.name(), dirty,
+                    bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE));
+            bp.transactionComplete(tid, false);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
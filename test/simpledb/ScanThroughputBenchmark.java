@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Multi-threaded throughput benchmark for read-mostly workloads. A table
+ * that fits in the pool is scanned with SeqScan by 1 to 32 threads at once,
+ * each scan in its own transaction, and the number of completed scans per
+ * second is reported for an unpartitioned pool and for a partitioned one.
+ * With the pool split into independently latched partitions, throughput
+ * should grow with the number of threads up to the number of cores.
+ * <p>
+ * Run with: ant runbench -Dbench=ScanThroughputBenchmark [-Dargs="seconds partitions"]
+ */
+public class ScanThroughputBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32 };
+    private static final int POOL_PAGES = 4096;
+    private static final int TABLE_ROWS = 504 * 64;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+        int partitioned = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        Database.reset();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, TABLE_ROWS, null, null);
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors()
+                + ", table pages: " + table.numPages());
+
+        System.out.printf("%10s %8s %15s%n", "partitions", "threads", "scans/s");
+        for (int partitions : new int[] { 1, partitioned }) {
+            for (int threads : THREADS) {
+                Database.resetBufferPool(new BufferPool(POOL_PAGES,
+                        ReplacementPolicy.Kind.CLOCK, partitions));
+                // warm the pool so that every scan hits
+                scan(table.getId());
+                System.out.printf("%10d %8d %15.1f%n", partitions, threads,
+                        measure(table.getId(), threads, seconds));
+            }
+        }
+    }
+
+    /** Scans the table once in a new transaction. */
+    static void scan(int tableId) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, tableId, "t");
+        ss.open();
+        while (ss.hasNext())
+            ss.next();
+        ss.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    static double measure(final int tableId, int threads, double seconds)
+            throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong scans = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    while (running.get()) {
+                        try {
+                            scan(tableId);
+                            scans.incrementAndGet();
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        Thread.sleep((long) (seconds * 1000));
+        running.set(false);
+        for (Thread t : workers)
+            t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        if (failures.get() > 0)
+            System.err.println(failures.get() + " scans failed");
+        return scans.get() / elapsed;
+    }
+}
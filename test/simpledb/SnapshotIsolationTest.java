@@ -0,0 +1,188 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotIsolationTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+    private TransactionId writer, snapshot;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i <= 3; i++)
+            insert(tid, i);
+        bp.transactionComplete(tid, true);
+        writer = new TransactionId();
+        snapshot = new TransactionId();
+    }
+
+    private void insert(TransactionId tid, int value) throws Exception {
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(value, 2));
+    }
+
+    /** @return the values of the first field of the tuples tid sees, sorted */
+    private List<Integer> scan(TransactionId tid) throws Exception {
+        List<Integer> values = new ArrayList<Integer>();
+        SeqScan scan = new SeqScan(tid, empty.getId());
+        scan.open();
+        while (scan.hasNext())
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        scan.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    /** @return the first tuple with the given value tid sees */
+    private Tuple find(TransactionId tid, int value) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() == value)
+                    return t;
+            }
+        } finally {
+            it.close();
+        }
+        return null;
+    }
+
+    /**
+     * Unit test for snapshots: a snapshot reads past the uncommitted
+     * changes of a writer without waiting or taking locks, and keeps
+     * reading the values as of its start after the writer commits.
+     */
+    @Test public void readsPastWriter() throws Exception {
+        bp.beginSnapshot(snapshot);
+        insert(writer, 4);
+        bp.deleteTuple(writer, find(writer, 1));
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+        assertFalse(bp.holdsLock(snapshot, new HeapPageId(empty.getId(), 0)));
+        assertNull(bp.getTableLockMode(snapshot, empty.getId()));
+
+        bp.transactionComplete(writer, true);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(Arrays.asList(2, 3, 4), scan(later));
+        bp.transactionComplete(later, true);
+        bp.transactionComplete(snapshot, true);
+    }
+
+    /**
+     * Unit test for snapshots: a writer is not kept waiting by a snapshot
+     * that read the page, and changes it undoes are never seen.
+     */
+    @Test public void writerDoesNotWait() throws Exception {
+        bp.beginSnapshot(snapshot);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+        bp.deleteTuple(writer, find(writer, 2));
+        insert(writer, 5);
+        bp.transactionComplete(writer, false);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 6);
+        bp.transactionComplete(tid, true);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+        assertEquals(Arrays.asList(1, 2, 3, 6), scan(new TransactionId()));
+    }
+
+    /**
+     * Unit test for snapshots: the versions kept for a snapshot go when it
+     * completes, and none are kept while no snapshot runs.
+     */
+    @Test public void versionsPruned() throws Exception {
+        bp.beginSnapshot(snapshot);
+        insert(writer, 4);
+        bp.transactionComplete(writer, true);
+        assertEquals(1, bp.snapshotVersions());
+        bp.transactionComplete(snapshot, true);
+        assertEquals(0, bp.snapshotVersions());
+        assertFalse(bp.isSnapshot(snapshot));
+
+        TransactionId tid = new TransactionId();
+        insert(tid, 5);
+        bp.transactionComplete(tid, true);
+        assertEquals(0, bp.snapshotVersions());
+    }
+
+    /**
+     * Unit test for snapshots: a snapshot cannot change pages.
+     */
+    @Test(expected = DbException.class) public void cannotWrite() throws Exception {
+        bp.beginSnapshot(snapshot);
+        insert(snapshot, 4);
+    }
+
+    /**
+     * Unit test for snapshots: under record locking, a snapshot skips the
+     * tuples whose insert or delete is not committed instead of waiting.
+     */
+    @Test public void recordLocking() throws Exception {
+        bp.setRecordLocking(true);
+        TransactionId other = new TransactionId();
+        bp.deleteTuple(other, find(other, 1));
+        insert(writer, 4);
+        bp.beginSnapshot(snapshot);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+
+        bp.transactionComplete(writer, true);
+        bp.transactionComplete(other, true);
+        assertEquals(Arrays.asList(1, 2, 3), scan(snapshot));
+        bp.transactionComplete(snapshot, true);
+    }
+
+    /**
+     * Unit test for snapshots: a snapshot of a B+ tree finds the tuples as
+     * of its start after other transactions split its leaves and internal
+     * pages, and misses the keys inserted since.
+     */
+    @Test public void bTreeSplits() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        bp = Database.getBufferPool();
+        bp.beginSnapshot(snapshot);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++)
+            bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + 1, 2));
+        bp.transactionComplete(tid, true);
+
+        DbFileIterator it = bf.iterator(snapshot);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(1000, n);
+        it = bf.indexIterator(snapshot, new IndexPredicate(Predicate.Op.EQUALS,
+                new IntField(BTreeUtility.MAX_RAND_VALUE + 1)));
+        it.open();
+        assertFalse(it.hasNext());
+        it.close();
+        bp.transactionComplete(snapshot, true);
+        assertEquals(0, bp.snapshotVersions());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class WarmStartTest extends SimpleDbTestBase {
+    private static final int PAGES = 8;
+
+    private HeapFile table;
+    private BufferPool bp;
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        file = File.createTempFile("hotpages", null);
+        file.deleteOnExit();
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(table.getId(), pgNo);
+    }
+
+    /** Request page pgNo of the table the given number of times. */
+    private void touch(int pgNo, int times) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < times; i++)
+            bp.getPage(tid, page(pgNo), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for WarmStart: the saved list has the most requested pages
+     * first and reads back to the same ids.
+     */
+    @Test public void saveAndLoad() throws Exception {
+        touch(5, 1);
+        touch(2, 4);
+        touch(7, 2);
+        WarmStart.save(bp, file);
+        List<PageId> pids = WarmStart.load(file);
+        assertEquals(Arrays.<PageId>asList(page(2), page(7), page(5)), pids);
+    }
+
+    /**
+     * Unit test for WarmStart: after a restart the saved pages are read
+     * back, in file order, and found in the pool.
+     */
+    @Test public void preload() throws Exception {
+        touch(6, 3);
+        touch(1, 2);
+        touch(4, 1);
+        WarmStart.save(bp, file);
+
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        WarmStart w = WarmStart.preload(bp, file);
+        w.join();
+        assertEquals(Arrays.<PageId>asList(page(1), page(4), page(6)), w.getPages());
+        assertEquals(3, w.getPagesLoaded());
+        assertEquals(new HashSet<PageId>(w.getPages()), new HashSet<PageId>(bp.residentPages()));
+        touch(6, 1);
+        assertEquals(1, bp.getMetrics().getHits());
+        assertEquals(0, bp.getMetrics().getMisses());
+    }
+
+    /**
+     * Unit test for WarmStart: only the hottest pages that fit are loaded,
+     * and pages that no longer exist are skipped.
+     */
+    @Test public void preloadFitsPool() throws Exception {
+        for (int i = 0; i < PAGES; i++)
+            touch(i, i + 1);
+        List<PageId> hot = bp.hotPages();
+        hot.add(0, new HeapPageId(table.getId(), PAGES + 10));
+        hot.add(0, new HeapPageId(table.getId() + 1, 0));
+
+        bp = Database.resetBufferPool(3);
+        WarmStart w = new WarmStart(bp, hot);
+        w.start();
+        w.join();
+        assertEquals(Arrays.<PageId>asList(page(5), page(6), page(7)), w.getPages());
+        assertEquals(3, bp.residentPages().size());
+    }
+
+    /**
+     * Unit test for WarmStart: there is nothing to preload without a saved
+     * list.
+     */
+    @Test public void noFile() throws Exception {
+        file.delete();
+        assertNull(WarmStart.preload(bp, file));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmStartTest.class);
+    }
+}
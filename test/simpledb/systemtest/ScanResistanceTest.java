@@ -0,0 +1,110 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs point lookups on a small table, which fits in the buffer pool, while
+ * a sequential scan reads a table several times larger than the pool, and
+ * measures the hit ratio of the lookups. With the scan confined to a ring of
+ * frames by its BufferAccessStrategy, the lookups should never miss.
+ */
+public class ScanResistanceTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 100;
+    private static final int HOT_PAGES = 40;
+    private static final int SCAN_PAGES = 600;
+    /** Number of pages the scan reads between two lookups. */
+    private static final int PAGES_PER_LOOKUP = 2;
+
+    /** Counts the number of readPage operations. */
+    static class InstrumentedHeapFile extends HeapFile {
+        int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount++;
+            return super.readPage(pid);
+        }
+    }
+
+    private InstrumentedHeapFile hot;
+    private HeapFile big;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * HOT_PAGES, 1000, null, null);
+        hot = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+        big = SystemTestUtil.createRandomHeapFile(1, 992 * SCAN_PAGES, null, null);
+    }
+
+    @After public void tearDown() {
+        BufferAccessStrategy.setEnabled(true);
+    }
+
+    private void lookup(int pgNo) throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().getPage(tid, new HeapPageId(hot.getId(), pgNo), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Warm the pool with the small table, then scan the large table and
+     * look up a random page of the small table every PAGES_PER_LOOKUP pages.
+     *
+     * @return the fraction of lookups that found their page in the pool
+     */
+    private double lookupHitRatio() throws Exception {
+        Database.resetBufferPool(BUFFER_PAGES);
+        for (int i = 0; i < HOT_PAGES; i++)
+            lookup(i);
+        assertEquals(HOT_PAGES, hot.readCount);
+        hot.readCount = 0;
+
+        Random rand = new Random(42);
+        int lookups = 0;
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        for (int n = 1; scan.hasNext(); n++) {
+            scan.next();
+            if (n % (992 * PAGES_PER_LOOKUP) == 0) {
+                lookup(rand.nextInt(HOT_PAGES));
+                lookups++;
+            }
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(SCAN_PAGES / PAGES_PER_LOOKUP, lookups);
+        return 1.0 - (double) hot.readCount / lookups;
+    }
+
+    @Test public void lookupsKeepHitRatioDuringScan() throws Exception {
+        assertEquals(1.0, lookupHitRatio(), 0.0);
+    }
+
+    /** Without strategies the same scan pushes the small table out of the pool. */
+    @Test public void scanWithoutStrategyEvictsLookups() throws Exception {
+        BufferAccessStrategy.setEnabled(false);
+        double withoutStrategy = lookupHitRatio();
+        System.out.println("ScanResistanceTest hit ratio without strategy: " + withoutStrategy);
+        assertTrue(withoutStrategy < 0.9);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanResistanceTest.class);
+    }
+}